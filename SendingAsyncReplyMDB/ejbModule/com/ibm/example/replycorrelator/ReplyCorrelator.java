@@ -21,6 +21,7 @@ import javax.jms.Message;
 import javax.jms.MessageProducer;
 
 import com.ibm.example.wlmjmsattach.WLMJMSAttach;
+import com.ibm.example.wlmjmsattach.WLMJMSDeadlineUtils;
 
 /**
  * Singleton containing the ReplyCorrelator logic.
@@ -136,4 +137,27 @@ public class ReplyCorrelator {
     }    
   }
   
+  /**
+   * Send the request message, and wait for the response until a deadline supplied by the caller.
+   * The time remaining is used as the time-to-live of the request, and stamped on the request
+   * with {@link WLMJMSDeadlineUtils#setDeadline(Message, long)}, so the service can skip requests
+   * that are already too late for us to use the reply.
+   * @param producer The JMS MessageProducer to use to send the request, as contained in the connection returned from {@link WLMJMSAttach} 
+   * @param requestMessage The request message
+   * @param deliveryMode The JMS delivery mode
+   * @param priority The priority for the request message
+   * @param deadline The time (as returned by System.currentTimeMillis) after which we no longer want the reply
+   * @return The response message, or null if the deadline passes first (including if it has passed before we send the request)
+   * @throws JMSException if a error occurs sending the request
+   */
+  public Message requestReply(MessageProducer producer, Message requestMessage, 
+      int deliveryMode, int priority, long deadline) throws JMSException {
+    
+    // Don't send a request that is already too late
+    long timeout = WLMJMSDeadlineUtils.remainingMillis(deadline);
+    if (timeout == 0) return null;
+    WLMJMSDeadlineUtils.setDeadline(requestMessage, deadline);
+    return requestReply(producer, requestMessage, deliveryMode, priority, timeout, true);
+  }
+  
 }
@@ -83,11 +83,7 @@ public class AdvancedRequestReply extends HttpServlet {
     
     // Construct the WLM JMS Attachment object
     try {
-      wlmJMSAttach = new WLMJMSAttach(
-          WLMJMSAttach.DEFAULT_RES_REF_PREFIX,
-          WLMJMSAttach.DEFAULT_INITIAL_DELAY_MS,
-          WLMJMSAttach.DEFAULT_TIMEOUT_MS,
-          WLMJMSAttach.DEFAULT_FAILED_GATEWAY_RETRY_MS);
+      wlmJMSAttach = SendingServletSupport.createWLMJMSAttach(getClass());
     }
     catch (NamingException e) {
       throw new RuntimeException("Failed to initialize: " + e.getMessage(), e);
@@ -103,6 +99,9 @@ public class AdvancedRequestReply extends HttpServlet {
       throws ServletException, IOException {
     final String methodName = "doGet";
     
+    // Work out the deadline for our response
+    long deadline = SendingServletSupport.getDeadline(getServletContext(), request);
+    
     // We simply return some text showing what we've done
     response.setContentType("text/plain");
     PrintWriter out = response.getWriter();
@@ -119,7 +118,7 @@ public class AdvancedRequestReply extends HttpServlet {
       // This is important as we need the message to be committed as
       // soon as we send it, as we will begin listening for a reply.
       out.println("JMS request destination: " + requestQueue);
-      wlmConnection = wlmJMSAttach.getMessageProducer(requestQueue, false, Session.AUTO_ACKNOWLEDGE);
+      wlmConnection = wlmJMSAttach.getMessageProducer(requestQueue, false, Session.AUTO_ACKNOWLEDGE, deadline);
 
       // TODO: Replace this section with business logic      
       // We create a temporary queue solely for the purpose of finding out where
@@ -147,15 +146,16 @@ public class AdvancedRequestReply extends HttpServlet {
       // a full copy of the message, and to have an asynchronous task that
       // looks on the reply-queue for report messages and performs recovery,
       // or notifies an operator.
+      // Here the request expires at our deadline, which is also stamped on the
+      // request so the MDB can skip it if it arrives too late for us to use the reply.
       int deliveryMode = DeliveryMode.PERSISTENT;  
-      long timeToLive = 30000;
       
       // Invoke the advanced reply correlator to obtainer our reply regardless
       // of which clustered queue instance it goes to
       long receiveStartTime = System.currentTimeMillis();
       Message replyMessage = ReplyCorrelator.getInstance().requestReply(wlmConnection.getProducer(), 
           message, deliveryMode, wlmConnection.getProducer().getPriority(),
-          timeToLive, true /* Expire the requests */ );
+          deadline);
       if (replyMessage == null) {
         throw new ServletException("Did not receive a reply message. Waited for " +
             (System.currentTimeMillis() - receiveStartTime) + "ms.");
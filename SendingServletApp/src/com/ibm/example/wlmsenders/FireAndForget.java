@@ -38,6 +38,8 @@ import javax.transaction.SystemException;
 import javax.transaction.UserTransaction;
 
 import com.ibm.example.wlmjmsattach.WLMJMSAttach;
+import com.ibm.example.wlmjmsattach.WLMJMSContext;
+import com.ibm.example.wlmjmsattach.WLMJMSContextCreator;
 import com.ibm.example.wlmjmsattach.WLMJMSLogger;
 import com.ibm.example.wlmjmsattach.WLMJMSMessageProducer;
 import com.ibm.example.wlmjmsattach.WLMJMSTranUtils;
@@ -83,11 +85,7 @@ public class FireAndForget extends HttpServlet {
     
     // Construct the WLM JMS Attachment object
     try {
-      wlmJMSAttach = new WLMJMSAttach(
-          WLMJMSAttach.DEFAULT_RES_REF_PREFIX,
-          WLMJMSAttach.DEFAULT_INITIAL_DELAY_MS,
-          WLMJMSAttach.DEFAULT_TIMEOUT_MS,
-          WLMJMSAttach.DEFAULT_FAILED_GATEWAY_RETRY_MS);
+      wlmJMSAttach = SendingServletSupport.createWLMJMSAttach(getClass());
     }
     catch (NamingException e) {
       throw new RuntimeException("Failed to initialize: " + e.getMessage(), e);
@@ -103,11 +101,15 @@ public class FireAndForget extends HttpServlet {
       throws ServletException, IOException {
     final String methodName = "doGet";
     
+    // Work out the deadline for our response
+    long deadline = SendingServletSupport.getDeadline(getServletContext(), request);
+    
     // We simply return some text showing what we've done
     response.setContentType("text/plain");
     PrintWriter out = response.getWriter();
     
     WLMJMSMessageProducer wlmConnection = null;
+    WLMJMSContext wlmContext = null;
     boolean complete = false;    
     try {
       // Begin a transaction
@@ -130,28 +132,44 @@ public class FireAndForget extends HttpServlet {
       // boolean in the getMessageProducer() call to false, and setting the DeliveryMode
       // to NON_PERSISTENT when sending the message.
       out.println("JMS destination: " + fireAndForgetTarget);
-      wlmConnection = wlmJMSAttach.getMessageProducer(fireAndForgetTarget, true, Session.AUTO_ACKNOWLEDGE);
-      
-      // TODO: Replace this section with business logic      
-      // We create a temporary queue solely for the purpose of finding out where
-      // we are connected, as the temporary queue name should show this.
-      // This is inefficient, so it is for demonstration purposes only.
-      TemporaryQueue temporaryQueue = wlmConnection.getSession().createTemporaryQueue();
-      String temporaryQueueName = temporaryQueue.getQueueName();
-      out.println("Temporary queue showing where we are connected:");
-      out.println(temporaryQueueName);
-      temporaryQueue.delete();
       String exampleMessageBody = 
           this.getClass().getName() + " (thread \"" + Thread.currentThread().getName() + "\") sending at " + new Date();
-      Message message = wlmConnection.getSession().createTextMessage(exampleMessageBody);
-      out.println("Sending message \"" + exampleMessageBody + "\"");
       
-      // Send the message
-      wlmConnection.getProducer().send(message, 
-          DeliveryMode.PERSISTENT, /* We are persistent in this example */  
-          wlmConnection.getProducer().getPriority() /* Default priority */, 
-          0 /* Do not expire */);
-      out.println("JMSMessageID: " + message.getJMSMessageID());
+      if (WLMJMSContextCreator.isSupported()) {
+        // With JMS 2.0 we use a JMSContext. As it comes from our container-managed connection
+        // factory, it is enlisted in the user transaction in the same way as a JMS 1.1 Connection,
+        // so the send is committed (or rolled back) with any JDBC work.
+        wlmContext = wlmJMSAttach.getContext(fireAndForgetTarget, true, Session.AUTO_ACKNOWLEDGE, deadline);
+        out.println("Connected using a JMS 2.0 context to gateway " + (wlmContext.getGatewayIndex() + 1));
+        Message message = wlmContext.createTextMessage(exampleMessageBody);
+        out.println("Sending message \"" + exampleMessageBody + "\"");
+        
+        // Send the message. The simplified API sends persistent messages by default.
+        wlmContext.send(message);
+        out.println("JMSMessageID: " + message.getJMSMessageID());
+      }
+      else {
+        wlmConnection = wlmJMSAttach.getMessageProducer(fireAndForgetTarget, true, Session.AUTO_ACKNOWLEDGE, deadline);
+      
+        // TODO: Replace this section with business logic      
+        // We create a temporary queue solely for the purpose of finding out where
+        // we are connected, as the temporary queue name should show this.
+        // This is inefficient, so it is for demonstration purposes only.
+        TemporaryQueue temporaryQueue = wlmConnection.getSession().createTemporaryQueue();
+        String temporaryQueueName = temporaryQueue.getQueueName();
+        out.println("Temporary queue showing where we are connected:");
+        out.println(temporaryQueueName);
+        temporaryQueue.delete();
+        Message message = wlmConnection.getSession().createTextMessage(exampleMessageBody);
+        out.println("Sending message \"" + exampleMessageBody + "\"");
+      
+        // Send the message
+        wlmConnection.send(message, 
+            DeliveryMode.PERSISTENT, /* We are persistent in this example */  
+            wlmConnection.getProducer().getPriority() /* Default priority */, 
+            0 /* Do not expire */);
+        out.println("JMSMessageID: " + message.getJMSMessageID());
+      }
       
       // Commit the transaction
       userTransaction.commit();
@@ -202,6 +220,12 @@ public class FireAndForget extends HttpServlet {
       catch (JMSException e) {
         throw new ServletException("JMSException on Connection close: " + e.getMessage(), e); 
       }
+      if (wlmContext != null) try {
+        wlmContext.close(complete);
+      }
+      catch (JMSException e) {
+        throw new ServletException("JMSException on JMSContext close: " + e.getMessage(), e); 
+      }
     }
     
   }
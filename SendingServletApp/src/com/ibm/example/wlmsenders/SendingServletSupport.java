@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright � 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmsenders;
+
+import javax.naming.NamingException;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+
+import com.ibm.example.wlmjmsattach.WLMJMSAttach;
+import com.ibm.example.wlmjmsattach.WLMJMSAttachConfig;
+
+/**
+ * Setup shared by our sending servlets
+ */
+final class SendingServletSupport {
+
+  /** The context-param giving the most time we allow ourselves to respond to an HTTP request */
+  static final String REQUEST_BUDGET_PARAM = "wlmRequestBudgetMillis";
+  
+  /** The HTTP header, or request parameter, a client can use to give us less time than that */
+  static final String REQUEST_BUDGET_HEADER = "X-WLM-Request-Budget-Millis";
+  
+  /** The time we allow ourselves if the context-param is not set */
+  static final long DEFAULT_REQUEST_BUDGET_MILLIS = 30000;
+
+  /**
+   * Private constructor
+   */
+  private SendingServletSupport() {
+  }
+  
+  /**
+   * Construct the WLM JMS Attachment object for one of our servlets.
+   * We cache the connection factories for the servlet, so only its first instance does the
+   * JNDI lookups, and later instances attach straight away. The cache must be keyed by a name
+   * unique to the component, as each has its own resource reference bindings. Our servlets are
+   * each declared once with @WebServlet, so the class name is unique. If you declare a servlet
+   * class more than once (for example in web.xml, with different bindings), use the servlet name.
+   * @param servletClass The class of the servlet
+   * @return The WLM JMS Attachment object
+   * @throws NamingException if the connection factories cannot be looked up
+   */
+  static WLMJMSAttach createWLMJMSAttach(Class<? extends HttpServlet> servletClass) throws NamingException {
+    return new WLMJMSAttach(
+        WLMJMSAttach.DEFAULT_RES_REF_PREFIX,
+        new WLMJMSAttachConfig()
+          .setInitialDelayMillis(WLMJMSAttach.DEFAULT_INITIAL_DELAY_MS)
+          .setTimeoutMillis(WLMJMSAttach.DEFAULT_TIMEOUT_MS)
+          .setFailedGatewayRetry(WLMJMSAttach.DEFAULT_FAILED_GATEWAY_RETRY_MS)
+          .setCacheComponentName(servletClass.getName()));
+  }
+  
+  /**
+   * Work out the deadline for our response to an HTTP request, including any retries connecting
+   * to the gateways, which we pass on to the WLM logic so we do not keep retrying after our own
+   * client has given up on us.
+   * The budget is the wlmRequestBudgetMillis context-param in web.xml. A client that will give up
+   * sooner can tell us so with the X-WLM-Request-Budget-Millis header, or a request parameter of
+   * the same name, but cannot give us longer than the context-param allows.
+   * @param context The servlet context
+   * @param request The HTTP request
+   * @return The deadline, as a System.currentTimeMillis() value
+   */
+  static long getDeadline(ServletContext context, HttpServletRequest request) {
+    long now = System.currentTimeMillis();
+    long budget = parseMillis(context.getInitParameter(REQUEST_BUDGET_PARAM), DEFAULT_REQUEST_BUDGET_MILLIS);
+    String requested = request.getHeader(REQUEST_BUDGET_HEADER);
+    if (requested == null) requested = request.getParameter(REQUEST_BUDGET_HEADER);
+    long requestedBudget = parseMillis(requested, budget);
+    if (requestedBudget < budget) budget = requestedBudget;
+    return now + budget;
+  }
+  
+  /**
+   * Parse a number of milliseconds, ignoring anything that is not a positive number
+   * @param value The value, or null
+   * @param defaultValue The value to use if it is missing or invalid
+   * @return The number of milliseconds
+   */
+  private static long parseMillis(String value, long defaultValue) {
+    if (value == null) return defaultValue;
+    try {
+      long millis = Long.parseLong(value.trim());
+      return millis > 0 ? millis : defaultValue;
+    }
+    catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+  
+}
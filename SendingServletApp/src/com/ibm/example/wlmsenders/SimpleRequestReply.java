@@ -35,6 +35,7 @@ import javax.servlet.http.HttpServletResponse;
 import javax.transaction.UserTransaction;
 
 import com.ibm.example.wlmjmsattach.WLMJMSAttach;
+import com.ibm.example.wlmjmsattach.WLMJMSDeadlineUtils;
 import com.ibm.example.wlmjmsattach.WLMJMSLogger;
 import com.ibm.example.wlmjmsattach.WLMJMSMessageProducer;
 import com.ibm.example.wlmjmsattach.WLMJMSTranUtils;
@@ -83,11 +84,7 @@ public class SimpleRequestReply extends HttpServlet {
     
     // Construct the WLM JMS Attachment object
     try {
-      wlmJMSAttach = new WLMJMSAttach(
-          WLMJMSAttach.DEFAULT_RES_REF_PREFIX,
-          WLMJMSAttach.DEFAULT_INITIAL_DELAY_MS,
-          WLMJMSAttach.DEFAULT_TIMEOUT_MS,
-          WLMJMSAttach.DEFAULT_FAILED_GATEWAY_RETRY_MS);
+      wlmJMSAttach = SendingServletSupport.createWLMJMSAttach(getClass());
     }
     catch (NamingException e) {
       throw new RuntimeException("Failed to initialize: " + e.getMessage(), e);
@@ -103,6 +100,9 @@ public class SimpleRequestReply extends HttpServlet {
       throws ServletException, IOException {
     final String methodName = "doGet";
     
+    // Work out the deadline for our response
+    long deadline = SendingServletSupport.getDeadline(getServletContext(), request);
+    
     // We simply return some text showing what we've done
     response.setContentType("text/plain");
     PrintWriter out = response.getWriter();
@@ -119,7 +119,7 @@ public class SimpleRequestReply extends HttpServlet {
       // This is important as we need the message to be committed as
       // soon as we send it, as we will begin listening for a reply
       out.println("JMS request destination: " + requestQueue);
-      wlmConnection = wlmJMSAttach.getMessageProducer(requestQueue, false, Session.AUTO_ACKNOWLEDGE);
+      wlmConnection = wlmJMSAttach.getMessageProducer(requestQueue, false, Session.AUTO_ACKNOWLEDGE, deadline);
 
       // TODO: Replace this section with business logic      
       // We create a temporary queue solely for the purpose of finding out where
@@ -147,11 +147,17 @@ public class SimpleRequestReply extends HttpServlet {
       // a full copy of the message, and to have an asynchronous task that
       // looks on the reply-queue for report messages and performs recovery,
       // or notifies an operator.
+      // Here the request expires at our deadline, which is also stamped on the
+      // request so the MDB can skip it if it arrives too late for us to use the reply.
       int deliveryMode = DeliveryMode.NON_PERSISTENT;  
-      long timeToLive = 30000;
+      long timeToLive = WLMJMSDeadlineUtils.remainingMillis(deadline);
+      if (timeToLive == 0) {
+        throw new ServletException("Deadline passed before sending the request");
+      }
+      WLMJMSDeadlineUtils.setDeadline(message, deadline);
       
       // Send the message
-      wlmConnection.getProducer().send(message, 
+      wlmConnection.send(message, 
           deliveryMode, 
           wlmConnection.getProducer().getPriority() /* Default priority */, 
           timeToLive);
@@ -164,9 +170,10 @@ public class SimpleRequestReply extends HttpServlet {
       MessageConsumer consumer = wlmConnection.getSession().createConsumer(simpleReplyQueue, selector);
       wlmConnection.getConnection().start();
       
-      // Listen for a reply, up to the expiration time we specified on the request
+      // Listen for a reply, up to our deadline. Note a timeout of 0 would wait forever
       long receiveStartTime = System.currentTimeMillis();
-      Message replyMessage = consumer.receive(timeToLive);
+      long receiveTimeout = WLMJMSDeadlineUtils.remainingMillis(deadline);
+      Message replyMessage = receiveTimeout > 0 ? consumer.receive(receiveTimeout) : consumer.receiveNoWait();
       if (replyMessage == null) {
         throw new ServletException("Did not receive a reply message. Waited for " +
             (System.currentTimeMillis() - receiveStartTime) + "ms.");
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright � 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmsenders;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+import com.ibm.example.wlmjmsattach.WLMJMSAttach;
+
+/**
+ * Stops the background work of the WLM logic when the application stops.
+ * The WLM library is packaged in our EAR, so its threads, cached connection factories
+ * and any JMX MBeans belong to our application, and would otherwise outlive it
+ * (keeping our classloader in memory) each time the application is restarted.
+ */
+@WebListener
+public class WLMShutdownListener implements ServletContextListener {
+
+  /**
+   * @see ServletContextListener#contextInitialized(ServletContextEvent)
+   */
+  public void contextInitialized(ServletContextEvent event) {
+  }
+
+  /**
+   * @see ServletContextListener#contextDestroyed(ServletContextEvent)
+   */
+  public void contextDestroyed(ServletContextEvent event) {
+    WLMJMSAttach.shutdown();
+  }
+
+}
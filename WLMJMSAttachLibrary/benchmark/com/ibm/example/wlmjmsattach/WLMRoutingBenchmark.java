@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A simple stand-alone benchmark of the routing strategies, showing how selection
+ * throughput scales with the number of threads.
+ * This is not part of the library. It is in the same package so it can use the
+ * package private WLM state, and can be run with the library on the classpath:
+ * 
+ *   java -cp bin:benchmark com.ibm.example.wlmjmsattach.WLMRoutingBenchmark [gateways] [maxThreads] [seconds]
+ * 
+ * For each thread count it prints the selections per second, and the spread of
+ * selections across the gateways (the largest share divided by the smallest).
+ */
+public class WLMRoutingBenchmark {
+
+  /**
+   * The original round-robin implementation, with every thread sharing one AtomicInteger,
+   * for comparison.
+   */
+  static class SharedCounterStrategy implements WLMRoutingStrategy {
+    private final AtomicInteger wlmCounter = new AtomicInteger(0);
+    public int selectGateway(WLMGatewayStatus gateways) {
+      return (wlmCounter.getAndIncrement() & Integer.MAX_VALUE) % gateways.getGatewayCount();
+    }
+    @Override
+    public String toString() {
+      return "Shared AtomicInteger";
+    }
+  }
+  
+  /**
+   * Run the benchmark
+   * @param args [gateways] [maxThreads] [seconds]
+   */
+  public static void main(String[] args) throws Exception {
+    int gatewayCount = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+    int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors() * 2;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+    System.out.println("Gateways: " + gatewayCount + ", processors: " + Runtime.getRuntime().availableProcessors());
+    
+    WLMRoutingStrategy[] strategies = new WLMRoutingStrategy[] {
+        new SharedCounterStrategy(), new WLMRoundRobinStrategy() };
+    for (WLMRoutingStrategy strategy : strategies) {
+      String name = strategy instanceof SharedCounterStrategy ? strategy.toString() : strategy.getClass().getSimpleName();
+      System.out.println(name);
+      for (int threads = 1; threads <= maxThreads; threads *= 2) {
+        run(new WLMResourceReferenceState(gatewayCount, new WLMJMSAttachConfig().setRoutingStrategy(strategy)), threads, seconds);
+      }
+    }
+  }
+  
+  /**
+   * Run a single measurement
+   */
+  private static void run(final WLMResourceReferenceState state, int threads, int seconds) throws InterruptedException {
+    final int gatewayCount = state.getGatewayCount();
+    final AtomicLongArray selections = new AtomicLongArray(gatewayCount);
+    final CountDownLatch start = new CountDownLatch(1);
+    final long endTime = System.nanoTime() + seconds * 1000000000L;
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      workers[t] = new Thread() {
+        @Override
+        public void run() {
+          long[] counts = new long[gatewayCount];
+          try {
+            start.await();
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+          // Check the time every 1024 selections, so the clock does not dominate
+          while (System.nanoTime() < endTime) {
+            for (int i = 0; i < 1024; i++) counts[state.nextIndex()]++;
+          }
+          for (int i = 0; i < gatewayCount; i++) selections.addAndGet(i, counts[i]);
+        }
+      };
+      workers[t].start();
+    }
+    start.countDown();
+    for (Thread worker : workers) worker.join();
+    
+    long total = 0, min = Long.MAX_VALUE, max = 0;
+    for (int i = 0; i < gatewayCount; i++) {
+      long count = selections.get(i);
+      total += count;
+      min = Math.min(min, count);
+      max = Math.max(max, count);
+    }
+    System.out.println(String.format("  threads=%3d  selections/sec=%,15d  spread=%.4f",
+        threads, total / seconds, min > 0 ? (double)max / min : Double.POSITIVE_INFINITY));
+  }
+  
+}
@@ -0,0 +1,618 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+
+/**
+ * Sends messages to a destination asynchronously, spread across the gateways, telling the caller
+ * the outcome of each send through a listener.
+ * 
+ * Where the JMS provider supports JMS 2.0, each gateway has a producer that sends using
+ * MessageProducer.send(..., CompletionListener), so sends are pipelined on the wire: a send does
+ * not wait for the round trip to the queue manager before the next one is made. This is what
+ * gives the throughput for non-persistent traffic. This library is built against JMS 1.1, so the
+ * JMS 2.0 method is called by reflection.
+ * 
+ * FALLBACK: If the provider only supports JMS 1.1, or rejects asynchronous sends (the JMS 2.0
+ * specification does not allow them in the web and EJB containers of a JavaEE server, where they
+ * fail with an IllegalStateException), the sender falls back to making one synchronous send at a time
+ * for each gateway on a background thread. The caller's thread is still freed and the sends are still
+ * spread across the gateways, but there is no pipelining, so the throughput of each gateway is the
+ * same as sending synchronously. {@link #isPipelined()} reports which mode the sender is in.
+ * 
+ * The number of outstanding sends on each gateway is capped, counting both the sends queued and
+ * those still waiting for their completion callback. The caller blocks once every healthy gateway
+ * is at its cap. If a send fails, the gateway is marked as failed, and the message (along with
+ * everything queued behind it) is re-routed to another gateway, preferring healthy ones.
+ * A message is only reported as failed once it has been tried on every gateway.
+ * 
+ * The sends for each gateway are made by a task on the shared pool of worker threads, which is also used
+ * by hedged and asynchronous connection attempts. A gateway's task holds a worker thread while it has
+ * sends queued: briefly when pipelining, but for the whole of each send in the fallback mode, so a
+ * busy fallback sender can delay hedging and asynchronous retries. Completion callbacks are made on
+ * the JMS provider's threads.
+ * 
+ * Messages can be created with any session of the same JMS provider, and must not be used by the
+ * caller once they have been passed to send. 
+ * NOTE: The sends are made on unmanaged background threads, outside of any transaction, so this is
+ * intended for non-transacted fire-and-forget traffic.
+ * Obtain an instance from {@link WLMJMSAttach#createBackgroundSender(Destination, int)}.
+ */
+public class WLMBackgroundSender {
+
+  /** A logger */
+  private static final WLMJMSLogger log = new WLMJMSLogger(WLMBackgroundSender.class);
+  
+  /** The WLM instance we connect through */
+  private final WLMJMSAttach wlmJMSAttach;
+  
+  /** The shared WLM state */
+  private final WLMResourceReferenceState wlmState;
+  
+  /** The destination we send to */
+  private final Destination dest;
+  
+  /** The maximum number of outstanding sends on each gateway */
+  private final int maxOutstandingPerGateway;
+  
+  /** The lane for each gateway */
+  private final Lane[] lanes;
+  
+  /** Whether we have been closed */
+  private volatile boolean closed = false;
+  
+  /** Whether we send with JMS 2.0 completion listeners, until the provider shows it cannot */
+  private volatile boolean pipelined = ASYNC_SEND_METHOD != null;
+  
+  /** The JMS 2.0 javax.jms.CompletionListener interface, or null if the JMS API is 1.1 */
+  private static final Class<?> COMPLETION_LISTENER_CLASS;
+  
+  /** The JMS 2.0 MessageProducer.send(Message, int, int, long, CompletionListener), or null if the JMS API is 1.1 */
+  private static final Method ASYNC_SEND_METHOD;
+  
+  static {
+    Class<?> completionListenerClass = null;
+    Method asyncSendMethod = null;
+    try {
+      completionListenerClass = Class.forName("javax.jms.CompletionListener", false, MessageProducer.class.getClassLoader());
+      asyncSendMethod = MessageProducer.class.getMethod("send", 
+          Message.class, int.class, int.class, long.class, completionListenerClass);
+    }
+    catch (ClassNotFoundException e) {
+      // JMS 1.1, so we use the fallback
+    }
+    catch (NoSuchMethodException e) {
+      // JMS 1.1, so we use the fallback
+    }
+    COMPLETION_LISTENER_CLASS = completionListenerClass;
+    ASYNC_SEND_METHOD = asyncSendMethod;
+  }
+  
+  /**
+   * Constructor (package private)
+   * @param wlmJMSAttach The WLM instance we connect through
+   * @param wlmState The shared WLM state
+   * @param dest The destination we send to
+   * @param maxOutstandingPerGateway The maximum number of outstanding sends on each gateway
+   */
+  WLMBackgroundSender(WLMJMSAttach wlmJMSAttach, WLMResourceReferenceState wlmState, Destination dest, int maxOutstandingPerGateway) {
+    if (maxOutstandingPerGateway <= 0) throw new IllegalArgumentException();
+    this.wlmJMSAttach = wlmJMSAttach;
+    this.wlmState = wlmState;
+    this.dest = dest;
+    this.maxOutstandingPerGateway = maxOutstandingPerGateway;
+    this.lanes = new Lane[wlmState.getGatewayCount()];
+    for (int i = 0; i < lanes.length; i++) lanes[i] = new Lane(i);
+  }
+  
+  /**
+   * Send a message asynchronously, with the default delivery mode, priority and time to live.
+   * @param message The message
+   * @param listener The listener to tell when the send completes
+   * @throws InterruptedException if we are interrupted waiting for room on a gateway
+   */
+  public void send(Message message, WLMCompletionListener listener) throws InterruptedException {
+    send(message, Message.DEFAULT_DELIVERY_MODE, Message.DEFAULT_PRIORITY, Message.DEFAULT_TIME_TO_LIVE, listener);
+  }
+  
+  /**
+   * Send a message asynchronously.
+   * The gateway is chosen by the routing strategy, moving on to the next healthy gateway if
+   * the chosen one has its maximum outstanding sends. If all the healthy gateways are full,
+   * we wait for room on the chosen one.
+   * @param message The message
+   * @param deliveryMode The delivery mode to use
+   * @param priority The priority for this message
+   * @param timeToLive The message's lifetime (in milliseconds)
+   * @param listener The listener to tell when the send completes
+   * @throws InterruptedException if we are interrupted waiting for room on a gateway
+   */
+  public void send(Message message, int deliveryMode, int priority, long timeToLive, WLMCompletionListener listener) throws InterruptedException {
+    if (closed) throw new IllegalStateException("Sender closed");
+    PendingSend pendingSend = new PendingSend(message, deliveryMode, priority, timeToLive, listener, lanes.length);
+    int firstIndex = wlmState.nextIndex();
+    int chosenIndex = -1;
+    for (int i = 0; i < lanes.length; i++) {
+      int cfIndex = (firstIndex + i) % lanes.length;
+      if (!wlmState.isHealthy(cfIndex)) continue;
+      if (chosenIndex < 0) chosenIndex = cfIndex;
+      if (lanes[cfIndex].trySubmit(pendingSend)) return;
+    }
+    // Everything healthy is full, so wait on the gateway we chose. If nothing is healthy, we
+    // try the routing strategy's choice anyway, and the lane's connection attempt finds out if it has recovered.
+    lanes[chosenIndex >= 0 ? chosenIndex : firstIndex].submit(pendingSend);
+  }
+  
+  /**
+   * @return Whether sends are pipelined using JMS 2.0 completion listeners, rather than
+   *         being made one at a time on each gateway by the fallback for JMS 1.1
+   */
+  public boolean isPipelined() {
+    return pipelined;
+  }
+  
+  /**
+   * @param cfIndex The index of the gateway
+   * @return The number of sends queued, or waiting for their completion callback, on the gateway
+   */
+  public int getOutstanding(int cfIndex) {
+    return lanes[cfIndex].getOutstanding();
+  }
+  
+  /**
+   * Wait for all outstanding sends to complete, including their completion callbacks, then close the connections.
+   * Messages re-routed while we are closing are still sent.
+   * @throws InterruptedException if we are interrupted waiting for the sends
+   */
+  public void close() throws InterruptedException {
+    closed = true;
+    // A lane can have sends re-routed to it after we've waited for it, so keep
+    // going until we find all the lanes idle
+    boolean idle;
+    do {
+      for (Lane lane : lanes) lane.awaitEmpty();
+      idle = true;
+      for (Lane lane : lanes) idle &= lane.isIdle();
+    } while (!idle);
+    for (Lane lane : lanes) lane.closeProducer();
+  }
+  
+  /**
+   * Send a message to another gateway after a failure, or tell the listener it has failed.
+   * The next gateway the message has not been tried on is used, preferring healthy gateways.
+   * We only go to an unhealthy one if no healthy one is left, in which case its lane's connection
+   * attempt finds out if it has recovered. A message queued behind the failure was not tried on
+   * the failed gateway, but we still move it elsewhere first.
+   * @param pendingSend The send
+   * @param failedIndex The gateway that failed
+   * @param tried Whether the send was attempted on the failed gateway, rather than queued behind the failure
+   * @param e The exception from the failure
+   */
+  private void reroute(PendingSend pendingSend, int failedIndex, boolean tried, JMSException e) {
+    final String methodName = "reroute";
+    if (tried) pendingSend.tried[failedIndex] = true;
+    // The failed gateway comes last in our search, so it is only used by a send that was queued
+    // behind the failure, when every other gateway has been tried
+    int healthyIndex = -1;
+    int untriedIndex = -1;
+    for (int i = 1; i <= lanes.length && healthyIndex < 0; i++) {
+      int cfIndex = (failedIndex + i) % lanes.length;
+      if (pendingSend.tried[cfIndex]) continue;
+      if (cfIndex != failedIndex && wlmState.isHealthy(cfIndex)) healthyIndex = cfIndex;
+      else if (untriedIndex < 0) untriedIndex = cfIndex;
+    }
+    int cfIndex = healthyIndex >= 0 ? healthyIndex : untriedIndex;
+    if (cfIndex >= 0 && submitRerouted(pendingSend, failedIndex, cfIndex)) return;
+    pendingSend.failed(e);
+  }
+  
+  /**
+   * Queue a re-routed send on another gateway
+   * @return Whether we queued it. If not we are shutting down.
+   */
+  private boolean submitRerouted(PendingSend pendingSend, int failedIndex, int cfIndex) {
+    final String methodName = "submitRerouted";
+    if (log.traceEnabled()) log.trace(methodName, "Rerouting send from connection {0} to {1}", failedIndex, cfIndex);
+    try {
+      lanes[cfIndex].forceSubmit(pendingSend);
+      return true;
+    }
+    catch (RejectedExecutionException re) {
+      // We're shutting down
+      return false;
+    }
+  }
+  
+  /**
+   * A single message waiting to be sent
+   */
+  private static final class PendingSend {
+    private final Message message;
+    private final int deliveryMode;
+    private final int priority;
+    private final long timeToLive;
+    private final WLMCompletionListener listener;
+    /** The gateways the send has been attempted on. Only used by the lane currently holding the send. */
+    private final boolean[] tried;
+    /** When the send was made, for the latency-aware routing strategies */
+    private long sendStartTime;
+    
+    PendingSend(Message message, int deliveryMode, int priority, long timeToLive, WLMCompletionListener listener, int gatewayCount) {
+      this.message = message;
+      this.deliveryMode = deliveryMode;
+      this.priority = priority;
+      this.timeToLive = timeToLive;
+      this.listener = listener;
+      this.tried = new boolean[gatewayCount];
+    }
+    
+    void completed() {
+      try {
+        listener.onCompletion(message);
+      }
+      catch (RuntimeException e) {
+        WLMJMSAttach.logListenerException(e);
+      }
+    }
+    
+    void failed(JMSException e) {
+      try {
+        listener.onException(message, e);
+      }
+      catch (RuntimeException re) {
+        WLMJMSAttach.logListenerException(re);
+      }
+    }
+  }
+  
+  /**
+   * The JMS 2.0 completion listener for a single producer, which is a java.lang.reflect.Proxy
+   * for javax.jms.CompletionListener. The JMS provider makes the callbacks for a session in the
+   * order the sends were made, so we keep the sends waiting for a callback in a queue.
+   */
+  private final class Callbacks implements InvocationHandler {
+    private final Lane lane;
+    private final LinkedList<PendingSend> awaiting = new LinkedList<PendingSend>();
+    /** The proxy passed to the JMS provider */
+    private final Object completionListener;
+    /** Set once any send on the producer has failed, so the lane replaces the producer */
+    private volatile boolean failed = false;
+    /** Whether any asynchronous send has been made on the producer. Only used by the worker. */
+    private boolean anySent = false;
+    
+    Callbacks(Lane lane) {
+      this.lane = lane;
+      this.completionListener = Proxy.newProxyInstance(COMPLETION_LISTENER_CLASS.getClassLoader(),
+          new Class<?>[] { COMPLETION_LISTENER_CLASS }, this);
+    }
+    
+    /**
+     * Record a send we are about to make. The callback can come before the send returns.
+     */
+    synchronized void sending(PendingSend pendingSend) {
+      awaiting.add(pendingSend);
+    }
+    
+    /**
+     * Forget a send that failed before it was made, so will not get a callback
+     */
+    synchronized void notSent(PendingSend pendingSend) {
+      awaiting.remove(pendingSend);
+      wlmState.sendEnded(lane.cfIndex);
+    }
+    
+    /**
+     * Find the send a callback is for, which is normally the oldest
+     */
+    private synchronized PendingSend take(Object message) {
+      for (Iterator<PendingSend> it = awaiting.iterator(); it.hasNext(); ) {
+        PendingSend pendingSend = it.next();
+        if (pendingSend.message == message) {
+          it.remove();
+          return pendingSend;
+        }
+      }
+      return null;
+    }
+    
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      final String methodName = "Callbacks.invoke";
+      String name = method.getName();
+      if (name.equals("onCompletion")) {
+        PendingSend pendingSend = take(args[0]);
+        if (pendingSend != null) {
+          wlmState.sendEnded(lane.cfIndex);
+          wlmState.recordSendLatency(lane.cfIndex, System.nanoTime() - pendingSend.sendStartTime);
+          pendingSend.completed();
+          lane.sendEnded(1);
+        }
+        return null;
+      }
+      if (name.equals("onException")) {
+        PendingSend pendingSend = take(args[0]);
+        if (pendingSend != null) {
+          wlmState.sendEnded(lane.cfIndex);
+          JMSException failure = toJMSException((Exception)args[1]);
+          // Only the first failure on a producer counts against the gateway 
+          boolean first = !failed;
+          failed = true;
+          if (first) {
+            if (log.enabled()) log.logRootExMsgRateLimited(methodName, "Send failed on connection " + lane.cfIndex, failure);
+            wlmState.setLastConnectionFailed(lane.cfIndex);
+          }
+          reroute(pendingSend, lane.cfIndex, true, failure);
+          lane.sendEnded(1);
+        }
+        return null;
+      }
+      // Methods of java.lang.Object
+      if (name.equals("equals")) return proxy == args[0];
+      if (name.equals("hashCode")) return System.identityHashCode(proxy);
+      return "WLMBackgroundSender.Callbacks[" + lane.cfIndex + "]";
+    }
+  }
+  
+  /**
+   * @param e An exception from the JMS provider
+   * @return The exception as a JMSException
+   */
+  private static JMSException toJMSException(Throwable e) {
+    if (e instanceof JMSException) return (JMSException)e;
+    JMSException jmsException = new JMSException(String.valueOf(e.getMessage()));
+    if (e instanceof Exception) jmsException.setLinkedException((Exception)e);
+    return jmsException;
+  }
+  
+  /**
+   * The queue of sends for a single gateway, and the background work that sends them.
+   * The producer is only used by the running worker, or by close once the lane is empty.
+   */
+  private final class Lane implements Runnable {
+    private final int cfIndex;
+    private final LinkedList<PendingSend> queue = new LinkedList<PendingSend>();
+    /** The sends queued, in progress or waiting for their completion callback */
+    private int outstanding = 0;
+    private boolean running = false;
+    private WLMJMSMessageProducer producer = null;
+    /** The completion listener for the producer, if we are pipelining */
+    private Callbacks callbacks = null;
+    /** The arguments for the asynchronous send, reused as only the worker sends */
+    private final Object[] asyncSendArgs = new Object[5];
+    
+    Lane(int cfIndex) {
+      this.cfIndex = cfIndex;
+    }
+    
+    synchronized int getOutstanding() {
+      return outstanding;
+    }
+    
+    /**
+     * Queue a send if we have room
+     * @return Whether we queued it
+     */
+    synchronized boolean trySubmit(PendingSend pendingSend) {
+      if (outstanding >= maxOutstandingPerGateway) return false;
+      enqueue(pendingSend);
+      return true;
+    }
+    
+    /**
+     * Queue a send, waiting for room
+     */
+    synchronized void submit(PendingSend pendingSend) throws InterruptedException {
+      while (outstanding >= maxOutstandingPerGateway) wait();
+      enqueue(pendingSend);
+    }
+    
+    /**
+     * Queue a re-routed send, even if we are full. The worker threads and completion 
+     * callbacks must never block waiting for each other.
+     */
+    synchronized void forceSubmit(PendingSend pendingSend) {
+      enqueue(pendingSend);
+    }
+    
+    /**
+     * Add a send to our queue, starting the worker if it is not running.
+     * Must be called while synchronized on the lane.
+     */
+    private void enqueue(PendingSend pendingSend) {
+      outstanding++;
+      queue.add(pendingSend);
+      if (!running) {
+        running = true;
+        try {
+          WLMScheduler.getExecutor().execute(this);
+        }
+        catch (RejectedExecutionException e) {
+          // We're shutting down
+          running = false;
+          outstanding--;
+          queue.removeLast();
+          throw e;
+        }
+      }
+    }
+    
+    /**
+     * Send everything in our queue, then stop. We're restarted when something else is queued.
+     * When pipelining, the sends that are still waiting for their callbacks stay outstanding after we stop.
+     */
+    public void run() {
+      final String methodName = "Lane.run";
+      while (true) {
+        PendingSend pendingSend;
+        synchronized (this) {
+          pendingSend = queue.poll();
+          if (pendingSend == null) {
+            running = false;
+            notifyAll();
+            return;
+          }
+        }
+        JMSException failure = null;
+        boolean connecting = producer == null;
+        boolean attempted = true;
+        boolean sentAsync = false;
+        if (callbacks != null && callbacks.failed) {
+          // An asynchronous send on our producer has failed, and been recorded against the gateway.
+          // Replace the producer, moving everything queued for it elsewhere as for a synchronous failure.
+          failure = new JMSException("An earlier send failed on connection " + cfIndex);
+          attempted = false;
+        }
+        else {
+          try {
+            if (connecting) {
+              producer = wlmJMSAttach.connectToGateway(cfIndex, dest);
+              callbacks = pipelined ? new Callbacks(this) : null;
+            }
+            connecting = false;
+            if (callbacks != null) sentAsync = sendAsync(pendingSend);
+            if (!sentAsync) producer.send(pendingSend.message, pendingSend.deliveryMode, pendingSend.priority, pendingSend.timeToLive);
+          }
+          catch (JMSException e) {
+            failure = e;
+          }
+          catch (RuntimeException e) {
+            if (log.enabled()) log.logExStack(methodName, "Unexpected exception", e);
+            failure = new JMSException("Unexpected exception: " + e);
+            failure.setLinkedException(e);
+          }
+        }
+        
+        if (failure == null) {
+          // An asynchronous send completes in its callback
+          if (!sentAsync) {
+            pendingSend.completed();
+            sendEnded(1);
+          }
+        }
+        else {
+          // Our gateway is in trouble. Move this send, and everything queued behind it, elsewhere.
+          if (log.enabled()) log.logRootExMsgRateLimited(methodName, "Send failed on connection " + cfIndex, failure);
+          // A failed connection attempt, or a failed asynchronous send, has already been recorded against the gateway
+          if (!connecting && attempted) wlmState.setLastConnectionFailed(cfIndex);
+          // The callbacks of any asynchronous sends in progress must not record the failure again
+          if (callbacks != null) callbacks.failed = true;
+          // Closing waits for any asynchronous sends still in progress, whose callbacks re-route them
+          closeProducer();
+          List<PendingSend> queuedBehind;
+          synchronized (this) {
+            queuedBehind = new ArrayList<PendingSend>(queue);
+            queue.clear();
+          }
+          // Only the send we attempted counts as tried on this gateway
+          reroute(pendingSend, cfIndex, attempted, failure);
+          for (PendingSend send : queuedBehind) reroute(send, cfIndex, false, failure);
+          sendEnded(queuedBehind.size() + 1);
+        }
+      }
+    }
+    
+    /**
+     * Make a JMS 2.0 asynchronous send, whose outcome is reported to our callbacks.
+     * If the provider turns out not to support them, the sender switches to the fallback.
+     * @return Whether the send was made asynchronously. If not, send it synchronously.
+     * @throws JMSException if the send fails
+     */
+    private boolean sendAsync(PendingSend pendingSend) throws JMSException {
+      final String methodName = "sendAsync";
+      asyncSendArgs[0] = pendingSend.message;
+      asyncSendArgs[1] = Integer.valueOf(pendingSend.deliveryMode);
+      asyncSendArgs[2] = Integer.valueOf(pendingSend.priority);
+      asyncSendArgs[3] = Long.valueOf(pendingSend.timeToLive);
+      asyncSendArgs[4] = callbacks.completionListener;
+      // Counted as in progress on the gateway until its callback, for the least-in-flight strategy
+      pendingSend.sendStartTime = wlmState.sendStarted(cfIndex);
+      callbacks.sending(pendingSend);
+      try {
+        ASYNC_SEND_METHOD.invoke(producer.getProducer(), asyncSendArgs);
+        callbacks.anySent = true;
+        return true;
+      }
+      catch (InvocationTargetException e) {
+        callbacks.notSent(pendingSend);
+        Throwable cause = e.getCause();
+        // An IllegalStateException on a producer that has already sent means it is broken, rather than
+        // that asynchronous sends are not allowed
+        if (cause instanceof AbstractMethodError || cause instanceof UnsupportedOperationException ||
+            (cause instanceof javax.jms.IllegalStateException && !callbacks.anySent)) {
+          // The provider implements JMS 1.1 only, or does not allow asynchronous sends here
+          if (pipelined && log.enabled()) log.debug(methodName, "Asynchronous send not available, using the fallback: " + cause);
+          pipelined = false;
+          callbacks = null;
+          return false;
+        }
+        if (cause instanceof Error) throw (Error)cause;
+        throw toJMSException(cause);
+      }
+      catch (IllegalAccessException e) {
+        callbacks.notSent(pendingSend);
+        throw toJMSException(e);
+      }
+      finally {
+        asyncSendArgs[0] = null;
+      }
+    }
+    
+    /**
+     * Make room for more sends
+     * @param count The number of sends that have left the lane
+     */
+    private synchronized void sendEnded(int count) {
+      outstanding -= count;
+      notifyAll();
+    }
+    
+    /**
+     * Wait for the lane to be empty, the worker to stop and the callbacks to be made
+     */
+    synchronized void awaitEmpty() throws InterruptedException {
+      while (!isIdle()) wait();
+    }
+    
+    /**
+     * @return Whether the lane is empty, the worker has stopped and the callbacks have been made
+     */
+    synchronized boolean isIdle() {
+      return !running && outstanding == 0;
+    }
+    
+    /**
+     * Close our producer. Only called by the worker, or once the worker has stopped.
+     * Never called from a completion callback, as JMS does not allow it.
+     */
+    void closeProducer() {
+      if (producer != null) {
+        WLMJMSAttach.closeQuietly(producer);
+        producer = null;
+        callbacks = null;
+      }
+    }
+  }
+  
+}
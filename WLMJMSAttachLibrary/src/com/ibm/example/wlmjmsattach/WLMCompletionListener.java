@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * A callback for the sends of a {@link WLMBackgroundSender}, called once when each send completes.
+ * This mirrors the JMS 2.0 CompletionListener, for use with JMS 1.1 providers.
+ * The callback is made on a background thread, so implementations should be quick and must not block.
+ */
+public interface WLMCompletionListener {
+
+  /**
+   * Called when a message has been sent
+   * @param message The message
+   */
+  public void onCompletion(Message message);
+  
+  /**
+   * Called when a message could not be sent on any gateway
+   * @param message The message
+   * @param e The last exception encountered
+   */
+  public void onException(Message message, JMSException e);
+  
+}
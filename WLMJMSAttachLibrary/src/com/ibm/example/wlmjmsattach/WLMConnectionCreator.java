@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+
+/**
+ * Creates the JMS objects for a single connection attempt to a gateway, allowing applications to
+ * plug their own JMS objects into the WLM logic of {@link WLMJMSAttach#getConnection(WLMConnectionCreator, Class, Destination, boolean, int)}.
+ * The gateway selection, retry, failover and health tracking are the same as for the built-in
+ * queue, topic and generic producers.
+ * 
+ * {@link WLMJMSContextCreator} is the implementation for JMS 2.0 JMSContexts, used by
+ * {@link WLMJMSAttach#getContext(Destination, boolean, int)}. Applications can implement this
+ * interface for other sets of JMS objects, for example a context with a consumer as well as a producer.
+ * 
+ * Implementations must clean up anything they created if they throw, and must be thread safe.
+ * @param <T> The type of object created, which the caller is responsible for closing
+ */
+public interface WLMConnectionCreator<T> {
+
+  /**
+   * Create the JMS objects for a gateway.
+   * @param factory The connection factory for the gateway
+   * @param dest The destination requested by the caller
+   * @param txn Whether the caller requested a transacted session
+   * @param ackMode The acknowledge mode requested by the caller
+   * @param gateway The gateway being connected to. Call {@link WLMGateway#producerOpened()} once the object
+   *                is created, and {@link WLMGateway#producerClosed()} when it is closed.
+   * @return The object to return to the caller
+   * @throws JMSException if the connection fails, so the next gateway is tried
+   */
+  public T createConnection(ConnectionFactory factory, Destination dest, boolean txn, int ackMode, WLMGateway gateway) throws JMSException;
+  
+  /**
+   * Close an object this creator created that cannot be returned to the caller, for example
+   * because a hedged connection attempt to another gateway completed first. Must not throw.
+   * @param connection The object to close
+   */
+  public void closeConnection(T connection);
+  
+}
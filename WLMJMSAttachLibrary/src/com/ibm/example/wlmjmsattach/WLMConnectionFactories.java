@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.naming.InitialContext;
+import javax.naming.NameClassPair;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+
+/**
+ * The connection factories for the gateways of a resource reference prefix, as bound in the
+ * java:comp/env namespace of one component.
+ * We count the gateways by listing the names bound in the namespace, and only look up the
+ * connection factory for a gateway the first time it is used. If the namespace cannot be
+ * listed, we look up all the connection factories up front instead.
+ * 
+ * Lookups in java:comp/env only work on a thread running in the component, not on the
+ * background threads of {@link WLMScheduler}. So before handing work for the gateways
+ * to a background thread, call {@link #resolveAll()} on the component's thread.
+ */
+final class WLMConnectionFactories {
+
+  /** A logger */
+  private static final WLMJMSLogger log = new WLMJMSLogger(WLMConnectionFactories.class);
+  
+  /** The resource reference prefix */
+  private final String resRefPrefix;
+  
+  /** The connection factory for each gateway, or null if we have not looked it up yet */
+  private final AtomicReferenceArray<ConnectionFactory> factories;
+  
+  /** Set once every connection factory has been looked up */
+  private volatile boolean allResolved;
+  
+  /**
+   * Constructor
+   * @param resRefPrefix The resource reference prefix
+   * @param factories The connection factories, with null for those not looked up yet
+   */
+  private WLMConnectionFactories(String resRefPrefix, ConnectionFactory[] factories) {
+    this.resRefPrefix = resRefPrefix;
+    this.factories = new AtomicReferenceArray<ConnectionFactory>(factories);
+  }
+  
+  /**
+   * Find the gateways for a resource reference prefix, by suffixing the prefix with 1,2 etc.
+   * until a name is not bound. Must be called on a thread running in the component.
+   * @param resRefPrefix The prefix used by your resource references.
+   * @return The connection factories, one for each gateway
+   * @throws NamingException if the namespace cannot be read, or no resource reference exists for the first gateway
+   */
+  static WLMConnectionFactories find(String resRefPrefix) throws NamingException {
+    final String methodName = "find";
+    InitialContext ctx = new InitialContext();
+    boolean complete = false;
+    try {
+      ConnectionFactory[] factories;
+      try {
+        factories = new ConnectionFactory[countGateways(ctx, resRefPrefix)];
+      }
+      catch (NamingException e) {
+        // Some providers do not support listing java:comp/env, so fall back to looking them all up
+        if (log.enabled()) log.debug(methodName, "Cannot list the resource references, so looking them all up: " + e);
+        factories = lookupAll(ctx, resRefPrefix);
+      }
+      complete = true;
+      return new WLMConnectionFactories(resRefPrefix, factories);
+    } finally {
+      try {
+        ctx.close();
+      }
+      catch (NamingException e) {
+        // Don't override any previous naming exception, but throw the close exception
+        // if we were successful to this point.
+        if (complete) throw e;
+      }
+    }
+  }
+  
+  /**
+   * Count the resource references bound for the prefix, without looking them up
+   * @throws NamingException if the namespace cannot be listed, or no resource reference exists for the first gateway
+   */
+  private static int countGateways(InitialContext ctx, String resRefPrefix) throws NamingException {
+    final String methodName = "countGateways";
+    int lastSlash = resRefPrefix.lastIndexOf('/');
+    String contextName = "java:comp/env" + (lastSlash >= 0 ? "/" + resRefPrefix.substring(0, lastSlash) : "");
+    String baseName = resRefPrefix.substring(lastSlash + 1);
+    Set<String> names = new HashSet<String>();
+    NamingEnumeration<NameClassPair> bindings = ctx.list(contextName);
+    try {
+      while (bindings.hasMore()) names.add(bindings.next().getName());
+    } finally {
+      bindings.close();
+    }
+    int gatewayCount = 0;
+    while (gatewayCount < WLMJMSAttach.MAX_GATEWAY_COUNT && names.contains(baseName + (gatewayCount+1))) gatewayCount++;
+    // We must find at least one gateway
+    if (gatewayCount == 0) throw new NameNotFoundException("java:comp/env/" + resRefPrefix + "1");
+    if (log.enabled()) log.debug(methodName, "Found " + gatewayCount + " gateways for " + resRefPrefix);
+    return gatewayCount;
+  }
+  
+  /**
+   * Lookup the connection factories for each gateway, suffixing the resource reference
+   * prefix with 1,2 etc. until a lookup fails.
+   * @throws NamingException if any of the JNDI lookups fail, or no resource reference exists for the first gateway
+   */
+  private static ConnectionFactory[] lookupAll(InitialContext ctx, String resRefPrefix) throws NamingException {
+    final String methodName = "lookupAll";
+    ConnectionFactory[] factories = new ConnectionFactory[WLMJMSAttach.MAX_GATEWAY_COUNT];
+    int gatewayCount = 0;
+    while (gatewayCount < factories.length) {
+      // Suffix the resource reference prefix with 1,2 etc. in the lookup
+      String name = "java:comp/env/" + resRefPrefix + (gatewayCount+1);
+      try {
+        factories[gatewayCount] = (ConnectionFactory)ctx.lookup(name);
+        gatewayCount++;
+      }
+      catch (NameNotFoundException e) {
+        // We must find at least one gateway, otherwise we've found the end of the list
+        if (gatewayCount == 0) throw e;
+        if (log.enabled()) log.debug(methodName, "Found " + gatewayCount + " gateways. No resource reference " + name);
+        break;
+      }
+    }
+    ConnectionFactory[] found = new ConnectionFactory[gatewayCount];
+    System.arraycopy(factories, 0, found, 0, gatewayCount);
+    return found;
+  }
+  
+  /**
+   * @return The number of gateways
+   */
+  int size() {
+    return factories.length();
+  }
+  
+  /**
+   * Get the connection factory for a gateway, looking it up if this is the first time it is used.
+   * @param cfIndex The index of the gateway
+   * @return The connection factory
+   * @throws JMSException if the lookup fails, for example because we are on a background thread
+   */
+  ConnectionFactory get(int cfIndex) throws JMSException {
+    ConnectionFactory factory = factories.get(cfIndex);
+    if (factory != null) return factory;
+    String name = "java:comp/env/" + resRefPrefix + (cfIndex+1);
+    try {
+      InitialContext ctx = new InitialContext();
+      try {
+        factory = (ConnectionFactory)ctx.lookup(name);
+      } finally {
+        ctx.close();
+      }
+    }
+    catch (NamingException e) {
+      JMSException jmsException = new JMSException("Lookup of " + name + " failed: " + e);
+      jmsException.setLinkedException(e);
+      throw jmsException;
+    }
+    // Another thread may have beaten us to it, which is harmless
+    factories.set(cfIndex, factory);
+    return factory;
+  }
+  
+  /**
+   * Look up every connection factory not yet looked up, so they can be used from background threads.
+   * Must be called on a thread running in the component. This is just a volatile read once they have all
+   * been looked up. A lookup that fails is logged, and fails again when the gateway is next used.
+   */
+  void resolveAll() {
+    final String methodName = "resolveAll";
+    if (allResolved) return;
+    boolean resolved = true;
+    for (int cfIndex = 0; cfIndex < factories.length(); cfIndex++) {
+      if (factories.get(cfIndex) != null) continue;
+      try {
+        get(cfIndex);
+      }
+      catch (JMSException e) {
+        if (log.enabled()) log.logRootExMsg(methodName, "Lookup of connection " + cfIndex + " failed", e);
+        resolved = false;
+      }
+    }
+    allResolved = resolved;
+  }
+  
+}
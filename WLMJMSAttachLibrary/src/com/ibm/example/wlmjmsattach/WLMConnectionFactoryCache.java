@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.naming.NamingException;
+
+/**
+ * An opt-in cache of the connection factories found for each resource reference prefix,
+ * so new instances of a component do not repeat the JNDI lookups. Instances of a component
+ * share the cached {@link WLMConnectionFactories}, so each gateway is looked up once by
+ * whichever instance uses it first.
+ * 
+ * Resource references live in the java:comp/env namespace of each component, so the same prefix
+ * can be bound to different connection factories in different components. We therefore cache
+ * separately for each component, using a name supplied by the application. We cannot use the
+ * component's class, as the same class can be deployed as several components with different bindings.
+ * 
+ * The component names are scoped to the application, which we identify by the thread context
+ * classloader of the thread creating the {@link WLMJMSAttach}. The classloader is held weakly,
+ * so if the library is shared between applications, a stopped application's entries are discarded
+ * along with its classloader, and a restarted application looks up its connection factories again.
+ */
+final class WLMConnectionFactoryCache {
+
+  /** The connection factories for each application classloader, then for each component name, then for each prefix */
+  private static final Map<ClassLoader, Map<String, Map<String, WLMConnectionFactories>>> cache =
+      new WeakHashMap<ClassLoader, Map<String, Map<String, WLMConnectionFactories>>>();
+  
+  /**
+   * Private constructor
+   */
+  private WLMConnectionFactoryCache() {
+  }
+  
+  /**
+   * Get the cached connection factories for a component, finding them if this is the first
+   * time the component has asked. Must be called on a thread running in the component.
+   * @param componentName The name of the component, unique within the application
+   * @param resRefPrefix The resource reference prefix
+   * @return The connection factories
+   * @throws NamingException if the gateways cannot be found
+   */
+  static WLMConnectionFactories get(String componentName, String resRefPrefix) throws NamingException {
+    ClassLoader application = Thread.currentThread().getContextClassLoader();
+    if (application == null) application = WLMConnectionFactoryCache.class.getClassLoader();
+    synchronized (cache) {
+      WLMConnectionFactories connectionFactories = getFactories(application, componentName).get(resRefPrefix);
+      if (connectionFactories != null) return connectionFactories;
+    }
+    // Find the gateways outside the lock, as it involves JNDI. If another instance beats us to it, we use theirs.
+    WLMConnectionFactories found = WLMConnectionFactories.find(resRefPrefix);
+    synchronized (cache) {
+      Map<String, WLMConnectionFactories> factories = getFactories(application, componentName);
+      WLMConnectionFactories existing = factories.get(resRefPrefix);
+      if (existing != null) return existing;
+      factories.put(resRefPrefix, found);
+      return found;
+    }
+  }
+  
+  /**
+   * Get the map of prefixes for a component, creating it if necessary. Caller must hold the cache lock.
+   */
+  private static Map<String, WLMConnectionFactories> getFactories(ClassLoader application, String componentName) {
+    Map<String, Map<String, WLMConnectionFactories>> components = cache.get(application);
+    if (components == null) {
+      components = new HashMap<String, Map<String, WLMConnectionFactories>>();
+      cache.put(application, components);
+    }
+    Map<String, WLMConnectionFactories> factories = components.get(componentName);
+    if (factories == null) {
+      factories = new HashMap<String, WLMConnectionFactories>();
+      components.put(componentName, factories);
+    }
+    return factories;
+  }
+  
+  /**
+   * Empty the cache, so the connection factories are looked up again
+   */
+  static void clear() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+  
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.jms.JMSException;
+
+/**
+ * The result of one of the asynchronous connection methods of {@link WLMJMSAttach}.
+ * As well as blocking for the result using the standard {@link Future} methods, callers
+ * can register a {@link WLMConnectionListener} to be told when the result is available.
+ * If the future is cancelled before the connection completes, any connection that is
+ * subsequently established is closed.
+ * @param <T> The type of WLM object being created
+ */
+public class WLMConnectionFuture<T> implements Future<T> {
+
+  /** The result, once complete */
+  private T connection = null;
+  
+  /** The exception, if we failed */
+  private JMSException exception = null;
+  
+  /** Whether we are complete (successfully, with an exception, or cancelled) */
+  private boolean done = false;
+  
+  /** Whether we were cancelled */
+  private boolean cancelled = false;
+  
+  /** The listeners to notify on completion, managed under our synchronization */
+  private List<WLMConnectionListener<? super T>> listeners = new ArrayList<WLMConnectionListener<? super T>>(1);
+  
+  /**
+   * Constructor (package private)
+   */
+  WLMConnectionFuture() {
+  }
+  
+  /**
+   * Register a listener to be called when the connection attempt completes.
+   * If the attempt has already completed, the listener is called immediately on this thread.
+   * Listeners are not called if the future is cancelled.
+   * @param listener The listener
+   */
+  public void addListener(WLMConnectionListener<? super T> listener) {
+    synchronized (this) {
+      if (!done) {
+        listeners.add(listener);
+        return;
+      }
+    }
+    // We are already done, so call the listener outside of our synchronization
+    notifyListener(listener);
+  }
+  
+  /**
+   * Mark that we have connected.
+   * @param connection The connection
+   * @return false if we were already cancelled, in which case the caller must close the connection
+   */
+  boolean complete(T connection) {
+    List<WLMConnectionListener<? super T>> toNotify;
+    synchronized (this) {
+      if (done) return false;
+      this.connection = connection;
+      toNotify = markDone();
+    }
+    for (WLMConnectionListener<? super T> listener : toNotify) notifyListener(listener);
+    return true;
+  }
+  
+  /**
+   * Mark that we have failed to connect.
+   * @param exception The last exception
+   */
+  void fail(JMSException exception) {
+    List<WLMConnectionListener<? super T>> toNotify;
+    synchronized (this) {
+      if (done) return;
+      this.exception = exception;
+      toNotify = markDone();
+    }
+    for (WLMConnectionListener<? super T> listener : toNotify) notifyListener(listener);
+  }
+  
+  /**
+   * Mark that we're done, waking up any waiters.
+   * Caller must hold our synchronization.
+   * @return The listeners to notify, once the caller has released our synchronization
+   */
+  private List<WLMConnectionListener<? super T>> markDone() {
+    done = true;
+    notifyAll();
+    List<WLMConnectionListener<? super T>> toNotify = listeners;
+    listeners = null;
+    return toNotify;
+  }
+  
+  /**
+   * Call a listener with our result, protecting ourselves from any exception it throws.
+   */
+  private void notifyListener(WLMConnectionListener<? super T> listener) {
+    T tConnection;
+    JMSException tException;
+    synchronized (this) {
+      if (cancelled) return;
+      tConnection = connection;
+      tException = exception;
+    }
+    try {
+      if (tException != null) listener.onException(tException);
+      else listener.onConnection(tConnection);
+    }
+    catch (RuntimeException e) {
+      WLMJMSAttach.logListenerException(e);
+    }
+  }
+  
+  /**
+   * Cancel the connection attempt. We do not interrupt a connection attempt that is in progress,
+   * but any resulting connection will be closed rather than returned.
+   */
+  public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+    if (done) return false;
+    cancelled = true;
+    markDone();
+    return true;
+  }
+
+  /**
+   * @see Future#isCancelled()
+   */
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * @see Future#isDone()
+   */
+  public synchronized boolean isDone() {
+    return done;
+  }
+
+  /**
+   * Wait for the connection.
+   * @throws ExecutionException wrapping the JMSException if the connection attempt timed out
+   */
+  public synchronized T get() throws InterruptedException, ExecutionException {
+    while (!done) wait();
+    return getResult();
+  }
+
+  /**
+   * Wait for the connection, up to the timeout.
+   * @throws ExecutionException wrapping the JMSException if the connection attempt timed out
+   */
+  public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+    long startTime = System.currentTimeMillis();
+    long timeoutMillis = unit.toMillis(timeout);
+    long remainingTime = timeoutMillis;
+    while (!done && remainingTime > 0) {
+      wait(remainingTime);
+      remainingTime = timeoutMillis - (System.currentTimeMillis() - startTime);
+    }
+    if (!done) throw new TimeoutException();
+    return getResult();
+  }
+  
+  /**
+   * Caller must hold our synchronization, and have checked we are done.
+   */
+  private T getResult() throws ExecutionException {
+    if (cancelled) throw new CancellationException();
+    if (exception != null) throw new ExecutionException(exception);
+    return connection;
+  }
+  
+}
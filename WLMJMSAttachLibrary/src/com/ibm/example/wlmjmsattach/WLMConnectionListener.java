@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import javax.jms.JMSException;
+
+/**
+ * A callback for the asynchronous connection methods of {@link WLMJMSAttach},
+ * called once when the connection attempt completes.
+ * The callback might be made on the thread that requested the connection, or on
+ * a background thread, so implementations should be quick and must not block.
+ * @param <T> The type of WLM object being created
+ */
+public interface WLMConnectionListener<T> {
+
+  /**
+   * Called when a connection has been established. The receiver is responsible for closing it.
+   * @param connection The connected WLM object
+   */
+  public void onConnection(T connection);
+  
+  /**
+   * Called when no connection could be established before the timeout
+   * @param e The last exception encountered
+   */
+  public void onException(JMSException e);
+  
+}
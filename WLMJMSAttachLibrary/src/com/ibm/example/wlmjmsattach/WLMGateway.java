@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+/**
+ * A handle on one of the gateways of a resource reference prefix, passed to a {@link WLMConnectionCreator}
+ * so the objects it creates can feed the shared WLM state in the same way as the built-in producers.
+ */
+public final class WLMGateway {
+
+  /** The shared WLM state */
+  private final WLMResourceReferenceState wlmState;
+  
+  /** The index of the gateway */
+  private final int gatewayIndex;
+  
+  /**
+   * Constructor (package private)
+   * @param wlmState The shared WLM state
+   * @param gatewayIndex The index of the gateway
+   */
+  WLMGateway(WLMResourceReferenceState wlmState, int gatewayIndex) {
+    this.wlmState = wlmState;
+    this.gatewayIndex = gatewayIndex;
+  }
+  
+  /**
+   * @return The index of the gateway (0 for the first resource reference)
+   */
+  public int getGatewayIndex() {
+    return gatewayIndex;
+  }
+  
+  /**
+   * Count a new open object against the gateway, for the least-outstanding routing strategy
+   */
+  public void producerOpened() {
+    wlmState.producerOpened(gatewayIndex);
+  }
+  
+  /**
+   * Remove an open object from the count for the gateway. Call this exactly once for each call to producerOpened.
+   */
+  public void producerClosed() {
+    wlmState.producerClosed(gatewayIndex);
+  }
+  
+  /**
+   * Count a send against the gateway, for the least-in-flight routing strategy.
+   * Call sendEnded in a finally.
+   * @return The start time of the send, from System.nanoTime()
+   */
+  public long sendStarted() {
+    return wlmState.sendStarted(gatewayIndex);
+  }
+  
+  /**
+   * Remove a send from the count for the gateway. Call this exactly once for each call to sendStarted.
+   */
+  public void sendEnded() {
+    wlmState.sendEnded(gatewayIndex);
+  }
+  
+  /**
+   * Record the time taken to send a message, for the latency-aware routing strategies
+   * @param elapsedNanos The time taken, from System.nanoTime()
+   */
+  public void recordSendLatency(long elapsedNanos) {
+    wlmState.recordSendLatency(gatewayIndex, elapsedNanos);
+  }
+  
+  /**
+   * Mark the gateway as failed, for example because a send failed on an existing connection.
+   * The gateway drops out of the WLM pool until it is found to have recovered.
+   */
+  public void markFailed() {
+    wlmState.setLastConnectionFailed(gatewayIndex);
+  }
+  
+  /**
+   * @return Whether the gateway is currently healthy
+   */
+  public boolean isHealthy() {
+    return wlmState.isHealthy(gatewayIndex);
+  }
+  
+}
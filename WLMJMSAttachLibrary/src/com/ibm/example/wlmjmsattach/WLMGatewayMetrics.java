@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+/**
+ * A point-in-time copy of the metrics for a single gateway.
+ * See {@link WLMMetricsSnapshot}.
+ * The counters and latency histograms are totals since the state for the resource reference prefix
+ * was created, or since they were last reset with {@link WLMResourceReferenceAdminMBean#resetMetrics()}
+ * or {@link WLMResourceReferenceAdminMBean#resetGatewayMetrics(int)}, so an exporter should expect
+ * them to go backwards.
+ */
+public final class WLMGatewayMetrics {
+
+  /** The index of the gateway */
+  private final int gatewayIndex;
+  
+  /** Whether the gateway was healthy */
+  private final boolean healthy;
+  
+  /** Whether the gateway was being drained */
+  private final boolean draining;
+  
+  /** The slow start weight of the gateway */
+  private final double effectiveWeight;
+  
+  /** The number of connection attempts in progress */
+  private final int inFlight;
+  
+  /** The number of open producer objects */
+  private final int openProducers;
+  
+  /** The number of sends in progress */
+  private final int sendsInProgress;
+  
+  /** The number of connection attempts */
+  private final long connectAttempts;
+  
+  /** The number of connection attempts that succeeded */
+  private final long connectSuccesses;
+  
+  /** The number of connection attempts that failed */
+  private final long connectFailures;
+  
+  /** The number of times the gateway was skipped */
+  private final long skips;
+  
+  /** The connect latency histogram */
+  private final WLMLatencySnapshot connectLatency;
+  
+  /** The send latency histogram */
+  private final WLMLatencySnapshot sendLatency;
+  
+  /**
+   * Constructor (package private)
+   */
+  WLMGatewayMetrics(int gatewayIndex, boolean healthy, boolean draining, double effectiveWeight, int inFlight, int openProducers,
+      int sendsInProgress, long connectAttempts, long connectSuccesses, long connectFailures, long skips,
+      WLMLatencySnapshot connectLatency, WLMLatencySnapshot sendLatency) {
+    this.gatewayIndex = gatewayIndex;
+    this.healthy = healthy;
+    this.draining = draining;
+    this.effectiveWeight = effectiveWeight;
+    this.inFlight = inFlight;
+    this.openProducers = openProducers;
+    this.sendsInProgress = sendsInProgress;
+    this.connectAttempts = connectAttempts;
+    this.connectSuccesses = connectSuccesses;
+    this.connectFailures = connectFailures;
+    this.skips = skips;
+    this.connectLatency = connectLatency;
+    this.sendLatency = sendLatency;
+  }
+  
+  /**
+   * @return The index of the gateway (0 for the first resource reference)
+   */
+  public int getGatewayIndex() {
+    return gatewayIndex;
+  }
+  
+  /**
+   * @return Whether the gateway was healthy, see {@link WLMGatewayStatus#isHealthy(int)}
+   */
+  public boolean isHealthy() {
+    return healthy;
+  }
+  
+  /**
+   * @return Whether the gateway was being drained for maintenance
+   */
+  public boolean isDraining() {
+    return draining;
+  }
+  
+  /**
+   * @return The share of its normal traffic the gateway was being given, see {@link WLMGatewayStatus#getEffectiveWeight(int)}
+   */
+  public double getEffectiveWeight() {
+    return effectiveWeight;
+  }
+  
+  /**
+   * @return The number of connection attempts in progress
+   */
+  public int getInFlight() {
+    return inFlight;
+  }
+  
+  /**
+   * @return The number of WLM producer objects open on the gateway
+   */
+  public int getOpenProducers() {
+    return openProducers;
+  }
+  
+  /**
+   * @return The number of sends in progress on the gateway
+   */
+  public int getSendsInProgress() {
+    return sendsInProgress;
+  }
+  
+  /**
+   * @return The number of connection attempts made by callers.
+   *         Background health probes and warm-up connections are not included.
+   */
+  public long getConnectAttempts() {
+    return connectAttempts;
+  }
+  
+  /**
+   * @return The number of connection attempts made by callers that succeeded
+   */
+  public long getConnectSuccesses() {
+    return connectSuccesses;
+  }
+  
+  /**
+   * @return The number of connection attempts made by callers that failed
+   */
+  public long getConnectFailures() {
+    return connectFailures;
+  }
+  
+  /**
+   * @return The number of times a caller skipped the gateway, as it had failed recently,
+   *         was being drained or forced down, or already had a slow connection attempt in progress
+   */
+  public long getSkips() {
+    return skips;
+  }
+  
+  /**
+   * @return The time taken to connect, including background health probes and warm-up connections
+   */
+  public WLMLatencySnapshot getConnectLatency() {
+    return connectLatency;
+  }
+  
+  /**
+   * @return The time taken to send messages, via the send methods of the WLM wrapper objects
+   */
+  public WLMLatencySnapshot getSendLatency() {
+    return sendLatency;
+  }
+  
+  @Override
+  public String toString() {
+    return "Gateway " + gatewayIndex + ": healthy=" + healthy + " draining=" + draining + " weight=" + effectiveWeight +
+        " inFlight=" + inFlight + " openProducers=" + openProducers + " sends=" + sendsInProgress + " attempts=" + connectAttempts +
+        " successes=" + connectSuccesses + " failures=" + connectFailures + " skips=" + skips +
+        " connect[" + connectLatency + "] send[" + sendLatency + "]";
+  }
+  
+}
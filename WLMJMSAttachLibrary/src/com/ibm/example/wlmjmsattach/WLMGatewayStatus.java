@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+/**
+ * A read-only view of the WLM state of the gateways for a resource reference prefix,
+ * as shared by all users of that prefix.
+ * This is passed to {@link WLMRoutingStrategy} implementations to make routing decisions.
+ * All methods are cheap, non-blocking reads of the current state.
+ */
+public interface WLMGatewayStatus {
+
+  /**
+   * @return The number of gateways
+   */
+  public int getGatewayCount();
+  
+  /**
+   * @param gatewayIndex The index of the gateway
+   * @return Whether the last connection attempt to the gateway was successful,
+   *         and the gateway is not being drained for maintenance or forced down by an operator
+   */
+  public boolean isHealthy(int gatewayIndex);
+  
+  /**
+   * @param gatewayIndex The index of the gateway
+   * @return The share of its normal traffic the gateway is currently given, from 0.0 to 1.0.
+   *         This is 1.0 for a healthy gateway, 0.0 for an unhealthy one, and ramps up from near zero
+   *         while a gateway is in its slow start window after recovering.
+   */
+  public double getEffectiveWeight(int gatewayIndex);
+  
+  /**
+   * @param gatewayIndex The index of the gateway
+   * @return The number of connection attempts currently in progress to the gateway
+   */
+  public int getInFlight(int gatewayIndex);
+  
+  /**
+   * @param gatewayIndex The index of the gateway
+   * @return The number of WLM producer objects (each holding a connection) currently open on the gateway
+   */
+  public int getOpenProducers(int gatewayIndex);
+  
+  /**
+   * @param gatewayIndex The index of the gateway
+   * @return The number of sends currently in progress on the gateway, including asynchronous
+   *         sends still waiting for their completion callback
+   */
+  public int getSendsInProgress(int gatewayIndex);
+  
+  /**
+   * @param gatewayIndex The index of the gateway
+   * @return The exponentially weighted moving average of the time taken to create a connection,
+   *         session and producer on the gateway, in milliseconds. Zero if never measured.
+   */
+  public double getConnectLatency(int gatewayIndex);
+  
+  /**
+   * @param gatewayIndex The index of the gateway
+   * @return The exponentially weighted moving average of the time taken to send a message
+   *         on the gateway, in milliseconds. Zero if never measured.
+   *         Only sends made via the send methods of the WLM wrapper objects are measured.
+   */
+  public double getSendLatency(int gatewayIndex);
+  
+  /**
+   * @param gatewayIndex The index of the gateway
+   * @return The time (as returned by System.currentTimeMillis) the connect or send latency
+   *         for the gateway was last updated. Zero if never measured.
+   */
+  public long getLastLatencySample(int gatewayIndex);
+  
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A consistent-hash ring mapping routing keys to gateways.
+ * Each gateway owns a number of virtual nodes spread around the ring, and a key belongs to
+ * the gateway owning the first virtual node at or after the hash of the key. Walking on around
+ * the ring gives the order in which to fail over. So when a gateway fails only its keys move,
+ * spread across the other gateways, and they move back when it recovers.
+ */
+final class WLMHashRing {
+
+  /** The number of virtual nodes for each gateway */
+  static final int VIRTUAL_NODES_PER_GATEWAY = 160;
+  
+  /** The number of gateways on the ring */
+  private final int gatewayCount;
+  
+  /** The hash of each virtual node, in ascending order */
+  private final long[] points;
+  
+  /** The gateway owning each virtual node */
+  private final int[] owners;
+  
+  /**
+   * Constructor
+   * @param gatewayCount The number of gateways
+   */
+  WLMHashRing(int gatewayCount) {
+    this.gatewayCount = gatewayCount;
+    int nodeCount = gatewayCount * VIRTUAL_NODES_PER_GATEWAY;
+    long[][] nodes = new long[nodeCount][];
+    for (int gateway = 0; gateway < gatewayCount; gateway++) {
+      for (int vnode = 0; vnode < VIRTUAL_NODES_PER_GATEWAY; vnode++) {
+        nodes[gateway * VIRTUAL_NODES_PER_GATEWAY + vnode] = new long[] { hash("gateway-" + gateway + "-" + vnode), gateway };
+      }
+    }
+    Arrays.sort(nodes, new Comparator<long[]>() {
+      public int compare(long[] a, long[] b) {
+        return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+      }
+    });
+    points = new long[nodeCount];
+    owners = new int[nodeCount];
+    for (int i = 0; i < nodeCount; i++) {
+      points[i] = nodes[i][0];
+      owners[i] = (int)nodes[i][1];
+    }
+  }
+  
+  /**
+   * Get the order in which to try the gateways for a key
+   * @param routingKey The routing key
+   * @return Every gateway index, starting with the owner of the key, in the order they appear around the ring
+   */
+  int[] getGatewayOrder(String routingKey) {
+    int[] order = new int[gatewayCount];
+    boolean[] seen = new boolean[gatewayCount];
+    int found = 0;
+    int position = Arrays.binarySearch(points, hash(routingKey));
+    if (position < 0) position = -position - 1; // The insertion point, which is the next node round the ring
+    for (int i = 0; i < points.length && found < gatewayCount; i++) {
+      int owner = owners[(position + i) % points.length];
+      if (!seen[owner]) {
+        seen[owner] = true;
+        order[found++] = owner;
+      }
+    }
+    return order;
+  }
+  
+  /**
+   * A 64bit hash of a string, spreading similar strings evenly around the ring.
+   * FNV-1a over the characters, followed by the MurmurHash3 finalizer.
+   * @param value The string
+   * @return The hash
+   */
+  static long hash(String value) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      h ^= value.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+  
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+
+/**
+ * Background health checking for the gateways of a resource reference prefix.
+ * Runs periodically on the shared {@link WLMScheduler}, attempting a connection to each
+ * gateway that is not healthy, and putting it back into the WLM pool only when the
+ * connection succeeds. While a prober is running, request threads never probe failed
+ * gateways themselves, so no business request waits for a connect timeout on a
+ * gateway that is still down. If the prober stops running, for example after
+ * {@link WLMJMSAttach#shutdown()}, request threads go back to probing failed gateways themselves.
+ * A probe that is slow to fail does not count as the prober stopping, so each pass can take up
+ * to one connect timeout (set on the connection factory) per failed gateway.
+ * 
+ * The prober uses the connection factories looked up by the {@link WLMJMSAttach} that
+ * created the WLM state. In a JavaEE environment these are used from an unmanaged thread,
+ * so check your connection factories can create connections without a component context
+ * (for example by using an authentication alias on the connection factory itself).
+ */
+class WLMHealthProber implements Runnable {
+
+  /** A logger */
+  private static final WLMJMSLogger log = new WLMJMSLogger(WLMHealthProber.class);
+  
+  /** The state we are checking */
+  private final WLMResourceReferenceState wlmState;
+  
+  /** The connection factories to check */
+  private final WLMConnectionFactories connectionFactories;
+  
+  /**
+   * Constructor
+   * @param wlmState The state to update
+   * @param connectionFactories The connection factories for each gateway
+   */
+  private WLMHealthProber(WLMResourceReferenceState wlmState, WLMConnectionFactories connectionFactories) {
+    this.wlmState = wlmState;
+    this.connectionFactories = connectionFactories;
+  }
+  
+  /**
+   * Start checking the gateways in the background.
+   * @param wlmState The state to update, which must have been created with background probing enabled
+   * @param connectionFactories The connection factories for each gateway, which must already have been looked up
+   * @param intervalMillis The interval between checks
+   */
+  static void start(WLMResourceReferenceState wlmState, WLMConnectionFactories connectionFactories, int intervalMillis) {
+    ScheduledExecutorService scheduler = WLMScheduler.get();
+    wlmState.proberStarted(scheduler, scheduler.scheduleWithFixedDelay(new WLMHealthProber(wlmState, connectionFactories),
+        intervalMillis, intervalMillis, TimeUnit.MILLISECONDS));
+  }
+  
+  /**
+   * Check all the gateways that are not currently healthy.
+   * We must not throw, as that would cancel our schedule (and hand probing back to request threads).
+   */
+  public void run() {
+    final String methodName = "run";
+    for (int cfIndex = 0; cfIndex < connectionFactories.size(); cfIndex++) {
+      if (wlmState.getBreakerState(cfIndex) == WLMResourceReferenceState.BREAKER_CLOSED) continue;
+      if (log.traceEnabled()) log.trace(methodName, "Probing connection {0}", cfIndex);
+      boolean probeFailed = true;
+      long connectStartTime = System.nanoTime();
+      try {
+        Connection connection = connectionFactories.get(cfIndex).createConnection();
+        wlmState.recordConnectLatency(cfIndex, System.nanoTime() - connectStartTime);
+        probeFailed = false;
+        try {
+          connection.close();
+        }
+        catch (JMSException e) {
+          // We connected, which is all we needed to know
+          if (log.enabled()) log.logRootExMsg(methodName, "Close failed", e);
+        }
+      }
+      catch (Exception e) {
+        if (log.enabled()) log.logRootExMsg(methodName, "Probe of connection " + cfIndex + " failed", e);
+      }
+      if (probeFailed) {
+        wlmState.setLastConnectionFailed(cfIndex);
+      }
+      else {
+        if (log.enabled()) log.debug(methodName, "Connection {0} has recovered", cfIndex);
+        wlmState.setLastConnectionSuccessful(cfIndex);
+      }
+    }
+  }
+  
+}
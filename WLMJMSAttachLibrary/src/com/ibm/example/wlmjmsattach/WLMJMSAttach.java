@@ -11,13 +11,31 @@
  *******************************************************************************/
 package com.ibm.example.wlmjmsattach;
 
-import java.util.Date;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
 import javax.jms.JMSException;
+import javax.jms.InvalidDestinationException;
+import javax.jms.Message;
+import javax.jms.MessageEOFException;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageNotReadableException;
+import javax.jms.MessageNotWriteableException;
 import javax.jms.MessageProducer;
 import javax.jms.Queue;
 import javax.jms.QueueConnection;
@@ -30,25 +48,32 @@ import javax.jms.TopicConnection;
 import javax.jms.TopicConnectionFactory;
 import javax.jms.TopicPublisher;
 import javax.jms.TopicSession;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 /**
- * Helper class example to provide workload balancing attachment between two Gateways
+ * Helper class example to provide workload balancing attachment between two or more Gateways
  * in a JavaEE environment, with retry logic up to a given timeout.
  * The interface creates the session and the producer, as connection pooling
  * within the application server means a broken connection might not be detected
  * until accessing the queue/topic.
- * If an application wants to receive replies, or send to additional destinations
- * using the same connection, it can create additional consumers/producers
- * against the Session in the returned object.
+ * If an application wants to receive replies using the same connection, it can
+ * create additional consumers against the Session in the returned object.
+ * To send to additional destinations, use the cached producers available from the
+ * returned object (for example {@link WLMJMSMessageProducer#getProducer(Destination)}).
  */
 public class WLMJMSAttach {
 
-  /** All users of this class (within a classloader) must have the same number of
-   *  gateways (2 is generally the magic number). */  
+  /** The number of gateways used by the original samples (2 is generally the magic number).
+   *  @deprecated The number of gateways is now discovered for each resource reference prefix,
+   *  by looking up resource references suffixed 1,2,3 etc. until a lookup fails.
+   *  See {@link #getGatewayCount()}. */  
+  @Deprecated
   public static final int WLM_GATEWAY_COUNT = 2;
   
+  /** The maximum number of gateways we look up for a single resource reference prefix */  
+  public static final int MAX_GATEWAY_COUNT = 64;
+  
   /** A default prefix to use if you do not want to choose a special one for your application */  
   public static final String DEFAULT_RES_REF_PREFIX = "jms/GWCF";
   
@@ -61,6 +86,15 @@ public class WLMJMSAttach {
   /** A default interval for retrying connections to single failed gateway in the WLM pool */  
   public static final int DEFAULT_FAILED_GATEWAY_RETRY_MS = 60000;
 
+  /** A hedge delay that waits for the observed 95th percentile connect latency of the gateway */
+  public static final int HEDGE_DELAY_ADAPTIVE = -1;
+  
+  /** The minimum hedge delay when using {@link #HEDGE_DELAY_ADAPTIVE} */
+  public static final int MIN_ADAPTIVE_HEDGE_DELAY_MS = 10;
+  
+  /** A default time a pooled producer object can stay idle before it is closed */
+  public static final int DEFAULT_PRODUCER_POOL_IDLE_MS = 60000;
+
   /** A logger */
   private static final WLMJMSLogger log = new WLMJMSLogger(WLMJMSAttach.class);
   
@@ -73,13 +107,17 @@ public class WLMJMSAttach {
    */
   private static final ConcurrentHashMap<String, WLMResourceReferenceState> wlmStates = new ConcurrentHashMap<String, WLMResourceReferenceState>();
 
+  /** The asynchronous connection attempts waiting to retry, so {@link #shutdown()} can fail them */
+  private static final Set<AsyncRetry<?>> asyncRetries = Collections.newSetFromMap(new ConcurrentHashMap<AsyncRetry<?>, Boolean>());
+
   /** Keep a handle to the state applicable to our instance, once we've got it from the static hashmap */
   private final WLMResourceReferenceState wlmState;
   
-  /** The list of connection factories, initialised during construction.
-   *  These should be private to our instance, even though the WLM state (which we use to
-   *  determines the index into this array we use each time we connect) is shared between instances. */
-  private final ConnectionFactory[] connectionFactories = new ConnectionFactory[WLM_GATEWAY_COUNT];
+  /** The connection factories, found during construction and each looked up on first use.
+   *  These should be private to our component, even though the WLM state (which we use to
+   *  determines the index of the one we use each time we connect) is shared between components.
+   *  The size is the number of gateways found for our resource reference prefix. */
+  private final WLMConnectionFactories connectionFactories;
     
   /** The initial delay to use for retry */
   private final int initialDelayMillis;
@@ -87,53 +125,360 @@ public class WLMJMSAttach {
   /** The timeout to use for retry */
   private final int timeoutMillis;
   
+  /** The time to wait for a connection attempt before hedging with a parallel attempt on the next gateway.
+   *  Zero if hedging is disabled, negative if the delay is based on the observed connect latency. */
+  private final int hedgeDelayMillis;
+  
   /** The amount of time to avoid attempting connections to an individual gateway after a connection attempt fails.
    *  e.g. the amount of time an individual gateway drops out of the WLM pool after a failure.
    *  This minimises delays attempting connections to gateways that are down. */
   private final int failedGatewayRetry;
   
+  /** The registry used to check for a global transaction before hedging, or null if hedging is disabled or we are not in JavaEE */
+  private final TransactionSynchronizationRegistry transactionRegistry;
+  
+  /** Whether to add random jitter to the delays between retries */
+  private final boolean retryJitter;
+  
+  /** Whether to throw immediately, rather than retry, when all gateways have failed recently */
+  private final boolean failFast;
+  
+  /** The pool of producer objects for this instance, or null if pooling is disabled */
+  private final WLMProducerPool producerPool;
+  
+  /** The time a connection attempt can run before later callers wait on it rather than connecting, or 0 if disabled */
+  private final int singleFlightThresholdMillis;
+  
+  /** The time to wait for a slow connection attempt by another thread */
+  private final int singleFlightWaitMillis;
+  
   /**
    * Constructor, to be called during construction of a Bean instance.
+   * The gateways are discovered by finding the resource references suffixed with 1,2,3 etc.
+   * until one is not bound, so any number of gateways (up to {@link #MAX_GATEWAY_COUNT}) can be used.
+   * The connection factory for each gateway is looked up the first time it is used, or before
+   * any background work (such as health probing or hedging) first needs it.
+   * All components using the same resource reference prefix must define the same number of gateways,
+   * as they share the same WLM state.
    * @param resRefPrefix The prefix used by your resource references.
-   * @param initialDelayMillis The initial delay to use when retrying if both CFs are unavailable, this is doubled each time we wait until we hit the timeout 
+   * @param initialDelayMillis The initial delay to use when retrying if all CFs are unavailable, this is backed off each time we wait until we hit the timeout 
    * @param timeoutMillis The timeout after which to throw an exception if a connection cannot be established
-   * @throws NamingException if any of the JNDI lookups fail
+   * @throws NamingException if any of the JNDI lookups fail, or no resource reference exists for the first gateway
    */
   public WLMJMSAttach(String resRefPrefix, int initialDelayMillis, int timeoutMillis, int failedGatewayRetry) throws NamingException {
-     this.initialDelayMillis = initialDelayMillis;
-     this.timeoutMillis = timeoutMillis;
-     this.failedGatewayRetry = failedGatewayRetry;
+     this(resRefPrefix, new WLMJMSAttachConfig()
+         .setInitialDelayMillis(initialDelayMillis)
+         .setTimeoutMillis(timeoutMillis)
+         .setFailedGatewayRetry(failedGatewayRetry));
+  }
+  
+  /**
+   * Constructor, to be called during construction of a Bean instance.
+   * As {@link #WLMJMSAttach(String, int, int, int)}, with additional configuration
+   * such as the routing strategy.
+   * @param resRefPrefix The prefix used by your resource references.
+   * @param config The configuration for this instance. Settings shared across the prefix are
+   *               only used if this is the first instance created for the prefix.
+   * @throws NamingException if any of the JNDI lookups fail, or no resource reference exists for the first gateway
+   */
+  public WLMJMSAttach(String resRefPrefix, WLMJMSAttachConfig config) throws NamingException {
+     this.initialDelayMillis = config.getInitialDelayMillis();
+     this.timeoutMillis = config.getTimeoutMillis();
+     this.failedGatewayRetry = config.getFailedGatewayRetry();
+     this.hedgeDelayMillis = config.getHedgeDelayMillis();
+     this.singleFlightThresholdMillis = config.getSingleFlightThresholdMillis();
+     this.singleFlightWaitMillis = config.getSingleFlightWaitMillis();
+     this.retryJitter = config.isRetryJitter();
+     this.failFast = config.isFailFast();
      if (initialDelayMillis <= 0 || timeoutMillis <= 0 || failedGatewayRetry <= 0) throw new IllegalArgumentException();
+     if (config.getHealthProbeIntervalMillis() < 0) throw new IllegalArgumentException();
+     if (hedgeDelayMillis < 0 && hedgeDelayMillis != HEDGE_DELAY_ADAPTIVE) throw new IllegalArgumentException();
+     if (config.getRetryBudgetPerSecond() < 0) throw new IllegalArgumentException();
+     if (config.getProducerPoolMaxIdlePerGateway() < 0) throw new IllegalArgumentException();
+     if (config.getSlowStartWindowMillis() < 0 || !(config.getSlowStartExponent() > 0)) throw new IllegalArgumentException();
+     if (singleFlightThresholdMillis < 0 || singleFlightWaitMillis < 0) throw new IllegalArgumentException();
+     
+     // If we hedge, we need to know if the caller is in a global transaction
+     transactionRegistry = hedgeDelayMillis != 0 ? WLMJMSTranUtils.lookupTransactionSynchronizationRegistry() : null;
+     
+     // Find the gateways, unless we have them cached for our component
+     String cacheComponentName = config.getCacheComponentName();
+     connectionFactories = cacheComponentName != null ?
+         WLMConnectionFactoryCache.get(cacheComponentName, resRefPrefix) : WLMConnectionFactories.find(resRefPrefix);
      
      // Lookup or create the WLM index atomic integer.
      // We use concurrent hashtable logic here for efficiency, rather than synchronization.
      WLMResourceReferenceState tmpWLMState = wlmStates.get(resRefPrefix);
+     boolean createdState = false;
      if (tmpWLMState == null) {
-       tmpWLMState = new WLMResourceReferenceState();
+       tmpWLMState = new WLMResourceReferenceState(connectionFactories.size(), config);
        WLMResourceReferenceState existingState = wlmStates.putIfAbsent(resRefPrefix, tmpWLMState);
        if (existingState != null) tmpWLMState = existingState;
+       else createdState = true;
+     }
+     // The state is shared by everyone using this prefix, so it must agree with the gateways we found.
+     // We check before starting anything, so a bad configuration leaves nothing running behind it.
+     if (tmpWLMState.getGatewayCount() != connectionFactories.size()) {
+       throw new IllegalStateException("Found " + connectionFactories.size() + " gateways for resource reference prefix " +
+           resRefPrefix + ", but other users of the prefix have " + tmpWLMState.getGatewayCount());
      }
      wlmState = tmpWLMState; // Save the eventual value to our final variable.
      
-     // Lookup both of the CFs
-     InitialContext ctx = new InitialContext();
-     boolean complete = false;
-     try {
-       for (int i = 0; i < WLM_GATEWAY_COUNT; i++) {
-         // Suffix the resource reference prefix with 1,2 etc. in the lookup
-         connectionFactories[i] = (ConnectionFactory)ctx.lookup("java:comp/env/" + resRefPrefix + (i+1));
-       }
-       complete = true;
-     } finally {
-       try {
-         ctx.close();
-       }
-       catch (NamingException e) {
-         // Don't override any previous naming exception, but throw the close exception
-         // if we were successful to this point.
-         if (complete) throw e;
-       }
+     // If we created the state, we start the background health checks using our CFs
+     if (createdState && config.getHealthProbeIntervalMillis() > 0) {
+       // The prober runs on a background thread, which cannot look them up
+       connectionFactories.resolveAll();
+       WLMHealthProber.start(wlmState, connectionFactories, config.getHealthProbeIntervalMillis());
      }
+     // Make the state visible to operators over JMX, unless it already is
+     if (config.isJmxEnabled()) WLMResourceReferenceAdmin.register(resRefPrefix, wlmState);
+     
+     // The pool is private to our instance, like our CFs
+     producerPool = config.getProducerPoolMaxIdlePerGateway() > 0 ? 
+         new WLMProducerPool(wlmState, config.getProducerPoolMaxIdlePerGateway(), config.getProducerPoolIdleMillis()) : null;
+  }
+  
+  /**
+   * Stop all background work started by this class in the classloader, such as health probing,
+   * and unregister our JMX MBeans.
+   * Call this when your application stops (for example from a ServletContextListener),
+   * so the background threads and MBeans do not outlive the application.
+   * The shared WLM state of every prefix is discarded, so instances created afterwards start
+   * with fresh state, and restart any health probing.
+   * Asynchronous connection attempts waiting to retry fail with a JMSException. Any instance used
+   * after this starts the background threads again on demand, so only call this once the
+   * application has stopped using the WLM logic.
+   */
+  public static void shutdown() {
+    WLMScheduler.shutdown();
+    for (AsyncRetry<?> asyncRetry : asyncRetries) asyncRetry.failShutdown();
+    asyncRetries.clear();
+    wlmStates.clear();
+    WLMConnectionFactoryCache.clear();
+    WLMResourceReferenceAdmin.unregisterAll();
+  }
+  
+  /**
+   * Clear the cache of connection factories enabled by {@link WLMJMSAttachConfig#setCacheComponentName(String)},
+   * so they are looked up again by the next instance created for each component.
+   * Also done by {@link #shutdown()}.
+   */
+  public static void clearConnectionFactoryCache() {
+    WLMConnectionFactoryCache.clear();
+  }
+  
+  /**
+   * Close this instance, closing any pooled producer objects.
+   * Only required if pooling is enabled with {@link WLMJMSAttachConfig#setProducerPoolMaxIdlePerGateway(int)}.
+   */
+  public void close() {
+    if (producerPool != null) producerPool.close();
+  }
+  
+  /**
+   * Open connections to every gateway in parallel, for example when the application starts or after
+   * a gateway has been restarted. This primes the connection pools of the connection factories, so the
+   * first requests do not pay the full cost of connecting (including any TLS handshake), and records
+   * the health and connect latency of each gateway in the shared WLM state before traffic arrives.
+   * The connections are closed once they have all been opened, which returns them to the
+   * connection pool in an application server. Without connection pooling, only the
+   * health and latency information is primed.
+   * 
+   * NOTE: The connections are created on unmanaged background threads. In a JavaEE environment,
+   * check your connection factories can create connections without a component context
+   * (for example by using an authentication alias on the connection factory itself).
+   * @param connectionsPerGateway The number of connections to open on each gateway at the same time
+   * @param timeoutMillis The maximum time to wait for the connections. Connections that have not
+   *        completed by then are closed when they do complete, and are reported as timed out.
+   * @return The result for each gateway, in gateway index order
+   * @throws InterruptedException if we are interrupted waiting for the connections
+   */
+  public WLMWarmUpResult[] warmUp(int connectionsPerGateway, int timeoutMillis) throws InterruptedException {
+    final String methodName = "warmUp";
+    if (connectionsPerGateway <= 0 || timeoutMillis <= 0) throw new IllegalArgumentException();
+    final int gatewayCount = connectionFactories.size();
+    connectionFactories.resolveAll();
+    CountDownLatch completed = new CountDownLatch(gatewayCount * connectionsPerGateway);
+    WarmUpAttempt[] attempts = new WarmUpAttempt[gatewayCount * connectionsPerGateway];
+    for (int i = 0; i < attempts.length; i++) {
+      attempts[i] = new WarmUpAttempt(i % gatewayCount, completed);
+      WLMScheduler.getExecutor().execute(attempts[i]);
+    }
+    completed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    
+    // Close all the connections, and total up the results for each gateway
+    int[] opened = new int[gatewayCount];
+    long[] totalLatency = new long[gatewayCount];
+    JMSException[] exceptions = new JMSException[gatewayCount];
+    for (WarmUpAttempt attempt : attempts) {
+      int cfIndex = attempt.cfIndex;
+      if (!attempt.abandon()) {
+        exceptions[cfIndex] = new JMSException("Timed out after " + timeoutMillis + "ms");
+      }
+      else if (attempt.connection != null) {
+        opened[cfIndex]++;
+        totalLatency[cfIndex] += attempt.latencyNanos;
+        try {
+          attempt.connection.close();
+        }
+        catch (JMSException e) {
+          if (log.enabled()) log.logRootExMsg(methodName, "Close failed", e);
+        }
+      }
+      else {
+        exceptions[cfIndex] = attempt.exception;
+      }
+    }
+    WLMWarmUpResult[] results = new WLMWarmUpResult[gatewayCount];
+    for (int cfIndex = 0; cfIndex < gatewayCount; cfIndex++) {
+      double latencyMillis = opened[cfIndex] > 0 ? totalLatency[cfIndex] / 1000000.0 / opened[cfIndex] : 0;
+      results[cfIndex] = new WLMWarmUpResult(cfIndex, connectionsPerGateway, opened[cfIndex], latencyMillis, exceptions[cfIndex]);
+      if (log.enabled()) log.debug(methodName, results[cfIndex].toString());
+    }
+    return results;
+  }
+  
+  /**
+   * A single warm-up connection, run on a background thread.
+   */
+  private final class WarmUpAttempt implements Runnable {
+    private static final int RUNNING = 0;
+    private static final int COMPLETED = 1;
+    private static final int ABANDONED = 2;
+    private final int cfIndex;
+    private final CountDownLatch completed;
+    private final AtomicInteger status = new AtomicInteger(RUNNING);
+    private volatile Connection connection = null;
+    private volatile long latencyNanos;
+    private volatile JMSException exception = null;
+    
+    WarmUpAttempt(int cfIndex, CountDownLatch completed) {
+      this.cfIndex = cfIndex;
+      this.completed = completed;
+    }
+    
+    /**
+     * Connect, and record the result in the shared state. If the caller has given up
+     * on us by the time we connect, we close the connection ourselves.
+     */
+    public void run() {
+      final String methodName = "WarmUpAttempt.run";
+      Connection tConnection = null;
+      long connectStartTime = System.nanoTime();
+      try {
+        tConnection = connectionFactories.get(cfIndex).createConnection();
+        latencyNanos = System.nanoTime() - connectStartTime;
+        wlmState.recordConnectLatency(cfIndex, latencyNanos);
+        wlmState.setLastConnectionSuccessful(cfIndex);
+      }
+      catch (JMSException e) {
+        if (log.enabled()) log.logRootExMsg(methodName, "Warm-up of connection " + cfIndex + " failed", e);
+        exception = e;
+        wlmState.setLastConnectionFailed(cfIndex);
+      }
+      catch (RuntimeException e) {
+        if (log.enabled()) log.logExStack(methodName, "Unexpected exception", e);
+        exception = new JMSException("Unexpected exception: " + e);
+        exception.setLinkedException(e);
+      }
+      connection = tConnection;
+      if (!status.compareAndSet(RUNNING, COMPLETED) && tConnection != null) {
+        try {
+          tConnection.close();
+        }
+        catch (JMSException e) {
+          if (log.enabled()) log.logRootExMsg(methodName, "Close failed", e);
+        }
+      }
+      completed.countDown();
+    }
+    
+    /**
+     * Tell the attempt nobody is waiting for it any more
+     * @return Whether the attempt had already completed, in which case the caller owns the result
+     */
+    boolean abandon() {
+      return !status.compareAndSet(RUNNING, ABANDONED);
+    }
+  }
+  
+  /**
+   * Drain a gateway for planned maintenance. New connections skip the gateway straight away,
+   * for all users of the resource reference prefix in this classloader, while producers that are
+   * already connected carry on until they are closed. Pooled producers on the gateway are closed
+   * rather than reused. Call {@link #undrainGateway(String, int)} to bring the gateway back.
+   * @param resRefPrefix The resource reference prefix
+   * @param gatewayIndex The index of the gateway (0 for the first resource reference)
+   * @throws IllegalArgumentException if no WLMJMSAttach has been created for the prefix, or the index is out of range
+   */
+  public static void drainGateway(String resRefPrefix, int gatewayIndex) {
+    getStateForAdmin(resRefPrefix, gatewayIndex).setDraining(gatewayIndex, true);
+    if (log.enabled()) log.debug("drainGateway", "Draining connection " + gatewayIndex + " for " + resRefPrefix);
+  }
+  
+  /**
+   * Bring a drained gateway back into the WLM pool.
+   * @param resRefPrefix The resource reference prefix
+   * @param gatewayIndex The index of the gateway (0 for the first resource reference)
+   * @throws IllegalArgumentException if no WLMJMSAttach has been created for the prefix, or the index is out of range
+   */
+  public static void undrainGateway(String resRefPrefix, int gatewayIndex) {
+    getStateForAdmin(resRefPrefix, gatewayIndex).setDraining(gatewayIndex, false);
+    if (log.enabled()) log.debug("undrainGateway", "Undraining connection " + gatewayIndex + " for " + resRefPrefix);
+  }
+  
+  /**
+   * @param resRefPrefix The resource reference prefix
+   * @param gatewayIndex The index of the gateway (0 for the first resource reference)
+   * @return Whether the gateway is being drained
+   * @throws IllegalArgumentException if no WLMJMSAttach has been created for the prefix, or the index is out of range
+   */
+  public static boolean isGatewayDraining(String resRefPrefix, int gatewayIndex) {
+    return getStateForAdmin(resRefPrefix, gatewayIndex).isDraining(gatewayIndex);
+  }
+  
+  /**
+   * Find the state for a resource reference prefix, without creating it
+   * @return The state
+   * @throws IllegalArgumentException if no WLMJMSAttach has been created for the prefix
+   */
+  private static WLMResourceReferenceState getExistingState(String resRefPrefix) {
+    WLMResourceReferenceState state = wlmStates.get(resRefPrefix);
+    if (state == null) throw new IllegalArgumentException("No WLMJMSAttach has been created for resource reference prefix " + resRefPrefix);
+    return state;
+  }
+  
+  /**
+   * Find the state for an administrative operation on a gateway
+   * @return The state
+   * @throws IllegalArgumentException if no WLMJMSAttach has been created for the prefix, or the index is out of range
+   */
+  private static WLMResourceReferenceState getStateForAdmin(String resRefPrefix, int gatewayIndex) {
+    WLMResourceReferenceState state = getExistingState(resRefPrefix);
+    if (gatewayIndex < 0 || gatewayIndex >= state.getGatewayCount()) {
+      throw new IllegalArgumentException("Gateway index " + gatewayIndex + " out of range for resource reference prefix " + resRefPrefix);
+    }
+    return state;
+  }
+  
+  /**
+   * Take a snapshot of the metrics for a resource reference prefix, such as the connection attempts,
+   * failures and latency for each gateway. The metrics are shared by all the {@link WLMJMSAttach}
+   * instances using the prefix in this classloader, so an exporter can call this without a
+   * handle to an instance.
+   * @param resRefPrefix The resource reference prefix
+   * @return The snapshot
+   * @throws IllegalArgumentException if no WLMJMSAttach has been created for the prefix
+   */
+  public static WLMMetricsSnapshot getMetrics(String resRefPrefix) {
+    return getExistingState(resRefPrefix).getMetrics(resRefPrefix);
+  }
+  
+  /**
+   * @return The number of gateways found for our resource reference prefix
+   */
+  public int getGatewayCount() {
+    return connectionFactories.size();
   }
 
   /**
@@ -142,7 +487,7 @@ public class WLMJMSAttach {
    * @throws JMSException
    */
   public WLMJMSQueueSender getQueueSender(Queue queue, boolean txn, int ackMode) throws JMSException {
-    return (WLMJMSQueueSender)getConnectionWithRetry(QUEUE_CONNECTION_CREATOR, queue, txn, ackMode);
+    return (WLMJMSQueueSender)getConnectionWithRetry(QUEUE_CONNECTION_CREATOR, queue, txn, ackMode, null, 0);
   }
   
   /**
@@ -151,7 +496,7 @@ public class WLMJMSAttach {
    * @throws JMSException
    */
   public WLMJMSTopicPublisher getTopicPublisher(Topic topic, boolean txn, int ackMode) throws JMSException {
-    return (WLMJMSTopicPublisher)getConnectionWithRetry(TOPIC_CONNECTION_CREATOR, topic, txn, ackMode);
+    return (WLMJMSTopicPublisher)getConnectionWithRetry(TOPIC_CONNECTION_CREATOR, topic, txn, ackMode, null, 0);
   }
   
   /**
@@ -160,17 +505,359 @@ public class WLMJMSAttach {
    * @throws JMSException
    */
   public WLMJMSMessageProducer getMessageProducer(Destination dest, boolean txn, int ackMode) throws JMSException {
-    return (WLMJMSMessageProducer)getConnectionWithRetry(GENERIC_CONNECTION_CREATOR, dest, txn, ackMode);
+    return (WLMJMSMessageProducer)getConnectionWithRetry(GENERIC_CONNECTION_CREATOR, dest, txn, ackMode, null, 0);
+  }
+  
+  /**
+   * Get a JMS QueueConnection/QueueSession/QueueSender set, with affinity to a gateway for a routing key.
+   * See {@link #getMessageProducer(Destination, boolean, int, String)}.
+   * @return
+   * @throws JMSException
+   */
+  public WLMJMSQueueSender getQueueSender(Queue queue, boolean txn, int ackMode, String routingKey) throws JMSException {
+    return (WLMJMSQueueSender)getConnectionWithRetry(QUEUE_CONNECTION_CREATOR, queue, txn, ackMode, routingKey, 0);
+  }
+  
+  /**
+   * Get a JMS TopicConnection/TopicSession/TopicPublisher set, with affinity to a gateway for a routing key.
+   * See {@link #getMessageProducer(Destination, boolean, int, String)}.
+   * @return
+   * @throws JMSException
+   */
+  public WLMJMSTopicPublisher getTopicPublisher(Topic topic, boolean txn, int ackMode, String routingKey) throws JMSException {
+    return (WLMJMSTopicPublisher)getConnectionWithRetry(TOPIC_CONNECTION_CREATOR, topic, txn, ackMode, routingKey, 0);
+  }
+  
+  /**
+   * Get a JMS 1.1 generic JMS Connection/Session/MessageProducer, with affinity to a gateway for a routing key.
+   * Instead of using the routing strategy, the routing key (for example a customer ID) is mapped to a
+   * gateway using a consistent-hash ring. So all the messages for a key go through the same gateway,
+   * keeping them in order and local to the same consumers, while the gateway is available.
+   * If the gateway fails, only its keys move to the other gateways, and they move back when it recovers.
+   * @param routingKey The routing key, or null to use the routing strategy as usual
+   * @return
+   * @throws JMSException
+   */
+  public WLMJMSMessageProducer getMessageProducer(Destination dest, boolean txn, int ackMode, String routingKey) throws JMSException {
+    return (WLMJMSMessageProducer)getConnectionWithRetry(GENERIC_CONNECTION_CREATOR, dest, txn, ackMode, routingKey, 0);
+  }
+  
+  /**
+   * Get a JMS QueueConnection/QueueSession/QueueSender set, giving up at a deadline.
+   * See {@link #getMessageProducer(Destination, boolean, int, long)}.
+   * @return
+   * @throws JMSException
+   */
+  public WLMJMSQueueSender getQueueSender(Queue queue, boolean txn, int ackMode, long deadline) throws JMSException {
+    return (WLMJMSQueueSender)getConnectionWithRetry(QUEUE_CONNECTION_CREATOR, queue, txn, ackMode, null, deadline);
+  }
+  
+  /**
+   * Get a JMS TopicConnection/TopicSession/TopicPublisher set, giving up at a deadline.
+   * See {@link #getMessageProducer(Destination, boolean, int, long)}.
+   * @return
+   * @throws JMSException
+   */
+  public WLMJMSTopicPublisher getTopicPublisher(Topic topic, boolean txn, int ackMode, long deadline) throws JMSException {
+    return (WLMJMSTopicPublisher)getConnectionWithRetry(TOPIC_CONNECTION_CREATOR, topic, txn, ackMode, null, deadline);
+  }
+  
+  /**
+   * Get a JMS 1.1 generic JMS Connection/Session/MessageProducer, giving up at a deadline supplied by the caller.
+   * For example a servlet can pass the time by which it must respond to its own client, so it does not
+   * keep retrying for our full timeout after its client has given up. The retry logic stops at whichever
+   * comes first of the deadline and our timeout. An individual connection attempt that is already in
+   * progress cannot be interrupted, so may still run past the deadline.
+   * Use {@link WLMJMSDeadlineUtils#setDeadline(Message, long)} to pass the deadline on to the receiver of your messages.
+   * @param deadline The time (as returned by System.currentTimeMillis) after which to give up, or 0 to use our timeout only
+   * @return
+   * @throws JMSException if a connection cannot be established, or the deadline has already passed
+   */
+  public WLMJMSMessageProducer getMessageProducer(Destination dest, boolean txn, int ackMode, long deadline) throws JMSException {
+    return (WLMJMSMessageProducer)getConnectionWithRetry(GENERIC_CONNECTION_CREATOR, dest, txn, ackMode, null, deadline);
+  }
+  
+  /**
+   * Send a stream of messages to a destination, committing them in batches on a transacted session.
+   * A transaction is committed every commitCount messages, or when commitIntervalMillis has passed
+   * since its first message was sent, so MQ forces its log once per batch rather than once per message.
+   * If a send or commit fails because of a problem with the gateway, such as a broken connection, the
+   * transaction is rolled back, the gateway is marked as failed, and the uncommitted messages are re-driven
+   * on another gateway through the usual WLM logic, before carrying on with the rest of the stream.
+   * We give up if we fail on as many gateways in a row as we have without committing anything.
+   * If the failure is a problem with a message, such as a bad format or destination, the transaction is
+   * rolled back and the exception is thrown straight away, without marking the gateway as failed. 
+   * The messages taken from the iterator before the failed transaction have been committed.
+   * 
+   * If a commit fails with the outcome in doubt, the messages are re-driven, so a batch might be
+   * delivered twice. Batches cannot be sent within a global transaction, as the session must
+   * commit for itself, so this is intended for use outside an application server, or without a 
+   * transaction context.
+   * @param dest The destination
+   * @param messages The messages to send. These can be created with any session of the same JMS provider.
+   * @param commitCount The maximum number of messages in each transaction
+   * @param commitIntervalMillis The maximum time between the first send and the commit of each
+   *        transaction, or 0 to only commit based on the count
+   * @return The number of messages sent
+   * @throws JMSException if we cannot get a connection, or the batch repeatedly fails
+   */
+  public int sendBatch(Destination dest, Iterator<? extends Message> messages, int commitCount, int commitIntervalMillis) throws JMSException {
+    final String methodName = "sendBatch";
+    if (commitCount <= 0 || commitIntervalMillis < 0) throw new IllegalArgumentException();
+    CountingIterator<Message> countingMessages = new CountingIterator<Message>(messages);
+    List<Message> uncommitted = new ArrayList<Message>(commitCount);
+    int failures = 0;
+    while (true) {
+      WLMJMSMessageProducer wlmConnection = getMessageProducer(dest, true, Session.SESSION_TRANSACTED);
+      int committedBefore = countingMessages.getCount() - uncommitted.size();
+      boolean complete = false;
+      try {
+        wlmConnection.sendBatch(countingMessages, uncommitted, commitCount, commitIntervalMillis);
+        complete = true;
+      }
+      catch (JMSException e) {
+        int gatewayIndex = wlmConnection.getGatewayIndex();
+        if (log.enabled()) log.logRootExMsg(methodName, "Batch failed on connection " + gatewayIndex + 
+            " with " + uncommitted.size() + " uncommitted messages", e);
+        try {
+          wlmConnection.getSession().rollback();
+        }
+        catch (JMSException rollbackException) {
+          // The session is broken, which means the transaction will not be committed
+          if (log.enabled()) log.logRootExMsg(methodName, "Rollback failed", rollbackException);
+        }
+        // A problem with a message would follow it to every gateway, so we give it to our caller
+        // without holding it against a healthy gateway
+        if (!isGatewayFailure(e)) throw e;
+        wlmState.setLastConnectionFailed(gatewayIndex);
+        
+        // Keep going as long as we're making progress
+        if (countingMessages.getCount() - uncommitted.size() > committedBefore) failures = 0;
+        if (++failures >= connectionFactories.size()) throw e;
+      }
+      finally {
+        if (!complete) closeQuietly(wlmConnection);
+      }
+      if (complete) {
+        wlmConnection.release();
+        return countingMessages.getCount();
+      }
+    }
+  }
+  
+  /**
+   * Create a sender that makes non-transacted asynchronous sends to a destination, spread across the gateways,
+   * calling back a listener as each send completes. The sends are pipelined using JMS 2.0 completion listeners
+   * where the JMS provider supports them. See {@link WLMBackgroundSender}.
+   * Close the sender when you have finished with it.
+   * @param dest The destination
+   * @param maxOutstandingPerGateway The maximum number of sends queued, or waiting for their completion callback, on each gateway
+   * @return The sender
+   */
+  public WLMBackgroundSender createBackgroundSender(Destination dest, int maxOutstandingPerGateway) {
+    // The sends are made on background threads, which cannot look up the connection factories
+    connectionFactories.resolveAll();
+    return new WLMBackgroundSender(this, wlmState, dest, maxOutstandingPerGateway);
+  }
+  
+  /**
+   * Connect a non-transacted producer to a specific gateway, updating the shared state with the result.
+   * Used by the background work of {@link WLMBackgroundSender} (package private).
+   * @param cfIndex The index of the gateway
+   * @param dest The destination
+   * @return The producer
+   * @throws JMSException if the connection fails
+   */
+  WLMJMSMessageProducer connectToGateway(int cfIndex, Destination dest) throws JMSException {
+    return (WLMJMSMessageProducer)attemptConnection(GENERIC_CONNECTION_CREATOR, cfIndex, dest, false, Session.AUTO_ACKNOWLEDGE);
+  }
+  
+  /**
+   * Send a list of messages to a destination, committing them in batches.
+   * See {@link #sendBatch(Destination, Iterator, int, int)}.
+   * @return The number of messages sent
+   * @throws JMSException if we cannot get a connection, or the batch repeatedly fails
+   */
+  public int sendBatch(Destination dest, Iterable<? extends Message> messages, int commitCount, int commitIntervalMillis) throws JMSException {
+    return sendBatch(dest, messages.iterator(), commitCount, commitIntervalMillis);
+  }
+  
+  /**
+   * Counts the items taken from an iterator
+   */
+  private static final class CountingIterator<T> implements Iterator<T> {
+    private final Iterator<? extends T> iterator;
+    private int count = 0;
+    
+    CountingIterator(Iterator<? extends T> iterator) {
+      this.iterator = iterator;
+    }
+    
+    public boolean hasNext() {
+      return iterator.hasNext();
+    }
+    
+    public T next() {
+      T next = iterator.next();
+      count++;
+      return next;
+    }
+    
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+    
+    int getCount() {
+      return count;
+    }
+  }
+  
+  /**
+   * Get an application-defined set of JMS objects, such as a JMS 2.0 JMSContext and JMSProducer,
+   * using the same WLM logic as the built-in methods. See {@link WLMConnectionCreator}.
+   * Objects created this way are not pooled.
+   * @param connectionCreator Creates the objects for each connection attempt
+   * @param type The type of object created
+   * @return The object created for the first gateway that connected successfully
+   * @throws JMSException if no connection can be established before the timeout
+   */
+  public <T> T getConnection(WLMConnectionCreator<T> connectionCreator, Class<T> type, Destination dest, boolean txn, int ackMode) throws JMSException {
+    return type.cast(getConnectionWithRetry(new CustomConnectionCreator<T>(connectionCreator, type), dest, txn, ackMode, null, 0));
+  }
+  
+  /**
+   * Get a JMS 2.0 JMSContext and JMSProducer, using the same WLM logic as the built-in methods.
+   * See {@link WLMJMSContextCreator}. The JMS provider must support JMS 2.0, although this library
+   * is built against JMS 1.1. Contexts are not pooled.
+   * @return A wrapping object containing the context and producer
+   * @throws JMSException if no connection can be established before the timeout, or JMS 2.0 is not available
+   */
+  public WLMJMSContext getContext(Destination dest, boolean txn, int ackMode) throws JMSException {
+    return getContext(dest, txn, ackMode, 0);
+  }
+  
+  /**
+   * Get a JMS 2.0 JMSContext and JMSProducer, giving up at a deadline supplied by the caller.
+   * See {@link #getContext(Destination, boolean, int)} and {@link #getMessageProducer(Destination, boolean, int, long)}.
+   * @param deadline The time (as returned by System.currentTimeMillis) after which to give up, or 0 to use our timeout only
+   * @return A wrapping object containing the context and producer
+   * @throws JMSException if no connection can be established, the deadline has already passed, or JMS 2.0 is not available
+   */
+  public WLMJMSContext getContext(Destination dest, boolean txn, int ackMode, long deadline) throws JMSException {
+    return (WLMJMSContext)getConnectionWithRetry(new CustomConnectionCreator<WLMJMSContext>(WLMJMSContextCreator.INSTANCE, WLMJMSContext.class),
+        dest, txn, ackMode, null, deadline);
+  }
+  
+  /**
+   * Get a JMS QueueConnection/QueueSession/QueueSender set, without blocking the calling
+   * thread in the retry logic. See {@link #getMessageProducerAsync(Destination, boolean, int)}.
+   * @return A future for the connection
+   */
+  public WLMConnectionFuture<WLMJMSQueueSender> getQueueSenderAsync(Queue queue, boolean txn, int ackMode) {
+    return getConnectionAsync(QUEUE_CONNECTION_CREATOR, WLMJMSQueueSender.class, queue, txn, ackMode, null, 0);
+  }
+  
+  /**
+   * Get a JMS TopicConnection/TopicSession/TopicPublisher set, without blocking the calling
+   * thread in the retry logic. See {@link #getMessageProducerAsync(Destination, boolean, int)}.
+   * @return A future for the connection
+   */
+  public WLMConnectionFuture<WLMJMSTopicPublisher> getTopicPublisherAsync(Topic topic, boolean txn, int ackMode) {
+    return getConnectionAsync(TOPIC_CONNECTION_CREATOR, WLMJMSTopicPublisher.class, topic, txn, ackMode, null, 0);
+  }
+  
+  /**
+   * Get a JMS 1.1 generic JMS Connection/Session/MessageProducer, without blocking the calling
+   * thread in the retry logic.
+   * The first pass through the gateways is made on the calling thread, so in the normal case
+   * the future is already complete when it is returned. If no gateway is available, the
+   * retries (with the same backoff and timeout as {@link #getMessageProducer(Destination, boolean, int)})
+   * are timed by a small shared scheduler and run on the shared pool of worker threads, and the future
+   * completes when one succeeds or we time out. If {@link #shutdown()} is called while we are waiting
+   * to retry, the future fails with a JMSException.
+   * 
+   * NOTE: Connections created by a retry are created on an unmanaged background thread, so in a
+   * JavaEE environment they are not enlisted in any transaction of the caller.
+   * Only use the asynchronous methods for non-transacted work, or outside of an application server.
+   * @return A future for the connection
+   */
+  public WLMConnectionFuture<WLMJMSMessageProducer> getMessageProducerAsync(Destination dest, boolean txn, int ackMode) {
+    return getConnectionAsync(GENERIC_CONNECTION_CREATOR, WLMJMSMessageProducer.class, dest, txn, ackMode, null, 0);
+  }
+  
+  /**
+   * Get a JMS QueueConnection/QueueSession/QueueSender set, with affinity to a gateway for a routing key,
+   * without blocking the calling thread in the retry logic.
+   * See {@link #getMessageProducerAsync(Destination, boolean, int, String)}.
+   * @return A future for the connection
+   */
+  public WLMConnectionFuture<WLMJMSQueueSender> getQueueSenderAsync(Queue queue, boolean txn, int ackMode, String routingKey) {
+    return getConnectionAsync(QUEUE_CONNECTION_CREATOR, WLMJMSQueueSender.class, queue, txn, ackMode, routingKey, 0);
+  }
+  
+  /**
+   * Get a JMS TopicConnection/TopicSession/TopicPublisher set, with affinity to a gateway for a routing key,
+   * without blocking the calling thread in the retry logic.
+   * See {@link #getMessageProducerAsync(Destination, boolean, int, String)}.
+   * @return A future for the connection
+   */
+  public WLMConnectionFuture<WLMJMSTopicPublisher> getTopicPublisherAsync(Topic topic, boolean txn, int ackMode, String routingKey) {
+    return getConnectionAsync(TOPIC_CONNECTION_CREATOR, WLMJMSTopicPublisher.class, topic, txn, ackMode, routingKey, 0);
+  }
+  
+  /**
+   * Get a JMS 1.1 generic JMS Connection/Session/MessageProducer, with affinity to a gateway for a routing key,
+   * without blocking the calling thread in the retry logic.
+   * See {@link #getMessageProducer(Destination, boolean, int, String)} and {@link #getMessageProducerAsync(Destination, boolean, int)}.
+   * @param routingKey The routing key, or null to use the routing strategy as usual
+   * @return A future for the connection
+   */
+  public WLMConnectionFuture<WLMJMSMessageProducer> getMessageProducerAsync(Destination dest, boolean txn, int ackMode, String routingKey) {
+    return getConnectionAsync(GENERIC_CONNECTION_CREATOR, WLMJMSMessageProducer.class, dest, txn, ackMode, routingKey, 0);
+  }
+  
+  /**
+   * Get a JMS QueueConnection/QueueSession/QueueSender set, giving up at a deadline,
+   * without blocking the calling thread in the retry logic.
+   * See {@link #getMessageProducerAsync(Destination, boolean, int, long)}.
+   * @return A future for the connection
+   */
+  public WLMConnectionFuture<WLMJMSQueueSender> getQueueSenderAsync(Queue queue, boolean txn, int ackMode, long deadline) {
+    return getConnectionAsync(QUEUE_CONNECTION_CREATOR, WLMJMSQueueSender.class, queue, txn, ackMode, null, deadline);
+  }
+  
+  /**
+   * Get a JMS TopicConnection/TopicSession/TopicPublisher set, giving up at a deadline,
+   * without blocking the calling thread in the retry logic.
+   * See {@link #getMessageProducerAsync(Destination, boolean, int, long)}.
+   * @return A future for the connection
+   */
+  public WLMConnectionFuture<WLMJMSTopicPublisher> getTopicPublisherAsync(Topic topic, boolean txn, int ackMode, long deadline) {
+    return getConnectionAsync(TOPIC_CONNECTION_CREATOR, WLMJMSTopicPublisher.class, topic, txn, ackMode, null, deadline);
+  }
+  
+  /**
+   * Get a JMS 1.1 generic JMS Connection/Session/MessageProducer, giving up at a deadline supplied by the caller,
+   * without blocking the calling thread in the retry logic.
+   * No more retries are scheduled once the deadline passes, and the future then fails with the last exception.
+   * If the deadline has already passed, the future fails straight away without attempting a connection.
+   * See {@link #getMessageProducer(Destination, boolean, int, long)} and {@link #getMessageProducerAsync(Destination, boolean, int)}.
+   * @param deadline The time (as returned by System.currentTimeMillis) after which to give up, or 0 to use our timeout only
+   * @return A future for the connection
+   */
+  public WLMConnectionFuture<WLMJMSMessageProducer> getMessageProducerAsync(Destination dest, boolean txn, int ackMode, long deadline) {
+    return getConnectionAsync(GENERIC_CONNECTION_CREATOR, WLMJMSMessageProducer.class, dest, txn, ackMode, null, deadline);
   }
   
   /** Simple interface to allow our logic to be common across Queue/Topic/Generic connections */
   private static interface ConnectionCreator {
-    public Object createConnAndSender(Object factory, Destination dest, boolean txn, int ackMode) throws JMSException;
+    public Object createConnAndSender(Object factory, Destination dest, boolean txn, int ackMode, WLMResourceReferenceState wlmState, int cfIndex) throws JMSException;
+    public void close(Object conn);
   }
   
   /** Getter for QueueConnectionFactory objects */
   private static final class QueueConnectionCreator implements ConnectionCreator {
-    public Object createConnAndSender(Object factory, Destination dest, boolean txn, int ackMode) throws JMSException {
+    public Object createConnAndSender(Object factory, Destination dest, boolean txn, int ackMode, WLMResourceReferenceState wlmState, int cfIndex) throws JMSException {
       // We need to create the connection, session and sender
       // ensuring we clean-up the connection+session if we fail at any step.
       WLMJMSQueueSender wlmSender = null;
@@ -180,7 +867,8 @@ public class WLMJMSAttach {
       try {
         session = connection.createQueueSession(txn, ackMode);
         QueueSender sender = session.createSender((Queue)dest);
-        wlmSender = new WLMJMSQueueSender(connection, session, sender);
+        wlmSender = new WLMJMSQueueSender(connection, session, sender, wlmState, cfIndex);
+        wlmState.producerOpened(cfIndex);
       }
       finally {
         // Check if we need to clean-up because of an exception that's being thrown
@@ -201,6 +889,9 @@ public class WLMJMSAttach {
       }
       return wlmSender;
     }
+    public void close(Object conn) {
+      closeQuietly(conn);
+    }
   }
   
   /** Static singleton for QueueConnectionCreator */
@@ -208,7 +899,7 @@ public class WLMJMSAttach {
   
   /** Getter for TopicConnectionFactory objects */
   private static final class TopicConnectionCreator implements ConnectionCreator {
-    public Object createConnAndSender(Object factory, Destination dest, boolean txn, int ackMode) throws JMSException {
+    public Object createConnAndSender(Object factory, Destination dest, boolean txn, int ackMode, WLMResourceReferenceState wlmState, int cfIndex) throws JMSException {
       // We need to create the connection, session and sender
       // ensuring we clean-up the connection+session if we fail at any step.
       WLMJMSTopicPublisher wlmSender = null;
@@ -218,7 +909,8 @@ public class WLMJMSAttach {
       try {
         session = connection.createTopicSession(txn, ackMode);
         TopicPublisher sender = session.createPublisher((Topic)dest);
-        wlmSender = new WLMJMSTopicPublisher(connection, session, sender);
+        wlmSender = new WLMJMSTopicPublisher(connection, session, sender, wlmState, cfIndex);
+        wlmState.producerOpened(cfIndex);
       }
       finally {
         // Check if we need to clean-up because of an exception that's being thrown
@@ -239,6 +931,9 @@ public class WLMJMSAttach {
       }
       return wlmSender;
     }
+    public void close(Object conn) {
+      closeQuietly(conn);
+    }
   }
   
   /** Static singleton for TopicConnectionCreator */
@@ -246,7 +941,7 @@ public class WLMJMSAttach {
   
   /** Getter for GenericConnectionFactory objects */
   private static final class GenericConnectionCreator implements ConnectionCreator {
-    public Object createConnAndSender(Object factory, Destination dest, boolean txn, int ackMode) throws JMSException {
+    public Object createConnAndSender(Object factory, Destination dest, boolean txn, int ackMode, WLMResourceReferenceState wlmState, int cfIndex) throws JMSException {
       // We need to create the connection, session and sender
       // ensuring we clean-up the connection+session if we fail at any step.
       WLMJMSMessageProducer wlmSender = null;
@@ -256,7 +951,8 @@ public class WLMJMSAttach {
       try {
         session = connection.createSession(txn, ackMode);
         MessageProducer sender = session.createProducer(dest);
-        wlmSender = new WLMJMSMessageProducer(connection, session, sender);
+        wlmSender = new WLMJMSMessageProducer(connection, session, sender, wlmState, cfIndex);
+        wlmState.producerOpened(cfIndex);
       }
       finally {
         // Check if we need to clean-up because of an exception that's being thrown
@@ -277,91 +973,264 @@ public class WLMJMSAttach {
       }
       return wlmSender;
     }
+    public void close(Object conn) {
+      closeQuietly(conn);
+    }
   }
   
   /** Static singleton for GenericConnectionCreator */
   private static final GenericConnectionCreator GENERIC_CONNECTION_CREATOR = new GenericConnectionCreator();
+  
+  /** Adapter for an application's WLMConnectionCreator */
+  private static final class CustomConnectionCreator<T> implements ConnectionCreator {
+    private final WLMConnectionCreator<T> creator;
+    private final Class<T> type;
+    CustomConnectionCreator(WLMConnectionCreator<T> creator, Class<T> type) {
+      this.creator = creator;
+      this.type = type;
+    }
+    public Object createConnAndSender(Object factory, Destination dest, boolean txn, int ackMode, WLMResourceReferenceState wlmState, int cfIndex) throws JMSException {
+      return creator.createConnection((ConnectionFactory)factory, dest, txn, ackMode, new WLMGateway(wlmState, cfIndex));
+    }
+    public void close(Object conn) {
+      try {
+        creator.closeConnection(type.cast(conn));
+      }
+      catch (RuntimeException e) {
+        logListenerException(e);
+      }
+    }
+  }
 
+  /** The key for pooled producer objects that can be used interchangeably */
+  private static final class PoolKey {
+    private final ConnectionCreator connectionCreator;
+    private final int cfIndex;
+    private final Destination dest;
+    private final boolean txn;
+    private final int ackMode;
+    
+    PoolKey(ConnectionCreator connectionCreator, int cfIndex, Destination dest, boolean txn, int ackMode) {
+      this.connectionCreator = connectionCreator;
+      this.cfIndex = cfIndex;
+      this.dest = dest;
+      this.txn = txn;
+      this.ackMode = ackMode;
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof PoolKey)) return false;
+      PoolKey other = (PoolKey)obj;
+      return connectionCreator == other.connectionCreator && cfIndex == other.cfIndex &&
+          txn == other.txn && ackMode == other.ackMode &&
+          (dest == null ? other.dest == null : dest.equals(other.dest));
+    }
+    
+    @Override
+    public int hashCode() {
+      return ((cfIndex * 31 + (dest == null ? 0 : dest.hashCode())) * 31 + ackMode) * 2 + (txn ? 1 : 0);
+    }
+  }
+  
   /**
    * Single-pass attempt to get a connection with WLM.
-   * Starting with the next round-robin index, we try to get a good connection from one
+   * Starting with the index chosen by the routing strategy (the next round-robin index by default), we try to get a good connection from one
    * of the connection factories. In most cases the first attempt will simply give
    * us a good connection from the JMS connection pool associated with the CF.
    * If the index we've chosen for WLM has failed recently, we try to avoid retrying
-   * the connection too often with our failedGatewayRetry interval. However, we only
-   * do this on the first pass (isRetry == false). Subsequent retry passes,
+   * the connection too often with our failedGatewayRetry interval, and then the circuit
+   * breaker in the shared state lets just one thread at a time probe the failed gateway.
+   * However, we only do this on the first pass (isRetry == false). Subsequent retry passes,
    * when we've tried/skipped all the connections once so we think all the
    * gateways are down, we always try all the connections.
+   * If a routing key is supplied, the gateways are tried in the order they appear on the consistent-hash
+   * ring from the key, so requests with the same key go to the same gateway while it is available.
+   * If pooling is enabled, an idle producer object for the chosen gateway is used if we have one.
+   * If hedging is enabled, non-transacted requests outside of a global transaction are passed on to getConnectionHedged.
    * @param connectionCreator
+   * @param routingKey The routing key, or null to use the routing strategy
    * @param isRetry Is this a retry attempt. If so we always attempt to connect, r 
    * @return
    */
-  private Object getConnectionWLM(ConnectionCreator connectionCreator, Destination dest, boolean txn, int ackMode, boolean isRetry) throws JMSException {
-    final String methodName = "getConnectionWLM";
-
-    // Get the initial round-robin index to try
-    int firstIndex = wlmState.nextIndex();
+  private Object getConnectionWLM(ConnectionCreator connectionCreator, Destination dest, boolean txn, int ackMode, String routingKey, boolean isRetry) throws JMSException {
+    // Get the initial index to try from our routing strategy (round-robin by default),
+    // or the order of the gateways on our consistent-hash ring if we have a routing key
+    int[] gatewayOrder = routingKey != null ? wlmState.getGatewayOrder(routingKey) : null;
+    int firstIndex = gatewayOrder != null ? gatewayOrder[0] : wlmState.nextIndex();
+    
+    // If we have an idle producer object for this gateway in our pool, use it
+    if (producerPool != null && !isRetry) {
+      Object conn = producerPool.borrow(new PoolKey(connectionCreator, firstIndex, dest, txn, ackMode), firstIndex);
+      if (conn != null) return conn;
+    }
+    
+    // Hedging runs the attempts on other threads, which cannot take part in the caller's
+    // transaction. So we only hedge non-transacted requests, outside of a global transaction
+    // (where the container ignores txn).
+    final int gatewayCount = connectionFactories.size();
+    if (hedgeDelayMillis != 0 && !txn && gatewayCount > 1 &&
+        !WLMJMSTranUtils.isGlobalTransactionActive(transactionRegistry)) {
+      return getConnectionHedged(connectionCreator, dest, txn, ackMode, isRetry, gatewayOrder, firstIndex);
+    }
     
     // Go through all the indexes until we get a good connection
     Object conn = null;
     JMSException lastException = null;
-    for (int i = 0; i < WLM_GATEWAY_COUNT && conn == null; i++) {
+    for (int i = 0; i < gatewayCount && conn == null; i++) {
       // What index are we trying on this time round the loop?
-      int cfIndex = (firstIndex+i) % WLM_GATEWAY_COUNT; 
+      int cfIndex = gatewayAt(gatewayOrder, firstIndex, i);
       
-      // Unless we're on a retry pass, we should check this gateway looks healthy
-      boolean skipUnhealthyGateway = false;
-      long unhealthyConnectionAttemptTimestamp = -1;
-      long lastFailureTimestamp = wlmState.getLastFailureTimestamp(cfIndex);
-      if (!isRetry && lastFailureTimestamp > 0) {
-        // We should only attempt the connection if our gateway timeout has expired
-        unhealthyConnectionAttemptTimestamp = System.currentTimeMillis();
-        skipUnhealthyGateway = 
-            (unhealthyConnectionAttemptTimestamp - lastFailureTimestamp) < failedGatewayRetry;
-        // If we're going to connect, we should update our retry timestamp immediately
-        // to minimise the chance of other threads also trying connections.
-        if (!skipUnhealthyGateway) {
-          wlmState.setLastConnectionAttempt(cfIndex, unhealthyConnectionAttemptTimestamp);
-          if (log.enabled()) log.debug(methodName, "Attempting previously failed connection " + cfIndex + ". Last failure time: " + new Date(unhealthyConnectionAttemptTimestamp));        
-        }
-        else {
-          if (log.enabled()) log.debug(methodName, "Skipping connection " + cfIndex + ". Last failure time: " + new Date(unhealthyConnectionAttemptTimestamp));        
-        }
-      }
-    
-      // Attempt the connection
-      if (!skipUnhealthyGateway) {        
+      // Attempt the connection, unless we should skip this gateway
+      if (shouldAttempt(cfIndex, isRetry)) {        
         try {
-          if (log.enabled()) log.debug(methodName, "Attempting connection " + cfIndex);
-          conn = connectionCreator.createConnAndSender(connectionFactories[cfIndex], dest, txn, ackMode);
+          conn = attemptConnection(connectionCreator, cfIndex, dest, txn, ackMode);
         }
         catch (JMSException e) {
-          // Print out the root exception message, as this generally contains the most useful information 
-          if (log.enabled()) log.logRootExMsg(methodName, "Failed", e);
-          // If this is a connection we previously thought was healthy (so we haven't already
-          // set our connection attempt timestamp above), then we need to mark this unhealthy.
-          if (lastFailureTimestamp <= 0) wlmState.setLastConnectionFailed(cfIndex);            
           lastException = e;
         }
       }
-      
-      // If we just successfully connected to a gateway that was previously marked unhealthy,
-      // then we need to update the state to mark it healthy.
-      if (conn != null && unhealthyConnectionAttemptTimestamp > 0) {
-        wlmState.setLastConnectionSuccessful(cfIndex);        
-      }
     }
     
-    // Either we're successfully connected, or we've run out of options.
-    // If we've run out of options, we should throw the exception.
+    return checkConnected(conn, lastException, isRetry);
+  }
+  
+  /**
+   * @param gatewayOrder The order of the gateways for a routing key, or null to go round from the first index
+   * @param firstIndex The first gateway to try
+   * @param position Our position in the pass through the gateways
+   * @return The gateway to try at this position
+   */
+  private int gatewayAt(int[] gatewayOrder, int firstIndex, int position) {
+    if (gatewayOrder != null) return gatewayOrder[position];
+    int cfIndex = firstIndex + position;
+    if (cfIndex >= connectionFactories.size()) cfIndex -= connectionFactories.size();
+    return cfIndex;
+  }
+  
+  /**
+   * Decide whether to attempt a connection to a gateway.
+   * Gateways being drained for maintenance, or forced down by an operator, are always skipped.
+   * If single flight is enabled, and another thread's attempt on the gateway is running slowly,
+   * we wait for its outcome rather than paying the same timeout (see awaitSlowFlight).
+   * Unless we're on a retry pass, we check the circuit breaker for this gateway.
+   * If the gateway has failed, only one thread at a time is given a permit to probe it
+   * once our failedGatewayRetry interval has expired. Everyone else skips straight
+   * on to the next gateway.
+   * @param cfIndex The gateway we're considering
+   * @param isRetry Is this a retry attempt. If so we always attempt to connect
+   * @return Whether to attempt the connection
+   */
+  private boolean shouldAttempt(int cfIndex, boolean isRetry) {
+    final String methodName = "shouldAttempt";
+    if (wlmState.isDraining(cfIndex)) {
+      if (log.traceEnabled()) log.trace(methodName, "Skipping draining connection {0}", cfIndex);
+      wlmState.recordSkip(cfIndex);
+      return false;
+    }
+    if (wlmState.isForcedDown(cfIndex)) {
+      if (log.traceEnabled()) log.trace(methodName, "Skipping connection {0} as it has been forced down", cfIndex);
+      wlmState.recordSkip(cfIndex);
+      return false;
+    }
+    if (singleFlightThresholdMillis > 0 && !awaitSlowFlight(cfIndex)) {
+      wlmState.recordSkip(cfIndex);
+      return false;
+    }
+    if (isRetry) return true;
+    int permit = wlmState.acquirePermit(cfIndex, failedGatewayRetry);
+    if (permit == WLMResourceReferenceState.PERMIT_PROBE) {
+      if (log.traceEnabled()) log.trace(methodName, "Attempting previously failed connection {0}. Last failure time: {1,date,yyyy-MM-dd HH:mm:ss.SSS}", cfIndex, wlmState.getLastFailureTimestamp(cfIndex));        
+    }
+    else if (permit == WLMResourceReferenceState.PERMIT_DENIED) {
+      if (log.traceEnabled()) log.trace(methodName, "Skipping connection {0}. Last failure time: {1,date,yyyy-MM-dd HH:mm:ss.SSS}", cfIndex, wlmState.getLastFailureTimestamp(cfIndex));        
+      wlmState.recordSkip(cfIndex);
+      return false;
+    }
+    return true;
+  }
+  
+  /**
+   * If another thread is leading a connection attempt to the gateway, and it has been running
+   * for longer than our single flight threshold, wait for its outcome for up to our single flight wait time.
+   * @param cfIndex The gateway we're considering
+   * @return True if there is no slow attempt, or it succeeded, so we should connect.
+   *         False if it failed or is still running, so we should move on.
+   */
+  private boolean awaitSlowFlight(int cfIndex) {
+    final String methodName = "awaitSlowFlight";
+    WLMResourceReferenceState.Flight flight = wlmState.getSlowFlight(cfIndex, singleFlightThresholdMillis);
+    if (flight == null) return true;
+    boolean succeeded = false;
+    if (singleFlightWaitMillis > 0) try {
+      succeeded = flight.awaitSuccess(singleFlightWaitMillis);
+    }
+    catch (InterruptedException e) {
+      // Restore the interrupt, and treat the gateway as unavailable
+      Thread.currentThread().interrupt();
+    }
+    if (!succeeded && log.traceEnabled()) log.trace(methodName, "Skipping connection {0} as another connection attempt is in progress", cfIndex);
+    return succeeded;
+  }
+  
+  /**
+   * Attempt a connection to a single gateway, updating the shared state with the result.
+   * If single flight is enabled, and no other thread is leading the attempts to the gateway, we lead.
+   * @return The connection
+   * @throws JMSException if the connection fails
+   */
+  private Object attemptConnection(ConnectionCreator connectionCreator, int cfIndex, Destination dest, boolean txn, int ackMode) throws JMSException {
+    final String methodName = "attemptConnection";
+    boolean attemptFailed = true;
+    WLMResourceReferenceState.Flight flight = singleFlightThresholdMillis > 0 ? wlmState.beginFlight(cfIndex) : null;
+    try {
+      if (log.traceEnabled()) log.trace(methodName, "Attempting connection {0}", cfIndex);
+      wlmState.connectionAttemptStarted(cfIndex);
+      long connectStartTime = System.nanoTime();
+      try {
+        Object conn = connectionCreator.createConnAndSender(connectionFactories.get(cfIndex), dest, txn, ackMode, wlmState, cfIndex);
+        if (producerPool != null && !(connectionCreator instanceof CustomConnectionCreator)) producerPool.adopt(conn, new PoolKey(connectionCreator, cfIndex, dest, txn, ackMode), cfIndex);
+        attemptFailed = false;
+        return conn;
+      }
+      finally {
+        wlmState.connectionAttemptEnded(cfIndex, !attemptFailed);
+        wlmState.recordConnectLatency(cfIndex, System.nanoTime() - connectStartTime);
+      }
+    }
+    catch (JMSException e) {
+      // Print out the root exception message, as this generally contains the most useful information.
+      // Every request can fail here during an outage, so we limit the rate.
+      if (log.enabled()) log.logRootExMsgRateLimited(methodName, "Failed", e);
+      throw e;
+    }
+    finally {
+      // Report the result to the circuit breaker. We do this even if an unexpected
+      // runtime exception is being thrown, so a probe permit is never lost.
+      // Marking a successful connection is only a volatile read for a healthy gateway.
+      if (attemptFailed) wlmState.setLastConnectionFailed(cfIndex);
+      else wlmState.setLastConnectionSuccessful(cfIndex);
+      if (flight != null) wlmState.endFlight(cfIndex, flight, !attemptFailed);
+    }
+  }
+  
+  /**
+   * Either we're successfully connected, or we've run out of options.
+   * If we've run out of options, we should throw the exception.
+   * @return The connection
+   * @throws JMSException if we're not connected
+   */
+  private static Object checkConnected(Object conn, JMSException lastException, boolean isRetry) throws JMSException {
     if (conn == null) {
-      if (lastException == null && !isRetry) {
-        // We've hit the special case where both gateways are down,
+      if (lastException == null) {
+        // We've hit the special case where all gateways are down,
         // and connections have been attempted recently. So in the first
         // (non-retry) phases we don't attempt any connections.
         // Throw a generic exception so the calling code enters the
-        // retry phase, and calls us back with isRetry=true
-        throw new JMSException("All gateways skipped due to recent failures");
+        // retry phase, and calls us back with isRetry=true.
+        // We also get here on a retry pass if all the gateways are draining, forced down,
+        // or waiting on slow connection attempts by other threads.
+        throw new JMSException(isRetry ? "All gateways skipped as draining, forced down or slow connecting" : "All gateways skipped due to recent failures, draining or forced down");
       }
       else {
         throw lastException;    
@@ -371,72 +1240,534 @@ public class WLMJMSAttach {
   }
   
   /**
+   * A version of the single-pass WLM logic that hedges against a slow gateway.
+   * Each attempt runs on a background thread. If the current attempt has not completed
+   * within our hedge delay, we start a parallel attempt on the next gateway (unless every worker thread
+   * is busy), and take whichever connection completes first. If an attempt fails, we move straight on to the next gateway
+   * as usual. Connections from attempts that lose the race are closed.
+   * @return The connection
+   * @throws JMSException if no connection could be established
+   */
+  private Object getConnectionHedged(ConnectionCreator connectionCreator, Destination dest, boolean txn, int ackMode, boolean isRetry, 
+      int[] gatewayOrder, int firstIndex) throws JMSException {
+    final String methodName = "getConnectionHedged";
+    final int gatewayCount = connectionFactories.size();
+    // The attempts run on background threads, which cannot look up the connection factories
+    connectionFactories.resolveAll();
+    BlockingQueue<HedgedAttempt> completedAttempts = new LinkedBlockingQueue<HedgedAttempt>();
+    List<HedgedAttempt> attempts = new ArrayList<HedgedAttempt>(gatewayCount);
+    int nextPosition = 0;
+    int running = 0;
+    Object conn = null;
+    JMSException lastException = null;
+    boolean startNext = true;
+    try {
+      while (conn == null) {
+        // Start an attempt on the next gateway we're allowed to try, if we need one.
+        // We need one at the start, when an attempt fails, or when the hedge delay passes without a result.
+        if (startNext) {
+          startNext = false;
+          while (nextPosition < gatewayCount) {
+            int cfIndex = gatewayAt(gatewayOrder, firstIndex, nextPosition++);
+            if (shouldAttempt(cfIndex, isRetry)) {
+              HedgedAttempt attempt = new HedgedAttempt(connectionCreator, cfIndex, dest, txn, ackMode, completedAttempts);
+              attempts.add(attempt);
+              if (running > 0 && log.traceEnabled()) log.trace(methodName, "Hedging with connection {0}", cfIndex);
+              WLMScheduler.getExecutor().execute(attempt);
+              running++;
+              break;
+            }
+          }
+        }
+        if (running == 0) break; // Nothing left to try
+        
+        // Wait for an attempt to complete. If there are more gateways we could try,
+        // only wait up to the hedge delay.
+        HedgedAttempt completed = nextPosition < gatewayCount ?
+            completedAttempts.poll(getHedgeDelay(attempts.get(attempts.size()-1).cfIndex), TimeUnit.MILLISECONDS) :
+            completedAttempts.take();
+        if (completed == null) {
+          // Only hedge if a worker thread is free. Otherwise the hedge would queue behind the
+          // other background work, so we keep waiting for the attempts we have.
+          if (!WLMScheduler.isExecutorSaturated()) startNext = true;
+          else if (log.traceEnabled()) log.trace(methodName, "Not hedging, as all worker threads are busy");
+        }
+        else {
+          running--;
+          if (completed.conn != null) conn = completed.conn;
+          else {
+            lastException = completed.exception;
+            startNext = true;
+          }
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      lastException = new JMSException("Interrupted waiting for connection");
+      lastException.setLinkedException(e);
+      conn = null;
+    }
+    finally {
+      // Abandon all the attempts that are still running, so they close their connection if they
+      // complete. Any that completed, but we have not taken the result from, are in our queue.
+      for (HedgedAttempt attempt : attempts) attempt.abandon();
+      HedgedAttempt loser;
+      while ((loser = completedAttempts.poll()) != null) {
+        if (loser.conn != null && loser.conn != conn) connectionCreator.close(loser.conn);
+      }
+    }
+    
+    return checkConnected(conn, lastException, isRetry);
+  }
+  
+  /**
+   * Calculate how long to wait for an attempt on a gateway before hedging.
+   * @param cfIndex The gateway of the attempt
+   * @return The configured hedge delay, or an estimate of the 95th percentile
+   *         connect latency of the gateway if the delay is adaptive.
+   */
+  private long getHedgeDelay(int cfIndex) {
+    if (hedgeDelayMillis > 0) return hedgeDelayMillis;
+    return Math.max(MIN_ADAPTIVE_HEDGE_DELAY_MS, (long)wlmState.getConnectLatencyP95(cfIndex));
+  }
+  
+  /**
+   * A single connection attempt, run on a background thread when hedging.
+   */
+  private final class HedgedAttempt implements Runnable {
+    private static final int RUNNING = 0;
+    private static final int COMPLETED = 1;
+    private static final int ABANDONED = 2;
+    private final ConnectionCreator connectionCreator;
+    private final int cfIndex;
+    private final Destination dest;
+    private final boolean txn;
+    private final int ackMode;
+    private final BlockingQueue<HedgedAttempt> completedAttempts;
+    private final AtomicInteger status = new AtomicInteger(RUNNING);
+    private volatile Object conn = null;
+    private volatile JMSException exception = null;
+    
+    HedgedAttempt(ConnectionCreator connectionCreator, int cfIndex, Destination dest, boolean txn, int ackMode, 
+        BlockingQueue<HedgedAttempt> completedAttempts) {
+      this.connectionCreator = connectionCreator;
+      this.cfIndex = cfIndex;
+      this.dest = dest;
+      this.txn = txn;
+      this.ackMode = ackMode;
+      this.completedAttempts = completedAttempts;
+    }
+    
+    /**
+     * Attempt the connection, then hand the result back to the waiting thread,
+     * or close the connection if it has given up on us.
+     */
+    public void run() {
+      Object tConn = null;
+      try {
+        tConn = attemptConnection(connectionCreator, cfIndex, dest, txn, ackMode);
+      }
+      catch (JMSException e) {
+        exception = e;
+      }
+      catch (RuntimeException e) {
+        exception = new JMSException("Unexpected exception: " + e);
+        exception.setLinkedException(e);
+      }
+      conn = tConn;
+      if (status.compareAndSet(RUNNING, COMPLETED)) completedAttempts.add(this);
+      else if (tConn != null) connectionCreator.close(tConn);
+    }
+    
+    /**
+     * Tell the attempt nobody is waiting for it.
+     */
+    void abandon() {
+      status.compareAndSet(RUNNING, ABANDONED);
+    }
+  }
+  
+  /**
+   * @param deadline The time after which to give up, or 0 to use our timeout only
    * @return A JMS Connection
    */
-  private Object getConnectionWithRetry(ConnectionCreator connectionCreator, Destination dest, boolean txn, int ackMode) throws JMSException {
+  private Object getConnectionWithRetry(ConnectionCreator connectionCreator, Destination dest, boolean txn, int ackMode, String routingKey, long deadline) throws JMSException {
     final String methodName = "getConnectionWithRetry";
     
+    // Don't start work that is already too late
+    if (deadline > 0 && System.currentTimeMillis() >= deadline) {
+      throw new JMSException("Deadline passed before connecting");
+    }
+    
     // Run through the connection pool once, trying to get a connection
     Object conn = null;
     JMSException lastException = null;
     try {
-      conn = getConnectionWLM(connectionCreator, dest, txn, ackMode, false /* First phase (non-retry) */);
+      conn = getConnectionWLM(connectionCreator, dest, txn, ackMode, routingKey, false /* First phase (non-retry) */);
     }
     catch (JMSException e) {
-      if (log.enabled()) log.logExStack(methodName, "No gateways currently available. Entering retry logic. Last exception", e);
+      if (log.enabled()) log.logExStackRateLimited(methodName, "No gateways currently available. Entering retry logic. Last exception", e);
       lastException = e;
+      
+      // If all the gateways are in their failed window, we might be asked to give up straight away
+      if (shouldFailFast()) throw e;
     }
     
     // Do we need to enter our retry logic?
     if (conn == null) {
+      wlmState.recordRetryLoopEntry();
+      
       // Check the current time to use in our retry logic
       long startTime = System.currentTimeMillis();
       int timeWaiting = 0;
-      int delay = initialDelayMillis;
+      
+      // Clip our timeout to the caller's deadline, if that comes first
+      int retryTimeout = getRetryTimeout(deadline, startTime);
+      if (retryTimeout == 0) {
+        if (log.traceEnabled()) log.trace(methodName, "Deadline passed. Not retrying");
+        throw lastException;
+      }
+      int delay = Math.min(firstRetryDelay(), retryTimeout);
       
       // Keep waiting until we get a connection or time out
       // We always retry once in this 2nd phase, as it's possible the first phase
       // didn't even try to connect, as all the servers were skipped due to connections
       // having been attempted too recently.
       do {
-        if (log.enabled()) log.debug(methodName, "Retry loop. Delay=" + delay);
+        if (log.traceEnabled()) log.trace(methodName, "Retry loop. Delay={0}", delay);
         
         // Sleep for the current delay
         try {
           Thread.sleep(delay);
+          wlmState.recordBackoff(delay);
         }
         catch (InterruptedException e) {
           // If we're interrupted throw the last exception
           throw lastException;
         }
         
-        // Attempt all connections
-        try {
-          conn = getConnectionWLM(connectionCreator, dest, txn, ackMode, true /* Retry phase */);
-        }
-        catch (JMSException e) {
-          lastException = e;
+        // Attempt all connections, if the shared retry budget allows
+        if (wlmState.tryAcquireRetry()) {
+          try {
+            conn = getConnectionWLM(connectionCreator, dest, txn, ackMode, routingKey, true /* Retry phase */);
+          }
+          catch (JMSException e) {
+            lastException = e;
+          }
         }
+        else if (log.traceEnabled()) log.trace(methodName, "Retry budget exhausted. Skipping retry");
         
         // See how long we have waited
         if (conn == null) {
           timeWaiting = (int)(System.currentTimeMillis() - startTime);
-          if (timeWaiting < 0) timeWaiting = timeoutMillis; // Just in case of a clock change
+          if (timeWaiting < 0) timeWaiting = retryTimeout; // Just in case of a clock change
           
           // Calculate the next delay
-          delay = Math.min(delay * 2, timeoutMillis-timeWaiting);
+          delay = nextRetryDelay(delay, timeWaiting, retryTimeout);
         }
         
-      } while (conn == null && timeWaiting < timeoutMillis);
+      } while (conn == null && timeWaiting < retryTimeout);
     }
   
     // If we timed out, throw the last exception
-    if (log.enabled()) log.debug(methodName, "Conn: " + conn);
+    if (log.traceEnabled()) log.trace(methodName, "Conn: {0}", conn);
     if (conn == null) throw lastException;
     
     // Return the connection
     return conn;
     
   }
+  
+  /**
+   * @param deadline The time after which to give up, or 0 to use our timeout only
+   * @param startTime The time the retry logic started
+   * @return Our timeout, clipped to the time left before the caller's deadline if that comes first
+   */
+  private int getRetryTimeout(long deadline, long startTime) {
+    if (deadline <= 0) return timeoutMillis;
+    return (int)Math.max(0, Math.min(timeoutMillis, deadline - startTime));
+  }
+  
+  /**
+   * @return The delay before the first retry pass
+   */
+  private int firstRetryDelay() {
+    return retryJitter ? nextRetryDelay(initialDelayMillis, 0, timeoutMillis) : initialDelayMillis;
+  }
+  
+  /**
+   * Calculate the delay before the next retry pass.
+   * With jitter enabled we use "decorrelated jitter", choosing a random delay between the initial
+   * delay and three times the previous delay. This spreads out the retries from threads that
+   * lost their gateways at the same time, while still backing off.
+   * @param delay The previous delay, or the initial delay for the first retry
+   * @param timeWaiting The time we have waited so far
+   * @param retryTimeout Our timeout, or the time to the caller's deadline if that is sooner
+   * @return The next delay, which never takes us past the timeout
+   */
+  private int nextRetryDelay(int delay, int timeWaiting, int retryTimeout) {
+    long nextDelay;
+    if (retryJitter) {
+      long maxDelay = (long)delay * 3;
+      nextDelay = initialDelayMillis + (long)(WLMRandom.nextDouble() * (maxDelay - initialDelayMillis));
+    }
+    else nextDelay = (long)delay * 2;
+    return (int)Math.min(nextDelay, retryTimeout - timeWaiting);
+  }
+  
+  /**
+   * Check whether to give up after the first pass, without entering the retry logic.
+   * @return Whether we are configured to fail fast, and all gateways are in their failed window
+   */
+  private boolean shouldFailFast() {
+    final String methodName = "shouldFailFast";
+    if (failFast && wlmState.allFailed()) {
+      if (log.traceEnabled()) log.trace(methodName, "All gateways have failed recently. Failing fast");
+      return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Start an asynchronous connection attempt, making the first pass on the calling thread.
+   * @param routingKey The routing key, or null to use the routing strategy
+   * @param deadline The time after which to give up, or 0 to use our timeout only
+   * @return A future for the connection
+   */
+  private <T> WLMConnectionFuture<T> getConnectionAsync(ConnectionCreator connectionCreator, Class<T> type, Destination dest, boolean txn, int ackMode,
+      String routingKey, long deadline) {
+    final String methodName = "getConnectionAsync";
+    WLMConnectionFuture<T> future = new WLMConnectionFuture<T>();
+    
+    // Don't start work that is already too late
+    if (deadline > 0 && System.currentTimeMillis() >= deadline) {
+      future.fail(new JMSException("Deadline passed before connecting"));
+      return future;
+    }
+    
+    try {
+      future.complete(type.cast(getConnectionWLM(connectionCreator, dest, txn, ackMode, routingKey, false /* First phase (non-retry) */)));
+    }
+    catch (JMSException e) {
+      if (shouldFailFast()) future.fail(e);
+      else {
+        wlmState.recordRetryLoopEntry();
+        int retryTimeout = getRetryTimeout(deadline, System.currentTimeMillis());
+        if (retryTimeout == 0) {
+          if (log.traceEnabled()) log.trace(methodName, "Deadline passed. Not retrying");
+          future.fail(e);
+          return future;
+        }
+        if (log.enabled()) log.logRootExMsgRateLimited(methodName, "No gateways currently available. Scheduling retry. Last exception", e);
+        // The retries run on background threads, which cannot look up the connection factories
+        connectionFactories.resolveAll();
+        new AsyncRetry<T>(connectionCreator, type, dest, txn, ackMode, routingKey, retryTimeout, future, e).schedule();
+      }
+    }
+    return future;
+  }
+  
+  /**
+   * The retry phase of an asynchronous connection attempt, with the same backoff as getConnectionWithRetry.
+   * The shared scheduler only times the delay before each attempt, and then hands the attempt
+   * to the worker threads. A connection attempt can block for a long time, and must not hold up
+   * the scheduler, which also runs the health prober and the pool eviction needed to recover.
+   */
+  private final class AsyncRetry<T> implements Runnable {
+    private final ConnectionCreator connectionCreator;
+    private final Class<T> type;
+    private final Destination dest;
+    private final boolean txn;
+    private final int ackMode;
+    private final String routingKey;
+    /** Our timeout, or the time to the caller's deadline if that is sooner */
+    private final int retryTimeout;
+    private final WLMConnectionFuture<T> future;
+    private final long startTime = System.currentTimeMillis();
+    private int delay;
+    private JMSException lastException;
+    
+    AsyncRetry(ConnectionCreator connectionCreator, Class<T> type, Destination dest, boolean txn, int ackMode,
+        String routingKey, int retryTimeout, WLMConnectionFuture<T> future, JMSException lastException) {
+      this.connectionCreator = connectionCreator;
+      this.type = type;
+      this.dest = dest;
+      this.txn = txn;
+      this.ackMode = ackMode;
+      this.routingKey = routingKey;
+      this.retryTimeout = retryTimeout;
+      this.delay = Math.min(firstRetryDelay(), retryTimeout);
+      this.future = future;
+      this.lastException = lastException;
+      asyncRetries.add(this);
+    }
+    
+    /** Hands the attempt to the worker threads once the delay has passed */
+    private final Runnable handoff = new Runnable() {
+      public void run() {
+        try {
+          WLMScheduler.getExecutor().execute(AsyncRetry.this);
+        }
+        catch (RejectedExecutionException e) {
+          // We're shutting down
+          failShutdown();
+        }
+      }
+    };
+    
+    /**
+     * Schedule the next attempt after the current delay
+     */
+    void schedule() {
+      // Do not start the scheduler again if we were failed by shutdown
+      if (future.isDone()) return;
+      try {
+        WLMScheduler.get().schedule(handoff, delay, TimeUnit.MILLISECONDS);
+      }
+      catch (RejectedExecutionException e) {
+        // We're shutting down
+        failShutdown();
+      }
+    }
+    
+    /**
+     * Fail the attempt because the background work has been shut down
+     */
+    void failShutdown() {
+      JMSException shutdownException = new JMSException("WLMJMSAttach has been shut down");
+      shutdownException.setLinkedException(lastException);
+      fail(shutdownException);
+    }
+    
+    /**
+     * Complete the attempt with an exception
+     * @param exception The exception
+     */
+    private void fail(JMSException exception) {
+      asyncRetries.remove(this);
+      future.fail(exception);
+    }
+    
+    /**
+     * Attempt all connections once, then either complete the future or schedule the next attempt.
+     * We must complete the future if anything goes wrong, so we catch runtime exceptions too.
+     */
+    public void run() {
+      final String methodName = "AsyncRetry.run";
+      // Stop if we've been cancelled
+      if (future.isDone()) {
+        asyncRetries.remove(this);
+        return;
+      }
+      wlmState.recordBackoff(delay);
+      
+      Object conn = null;
+      if (wlmState.tryAcquireRetry()) {
+        try {
+          conn = getConnectionWLM(connectionCreator, dest, txn, ackMode, routingKey, true /* Retry phase */);
+        }
+        catch (JMSException e) {
+          lastException = e;
+        }
+        catch (RuntimeException e) {
+          if (log.enabled()) log.logExStack(methodName, "Unexpected exception", e);
+          JMSException jmsException = new JMSException("Unexpected exception: " + e);
+          jmsException.setLinkedException(e);
+          fail(jmsException);
+          return;
+        }
+      }
+      else if (log.traceEnabled()) log.trace(methodName, "Retry budget exhausted. Skipping retry");
+      
+      if (conn != null) {
+        if (log.traceEnabled()) log.trace(methodName, "Conn: {0}", conn);
+        asyncRetries.remove(this);
+        // If we were cancelled while connecting, nobody else will close the connection
+        if (!future.complete(type.cast(conn))) connectionCreator.close(conn);
+        return;
+      }
+      
+      // See how long we have waited. We stop scheduling once we reach the caller's deadline.
+      int timeWaiting = (int)(System.currentTimeMillis() - startTime);
+      if (timeWaiting < 0) timeWaiting = retryTimeout; // Just in case of a clock change
+      if (timeWaiting >= retryTimeout) {
+        fail(lastException);
+      }
+      else {
+        // Calculate the next delay
+        delay = nextRetryDelay(delay, timeWaiting, retryTimeout);
+        if (log.traceEnabled()) log.trace(methodName, "Retry loop. Delay={0}", delay);
+        schedule();
+      }
+    }
+  }
+  
+  /**
+   * The MQ reason codes that mean a problem with the gateway rather than with a message:
+   * CONNECTION_BROKEN, HCONN_ERROR, PUT_INHIBITED, Q_FULL, Q_MGR_NOT_AVAILABLE, Q_MGR_QUIESCING, Q_MGR_STOPPING,
+   * CONNECTION_QUIESCING, CONNECTION_STOPPING, CHANNEL_NOT_AVAILABLE, HOST_NOT_AVAILABLE. Sorted for binary search.
+   */
+  private static final int[] GATEWAY_FAILURE_REASON_CODES = { 
+    2009, 2018, 2051, 2053, 2059, 2161, 2162, 2202, 2203, 2537, 2538 };
+  
+  /**
+   * Decide whether an exception from a send or commit shows a problem with the gateway, such as
+   * a broken connection, rather than with the messages themselves (package private).
+   * Only gateway problems should mark the gateway as failed and move the work to another gateway.
+   * Where the JMS provider is MQ, we use the reason code of the linked MQException. Otherwise the
+   * JMS exceptions that describe a bad message or destination are message problems, and anything
+   * else is assumed to be a gateway problem.
+   * @param e The exception
+   * @return Whether the gateway should be marked as failed
+   */
+  static boolean isGatewayFailure(JMSException e) {
+    if (e instanceof MessageFormatException || e instanceof MessageNotWriteableException ||
+        e instanceof MessageNotReadableException || e instanceof MessageEOFException ||
+        e instanceof InvalidDestinationException) {
+      return false;
+    }
+    int reasonCode = getMQReasonCode(e);
+    if (reasonCode > 0) return Arrays.binarySearch(GATEWAY_FAILURE_REASON_CODES, reasonCode) >= 0;
+    return true;
+  }
+  
+  /**
+   * Find the MQ reason code for an exception, from the getReason() method of the linked
+   * MQException. We use reflection, as we do not depend on the MQ classes.
+   * @param e The exception
+   * @return The reason code, or 0 if there is none
+   */
+  private static int getMQReasonCode(JMSException e) {
+    Throwable linked = e.getLinkedException();
+    for (int depth = 0; linked != null && depth < 5; depth++) {
+      try {
+        Method getReason = linked.getClass().getMethod("getReason");
+        if (getReason.getReturnType() == int.class) return ((Integer)getReason.invoke(linked)).intValue();
+      }
+      catch (Exception reflectionException) {
+        // Not an MQException
+      }
+      linked = linked instanceof JMSException ? ((JMSException)linked).getLinkedException() : linked.getCause();
+    }
+    return 0;
+  }
+  
+  /**
+   * Close a WLM object we created but cannot hand back to anyone, suppressing exceptions.
+   * @param conn A WLMJMSMessageProducer, WLMJMSQueueSender or WLMJMSTopicPublisher
+   */
+  static void closeQuietly(Object conn) {
+    if (conn instanceof WLMJMSMessageProducer) ((WLMJMSMessageProducer)conn).destroy();
+    else if (conn instanceof WLMJMSQueueSender) ((WLMJMSQueueSender)conn).destroy();
+    else if (conn instanceof WLMJMSTopicPublisher) ((WLMJMSTopicPublisher)conn).destroy();
+  }
+  
+  /**
+   * Log an exception thrown by one of our callers' listeners
+   * @param e The exception
+   */
+  static void logListenerException(RuntimeException e) {
+    if (log.enabled()) log.logExStack("logListenerException", "Listener threw exception", e);
+  }
 
 }
@@ -0,0 +1,431 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+/**
+ * The configuration for a {@link WLMJMSAttach} instance.
+ * The setters return this object, so the configuration can be built up in a single statement.
+ * Settings that are shared by all users of a resource reference prefix, such as the routing
+ * strategy, are taken from the configuration of the first {@link WLMJMSAttach} created for
+ * that prefix.
+ */
+public class WLMJMSAttachConfig {
+
+  /** The initial delay to use for retry */
+  private int initialDelayMillis = WLMJMSAttach.DEFAULT_INITIAL_DELAY_MS;
+  
+  /** The timeout to use for retry */
+  private int timeoutMillis = WLMJMSAttach.DEFAULT_TIMEOUT_MS;
+  
+  /** The amount of time to avoid attempting connections to an individual gateway after a connection attempt fails */
+  private int failedGatewayRetry = WLMJMSAttach.DEFAULT_FAILED_GATEWAY_RETRY_MS;
+  
+  /** The routing strategy for the resource reference prefix, or null for round-robin */
+  private WLMRoutingStrategy routingStrategy = null;
+  
+  /** The interval between background health checks of failed gateways, or 0 for none */
+  private int healthProbeIntervalMillis = 0;
+  
+  /** The time to wait for a connection attempt before hedging on the next gateway, or 0 for no hedging */
+  private int hedgeDelayMillis = 0;
+  
+  /** Whether to add random jitter to the delays between retries */
+  private boolean retryJitter = true;
+  
+  /** The number of retry passes allowed each second across the resource reference prefix, or 0 for no limit */
+  private int retryBudgetPerSecond = 0;
+  
+  /** Whether to throw immediately, rather than retry, when all gateways have failed recently */
+  private boolean failFast = false;
+  
+  /** The maximum number of idle producer objects to pool for each gateway, or 0 for no pooling */
+  private int producerPoolMaxIdlePerGateway = 0;
+  
+  /** The time a pooled producer object can stay idle before it is closed */
+  private int producerPoolIdleMillis = WLMJMSAttach.DEFAULT_PRODUCER_POOL_IDLE_MS;
+  
+  /** The name of the component to cache the connection factories for, or null to look them up every time */
+  private String cacheComponentName = null;
+  
+  /** The time over which a recovered gateway ramps up to its full share of connections, or 0 for no ramp */
+  private int slowStartWindowMillis = 0;
+  
+  /** The exponent of the slow start curve, where 1.0 is a linear ramp */
+  private double slowStartExponent = 1.0;
+  
+  /** The time a connection attempt can run before later callers wait on it rather than connecting, or 0 to disable */
+  private int singleFlightThresholdMillis = 0;
+  
+  /** The time a caller waits for a slow connection attempt by another thread, before moving on to the next gateway */
+  private int singleFlightWaitMillis = 0;
+  
+  /** Whether to register a JMX MBean for the WLM state of the prefix */
+  private boolean jmxEnabled = false;
+  
+  /**
+   * @return The initial delay to use when retrying if all CFs are unavailable
+   */
+  public int getInitialDelayMillis() {
+    return initialDelayMillis;
+  }
+  
+  /**
+   * @param initialDelayMillis The initial delay to use when retrying if all CFs are unavailable, this is backed off each time we wait until we hit the timeout
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setInitialDelayMillis(int initialDelayMillis) {
+    this.initialDelayMillis = initialDelayMillis;
+    return this;
+  }
+  
+  /**
+   * @return The timeout after which to throw an exception if a connection cannot be established
+   */
+  public int getTimeoutMillis() {
+    return timeoutMillis;
+  }
+  
+  /**
+   * @param timeoutMillis The timeout after which to throw an exception if a connection cannot be established
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setTimeoutMillis(int timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+    return this;
+  }
+  
+  /**
+   * @return The amount of time an individual gateway drops out of the WLM pool after a failure
+   */
+  public int getFailedGatewayRetry() {
+    return failedGatewayRetry;
+  }
+  
+  /**
+   * @param failedGatewayRetry The amount of time an individual gateway drops out of the WLM pool after a failure
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setFailedGatewayRetry(int failedGatewayRetry) {
+    this.failedGatewayRetry = failedGatewayRetry;
+    return this;
+  }
+  
+  /**
+   * @return The routing strategy for the resource reference prefix, or null for round-robin
+   */
+  public WLMRoutingStrategy getRoutingStrategy() {
+    return routingStrategy;
+  }
+  
+  /**
+   * @param routingStrategy The routing strategy for the resource reference prefix, or null for round-robin.
+   *                        Only used if this is the first {@link WLMJMSAttach} created for the prefix.
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setRoutingStrategy(WLMRoutingStrategy routingStrategy) {
+    this.routingStrategy = routingStrategy;
+    return this;
+  }
+  
+  /**
+   * @return The interval between background health checks of failed gateways, or 0 if disabled
+   */
+  public int getHealthProbeIntervalMillis() {
+    return healthProbeIntervalMillis;
+  }
+  
+  /**
+   * Enable background health checking of failed gateways for the resource reference prefix.
+   * Failed gateways are then only returned to the WLM pool once a background connection attempt
+   * succeeds, rather than by the first request thread to try after the failedGatewayRetry interval.
+   * Only used if this is the first {@link WLMJMSAttach} created for the prefix.
+   * See {@link WLMHealthProber} for considerations in a JavaEE environment.
+   * @param healthProbeIntervalMillis The interval between checks, or 0 to disable (the default)
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setHealthProbeIntervalMillis(int healthProbeIntervalMillis) {
+    this.healthProbeIntervalMillis = healthProbeIntervalMillis;
+    return this;
+  }
+  
+  /**
+   * @return The time to wait for a connection attempt before hedging on the next gateway,
+   *         0 if hedging is disabled, or {@link WLMJMSAttach#HEDGE_DELAY_ADAPTIVE}
+   */
+  public int getHedgeDelayMillis() {
+    return hedgeDelayMillis;
+  }
+  
+  /**
+   * Enable hedged connection attempts. If a connection attempt has not completed within the
+   * hedge delay, a parallel attempt is started on the next gateway, and the first connection
+   * to complete is used. This cuts the tail latency when a gateway hangs without refusing connections.
+   * Only non-transacted requests are hedged, as the attempts run on background threads
+   * that cannot take part in the caller's transaction. Requests made inside a global (JTA)
+   * transaction are not hedged either, as the container ignores the transacted flag there.
+   * 
+   * NOTE: Hedging is intended for unmanaged callers, such as a Java SE application using the MQ
+   * client directly. In an application server the attempts run on unmanaged threads, without the
+   * caller's component or security context, and the connections are not enlisted in any
+   * transaction. Only enable it there if your connection factories can create connections
+   * without a component context (for example by using an authentication alias on the connection factory itself).
+   * @param hedgeDelayMillis The delay in milliseconds, 0 to disable hedging (the default), or 
+   *        {@link WLMJMSAttach#HEDGE_DELAY_ADAPTIVE} to use an estimate of the 95th percentile
+   *        connect latency of the gateway being attempted.
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setHedgeDelayMillis(int hedgeDelayMillis) {
+    this.hedgeDelayMillis = hedgeDelayMillis;
+    return this;
+  }
+  
+  /**
+   * @return Whether random jitter is added to the delays between retries
+   */
+  public boolean isRetryJitter() {
+    return retryJitter;
+  }
+  
+  /**
+   * By default the delay between retries is chosen at random between the initial delay and three
+   * times the previous delay ("decorrelated jitter"), so threads and JVMs that lose their gateways at
+   * the same time do not all reconnect at the same moment when a gateway comes back.
+   * @param retryJitter Whether to add jitter, or false to double the delay each time
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setRetryJitter(boolean retryJitter) {
+    this.retryJitter = retryJitter;
+    return this;
+  }
+  
+  /**
+   * @return The number of retry passes allowed each second across the resource reference prefix, or 0 for no limit
+   */
+  public int getRetryBudgetPerSecond() {
+    return retryBudgetPerSecond;
+  }
+  
+  /**
+   * Limit the rate of retry passes through the gateways, across all threads using the resource reference prefix.
+   * When the budget is used up, a waiting thread skips its next pass and backs off again, so an outage
+   * does not turn into a storm of connection attempts. Up to one second's worth of retries can be made in a burst.
+   * Only used if this is the first {@link WLMJMSAttach} created for the prefix.
+   * @param retryBudgetPerSecond The number of retries allowed each second, or 0 for no limit (the default)
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setRetryBudgetPerSecond(int retryBudgetPerSecond) {
+    this.retryBudgetPerSecond = retryBudgetPerSecond;
+    return this;
+  }
+  
+  /**
+   * @return Whether to throw immediately when all gateways have failed recently
+   */
+  public boolean isFailFast() {
+    return failFast;
+  }
+  
+  /**
+   * Throw immediately, rather than entering the retry logic, if the first pass does not get a
+   * connection and all gateways are within their failed window. This allows callers to shed load
+   * during an outage, rather than queueing up until the timeout.
+   * @param failFast Whether to fail fast. The default is false.
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setFailFast(boolean failFast) {
+    this.failFast = failFast;
+    return this;
+  }
+  
+  /**
+   * @return The maximum number of idle producer objects to pool for each gateway, or 0 if pooling is disabled
+   */
+  public int getProducerPoolMaxIdlePerGateway() {
+    return producerPoolMaxIdlePerGateway;
+  }
+  
+  /**
+   * Enable pooling of the producer objects returned by each {@link WLMJMSAttach} instance.
+   * Only use this where there is no connection pooling underneath us, such as a Java SE application
+   * using the MQ client directly. In an application server, the connection pooling of the
+   * connection factory should be used instead.
+   * When a pooled object is finished with using its release() method, its connection, session and producer
+   * are kept open and reused the next time the same gateway is chosen for the same destination, transactionality
+   * and acknowledge mode. Its destroy() and close(boolean) methods really close the object. 
+   * This only limits the objects kept idle in the pool. It does not limit the number of objects
+   * in use, which are created on demand as usual, so size your queue manager connection limits
+   * for peak concurrency rather than for this setting.
+   * Uncommitted work is rolled back before an object is pooled. Create any consumers and temporary
+   * destinations through the methods on the producer object, so they are closed before it is pooled.
+   * Call {@link WLMJMSAttach#close()} when you have finished with the instance, to close the pool.
+   * @param producerPoolMaxIdlePerGateway The maximum number of idle objects kept for each gateway, or 0 to disable pooling (the default)
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setProducerPoolMaxIdlePerGateway(int producerPoolMaxIdlePerGateway) {
+    this.producerPoolMaxIdlePerGateway = producerPoolMaxIdlePerGateway;
+    return this;
+  }
+  
+  /**
+   * @return The time a pooled producer object can stay idle before it is closed
+   */
+  public int getProducerPoolIdleMillis() {
+    return producerPoolIdleMillis;
+  }
+  
+  /**
+   * @param producerPoolIdleMillis The time a pooled producer object can stay idle before it is closed
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setProducerPoolIdleMillis(int producerPoolIdleMillis) {
+    this.producerPoolIdleMillis = producerPoolIdleMillis;
+    return this;
+  }
+  
+  /**
+   * @return The name of the component the connection factories are cached for, or null if caching is disabled
+   */
+  public String getCacheComponentName() {
+    return cacheComponentName;
+  }
+  
+  /**
+   * Cache the connection factories found for the resource reference prefix, so that new
+   * instances of the same component attach without any JNDI lookups. For example an MDB pool
+   * scaling up only looks up each connection factory once, when the first instance uses it.
+   * As each component has its own java:comp/env namespace, the cache is kept separately for
+   * each component name. The name is scoped to the application (we tell applications apart by
+   * the thread context classloader), and must be unique to the component within it,
+   * for example its EJB or servlet name. Do not use the class name of a bean that is deployed
+   * as more than one component (for example two EJBs with the same ejb-class), as the second
+   * component would then silently use the connection factories bound for the first.
+   * The cache is a static map in the library. Like JMX, only enable it if your application
+   * calls {@link WLMJMSAttach#shutdown()} when it stops, or if the library is packaged inside the
+   * application (so the cache is discarded with it). The cache only holds the application's
+   * classloader weakly, but the connection factories it holds can still keep a stopped
+   * application's classloader alive if the library is shared between applications.
+   * If the bindings change while the application runs, call {@link WLMJMSAttach#clearConnectionFactoryCache()}.
+   * @param componentName The unique name of your component, or null to look up the
+   *                      connection factories for every instance (the default)
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setCacheComponentName(String componentName) {
+    this.cacheComponentName = componentName;
+    return this;
+  }
+  
+  /**
+   * @return The time over which a recovered gateway ramps up to its full share of connections, or 0 if disabled
+   */
+  public int getSlowStartWindowMillis() {
+    return slowStartWindowMillis;
+  }
+  
+  /**
+   * Ramp up the share of new connections given to a gateway when it recovers from a failure,
+   * or is undrained, rather than sending it its full share straight away while its channel
+   * instances and pools are cold. During the window the routing strategy's choice of the
+   * gateway is only accepted in proportion to its weight (see {@link WLMGatewayStatus#getEffectiveWeight(int)}),
+   * and otherwise the connection starts at the next healthy gateway instead.
+   * Requests with a routing key are not affected.
+   * Only used if this is the first {@link WLMJMSAttach} created for the prefix.
+   * @param slowStartWindowMillis The length of the ramp, or 0 to disable (the default)
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setSlowStartWindowMillis(int slowStartWindowMillis) {
+    this.slowStartWindowMillis = slowStartWindowMillis;
+    return this;
+  }
+  
+  /**
+   * @return The exponent of the slow start curve
+   */
+  public double getSlowStartExponent() {
+    return slowStartExponent;
+  }
+  
+  /**
+   * Set the shape of the slow start ramp. The weight of a recovering gateway is
+   * (elapsed / window) raised to this exponent, so 1.0 is a linear ramp (the default),
+   * values above 1.0 hold the gateway back for longer before ramping steeply at the end,
+   * and values below 1.0 ramp quickly at first.
+   * @param slowStartExponent The exponent, which must be positive
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setSlowStartExponent(double slowStartExponent) {
+    this.slowStartExponent = slowStartExponent;
+    return this;
+  }
+  
+  /**
+   * @return The time a connection attempt can run before later callers wait on it, or 0 if disabled
+   */
+  public int getSingleFlightThresholdMillis() {
+    return singleFlightThresholdMillis;
+  }
+  
+  /**
+   * Coalesce connection attempts to a gateway that is slow or failing. One thread leads the
+   * attempts to each gateway. If its attempt has been running for longer than this threshold,
+   * other callers do not start their own attempt on the gateway (each of which would wait for
+   * the same TCP or channel timeout). Instead they wait for the leader's outcome for up to the
+   * single flight wait time, and only connect if the leader succeeded, otherwise moving straight
+   * on to the next gateway.
+   * Set the threshold well above the normal connect time of your gateways, as callers arriving
+   * within the threshold still connect in parallel with the leader.
+   * @param singleFlightThresholdMillis The threshold, or 0 to disable (the default)
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setSingleFlightThresholdMillis(int singleFlightThresholdMillis) {
+    this.singleFlightThresholdMillis = singleFlightThresholdMillis;
+    return this;
+  }
+  
+  /**
+   * @return The time a caller waits for a slow connection attempt by another thread
+   */
+  public int getSingleFlightWaitMillis() {
+    return singleFlightWaitMillis;
+  }
+  
+  /**
+   * Set how long a caller waits for the outcome of a slow connection attempt by another thread,
+   * see {@link #setSingleFlightThresholdMillis(int)}.
+   * @param singleFlightWaitMillis The time to wait, or 0 to move on to the next gateway straight away (the default)
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setSingleFlightWaitMillis(int singleFlightWaitMillis) {
+    this.singleFlightWaitMillis = singleFlightWaitMillis;
+    return this;
+  }
+  
+  /**
+   * @return Whether a JMX MBean is registered for the WLM state of the prefix
+   */
+  public boolean isJmxEnabled() {
+    return jmxEnabled;
+  }
+  
+  /**
+   * Register a JMX MBean for the WLM state of the prefix, see {@link WLMResourceReferenceAdminMBean}.
+   * The MBean is registered in the platform MBean server, which outlives your application, so
+   * only enable this if your application calls {@link WLMJMSAttach#shutdown()} when it stops.
+   * Otherwise each restart of the application leaks an MBean, and with it the application's classloader.
+   * @param jmxEnabled Whether to register the MBean. The default is false.
+   * @return This configuration
+   */
+  public WLMJMSAttachConfig setJmxEnabled(boolean jmxEnabled) {
+    this.jmxEnabled = jmxEnabled;
+    return this;
+  }
+  
+}
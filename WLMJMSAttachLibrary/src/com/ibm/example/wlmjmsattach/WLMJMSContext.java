@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import java.lang.reflect.Method;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+/**
+ * A wrapping object containing a JMS 2.0 JMSContext and JMSProducer, created by {@link WLMJMSContextCreator}.
+ * The common sends of the simplified API are available directly on this object, and work whichever
+ * JMS API the caller is built against. Code built against JMS 2.0 can use the context and producer
+ * themselves, for example getContext(JMSContext.class).
+ * 
+ * A failed send that shows a problem with the gateway, such as a broken connection, marks the gateway
+ * as failed in the same way as a failed connection attempt. Like a JMSContext, this object must only
+ * be used by one thread at a time. Contexts are never pooled. Close the object when you have finished with it.
+ */
+public final class WLMJMSContext {
+
+  /** A logger for debug */
+  private static final WLMJMSLogger log = new WLMJMSLogger(WLMJMSContext.class);
+  
+  /** The JMSContext */
+  private final Object context;
+  
+  /** The JMSProducer */
+  private final Object producer;
+  
+  /** The destination requested by the caller */
+  private final Destination destination;
+  
+  /** The gateway we are connected to */
+  private final WLMGateway gateway;
+  
+  /** The arguments for a send, reused as we are only used by one thread at a time */
+  private final Object[] sendArgs = new Object[2];
+  
+  /** Whether we have been closed */
+  private boolean closed = false;
+  
+  /**
+   * Constructor (package private)
+   * @param context
+   * @param producer
+   * @param destination
+   * @param gateway
+   */
+  WLMJMSContext(Object context, Object producer, Destination destination, WLMGateway gateway) {
+    this.context = context;
+    this.producer = producer;
+    this.destination = destination;
+    this.gateway = gateway;
+  }
+  
+  /**
+   * @param contextType javax.jms.JMSContext, or an interface it implements
+   * @return The JMSContext
+   */
+  public <C> C getContext(Class<C> contextType) {
+    return contextType.cast(context);
+  }
+  
+  /**
+   * @param producerType javax.jms.JMSProducer, or an interface it implements
+   * @return The JMSProducer
+   */
+  public <P> P getProducer(Class<P> producerType) {
+    return producerType.cast(producer);
+  }
+  
+  /**
+   * @return The destination requested when the context was created
+   */
+  public Destination getDestination() {
+    return destination;
+  }
+  
+  /**
+   * @return The index of the gateway we are connected to (0 for the first resource reference)
+   */
+  public int getGatewayIndex() {
+    return gateway.getGatewayIndex();
+  }
+  
+  /**
+   * Create a text message using the context
+   * @param text The body of the message
+   * @return The message
+   * @throws JMSException if the message cannot be created
+   */
+  public TextMessage createTextMessage(String text) throws JMSException {
+    return (TextMessage)WLMJMSContextCreator.invoke(WLMJMSContextCreator.Methods.CREATE_TEXT_MESSAGE, context, new Object[] { text });
+  }
+  
+  /**
+   * Send a message to the destination requested when the context was created.
+   * @param message The message to send
+   * @throws JMSException if the send fails
+   */
+  public void send(Message message) throws JMSException {
+    send(WLMJMSContextCreator.Methods.SEND_MESSAGE, destination, message);
+  }
+  
+  /**
+   * Send a message to a destination.
+   * @param destination The destination
+   * @param message The message to send
+   * @throws JMSException if the send fails
+   */
+  public void send(Destination destination, Message message) throws JMSException {
+    send(WLMJMSContextCreator.Methods.SEND_MESSAGE, destination, message);
+  }
+  
+  /**
+   * Send a text message, with the producer's properties, to the destination requested when the context was created.
+   * @param text The body of the message
+   * @throws JMSException if the send fails
+   */
+  public void send(String text) throws JMSException {
+    send(WLMJMSContextCreator.Methods.SEND_TEXT, destination, text);
+  }
+  
+  /**
+   * Send a text message, with the producer's properties, to a destination.
+   * @param destination The destination
+   * @param text The body of the message
+   * @throws JMSException if the send fails
+   */
+  public void send(Destination destination, String text) throws JMSException {
+    send(WLMJMSContextCreator.Methods.SEND_TEXT, destination, text);
+  }
+  
+  /**
+   * Send using the producer, measuring the time taken for the latency-aware routing strategies,
+   * and marking the gateway as failed if the send fails because of a problem with the gateway.
+   * @param sendMethod The JMSProducer send method
+   * @param destination The destination
+   * @param body The message or body
+   * @throws JMSException if the send fails
+   */
+  private void send(Method sendMethod, Destination destination, Object body) throws JMSException {
+    final String methodName = "send";
+    sendArgs[0] = destination;
+    sendArgs[1] = body;
+    long sendStartTime = gateway.sendStarted();
+    try {
+      WLMJMSContextCreator.invoke(sendMethod, producer, sendArgs);
+      gateway.recordSendLatency(System.nanoTime() - sendStartTime);
+    }
+    catch (JMSException e) {
+      if (WLMJMSAttach.isGatewayFailure(e)) {
+        if (log.enabled()) log.logRootExMsg(methodName, "Send failed on connection " + gateway.getGatewayIndex(), e);
+        gateway.markFailed();
+      }
+      throw e;
+    }
+    finally {
+      gateway.sendEnded();
+      sendArgs[0] = null;
+      sendArgs[1] = null;
+    }
+  }
+  
+  /**
+   * Close the context
+   * @param throwExceptions Whether to throw an exception if the close fails
+   * @throws JMSException The exception encountered during the close, if throwExceptions set
+   */
+  public void close(boolean throwExceptions) throws JMSException {
+    // Only count the first close against the gateway
+    if (!closed) {
+      closed = true;
+      gateway.producerClosed();
+    }
+    try {
+      WLMJMSContextCreator.closeContext(context);
+    }
+    catch (JMSException e) {
+      if (log.enabled()) log.logExStack("close", "Context close failed", e);
+      if (throwExceptions) throw e;
+    }
+  }
+  
+}
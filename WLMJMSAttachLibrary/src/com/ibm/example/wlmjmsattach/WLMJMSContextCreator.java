@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+
+/**
+ * A {@link WLMConnectionCreator} for JMS 2.0, creating a JMSContext and JMSProducer for each gateway.
+ * See {@link WLMJMSAttach#getContext(Destination, boolean, int, long)}.
+ * 
+ * This library is built against JMS 1.1 so that it runs on Java EE 6, so the JMS 2.0 methods are
+ * called by reflection. They are looked up once, the first time they are needed, and if the JMS
+ * API does not include JMS 2.0 each connection attempt fails with a JMSException.
+ * Use {@link #isSupported()} to check in advance.
+ * 
+ * In a JavaEE environment a JMSContext from a container-managed connection factory is enlisted
+ * in the caller's global transaction in the same way as a Connection, and the transacted flag and
+ * acknowledge mode are ignored. FireAndForget in SendingServletApp shows this.
+ */
+public final class WLMJMSContextCreator implements WLMConnectionCreator<WLMJMSContext> {
+  
+  /** The singleton instance */
+  static final WLMJMSContextCreator INSTANCE = new WLMJMSContextCreator();
+  
+  /** The arguments for a method that takes none */
+  private static final Object[] NO_ARGS = new Object[0];
+  
+  /**
+   * The JMS 2.0 methods we call, looked up when this class is first used
+   */
+  static final class Methods {
+    /** ConnectionFactory.createContext(int) */
+    static final Method CREATE_CONTEXT;
+    /** JMSContext.createProducer() */
+    static final Method CREATE_PRODUCER;
+    /** JMSContext.createTextMessage(String) */
+    static final Method CREATE_TEXT_MESSAGE;
+    /** JMSContext.close() */
+    static final Method CLOSE;
+    /** JMSProducer.send(Destination, Message) */
+    static final Method SEND_MESSAGE;
+    /** JMSProducer.send(Destination, String) */
+    static final Method SEND_TEXT;
+    /** The reason we could not find them, or null if we found them */
+    static final String UNSUPPORTED_REASON;
+    
+    static {
+      Method createContext = null, createProducer = null, createTextMessage = null, close = null, sendMessage = null, sendText = null;
+      String unsupportedReason = null;
+      try {
+        ClassLoader loader = ConnectionFactory.class.getClassLoader();
+        Class<?> contextClass = Class.forName("javax.jms.JMSContext", false, loader);
+        Class<?> producerClass = Class.forName("javax.jms.JMSProducer", false, loader);
+        createProducer = contextClass.getMethod("createProducer");
+        createTextMessage = contextClass.getMethod("createTextMessage", String.class);
+        close = contextClass.getMethod("close");
+        sendMessage = producerClass.getMethod("send", Destination.class, Message.class);
+        sendText = producerClass.getMethod("send", Destination.class, String.class);
+        createContext = ConnectionFactory.class.getMethod("createContext", int.class);
+      }
+      catch (ClassNotFoundException e) {
+        unsupportedReason = "JMS 2.0 is not available: " + e;
+      }
+      catch (NoSuchMethodException e) {
+        unsupportedReason = "JMS 2.0 is not available: " + e;
+      }
+      CREATE_CONTEXT = createContext;
+      CREATE_PRODUCER = createProducer;
+      CREATE_TEXT_MESSAGE = createTextMessage;
+      CLOSE = close;
+      SEND_MESSAGE = sendMessage;
+      SEND_TEXT = sendText;
+      UNSUPPORTED_REASON = unsupportedReason;
+    }
+  }
+  
+  /**
+   * Private constructor
+   */
+  private WLMJMSContextCreator() {
+  }
+  
+  /**
+   * @return Whether the JMS API available to this library includes JMS 2.0
+   */
+  public static boolean isSupported() {
+    return Methods.UNSUPPORTED_REASON == null;
+  }
+  
+  /**
+   * Create a JMSContext and JMSProducer for a gateway
+   * @see WLMConnectionCreator#createConnection(ConnectionFactory, Destination, boolean, int, WLMGateway)
+   */
+  public WLMJMSContext createConnection(ConnectionFactory factory, Destination dest, boolean txn, int ackMode, WLMGateway gateway) throws JMSException {
+    if (Methods.UNSUPPORTED_REASON != null) throw new JMSException(Methods.UNSUPPORTED_REASON);
+    // JMSContext.SESSION_TRANSACTED has the same value as Session.SESSION_TRANSACTED
+    Object context = invoke(Methods.CREATE_CONTEXT, factory, new Object[] { Integer.valueOf(txn ? Session.SESSION_TRANSACTED : ackMode) });
+    Object producer;
+    try {
+      producer = invoke(Methods.CREATE_PRODUCER, context, NO_ARGS);
+    }
+    catch (JMSException e) {
+      try {
+        closeContext(context);
+      }
+      catch (JMSException closeException) {
+        // The context is broken, so there is nothing more we can do
+      }
+      throw e;
+    }
+    gateway.producerOpened();
+    return new WLMJMSContext(context, producer, dest, gateway);
+  }
+  
+  /**
+   * Close a context that cannot be returned to the caller
+   * @see WLMConnectionCreator#closeConnection(Object)
+   */
+  public void closeConnection(WLMJMSContext connection) {
+    try {
+      connection.close(false);
+    }
+    catch (JMSException e) {
+      // Cannot happen when throwExceptions is false
+    }
+  }
+  
+  /**
+   * Close a JMSContext
+   * @param context The JMSContext
+   * @throws JMSException if the close fails
+   */
+  static void closeContext(Object context) throws JMSException {
+    invoke(Methods.CLOSE, context, NO_ARGS);
+  }
+  
+  /**
+   * Call a JMS 2.0 method, converting the JMSRuntimeExceptions they throw into JMSExceptions
+   * so the WLM logic treats them the same as for JMS 1.1.
+   * @param method The method
+   * @param target The object to call it on
+   * @param args The arguments
+   * @return The result
+   * @throws JMSException if the method fails
+   */
+  static Object invoke(Method method, Object target, Object[] args) throws JMSException {
+    try {
+      return method.invoke(target, args);
+    }
+    catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof JMSException) throw (JMSException)cause;
+      if (cause instanceof Error) throw (Error)cause;
+      JMSException jmsException = new JMSException(String.valueOf(cause.getMessage()));
+      if (cause instanceof Exception) jmsException.setLinkedException((Exception)cause);
+      throw jmsException;
+    }
+    catch (IllegalAccessException e) {
+      JMSException jmsException = new JMSException(e.getMessage());
+      jmsException.setLinkedException(e);
+      throw jmsException;
+    }
+  }
+  
+}
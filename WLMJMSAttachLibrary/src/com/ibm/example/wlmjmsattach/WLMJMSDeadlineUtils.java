@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Helper methods for passing a caller's deadline along with a message, so the receiver
+ * can skip work that is already too late to be useful. For example a servlet with 2 seconds
+ * left to respond to its client can stamp that budget on its request, and the MDB processing
+ * the request can discard it if it arrives after the servlet has given up waiting for the reply.
+ * 
+ * The budget remaining when the message is sent is stamped as a message property, and the receiver
+ * measures it from the JMSTimestamp set by the provider when the message was sent.
+ * This still relies on the clocks of the sender and receiver being reasonably in step, so allow
+ * some margin if they may not be.
+ */
+public class WLMJMSDeadlineUtils {
+
+  /** The message property containing the time the sender had left when it sent the message, in milliseconds */
+  public static final String REMAINING_MILLIS_PROPERTY = "WLMRemainingMillis";
+  
+  /**
+   * Private constructor
+   */
+  private WLMJMSDeadlineUtils() {
+  }
+  
+  /**
+   * @param deadline The deadline (as returned by System.currentTimeMillis)
+   * @return The time remaining until the deadline, or 0 if it has passed
+   */
+  public static long remainingMillis(long deadline) {
+    return Math.max(0, deadline - System.currentTimeMillis());
+  }
+  
+  /**
+   * Stamp the time remaining until a deadline on a message, just before sending it
+   * @param message The message
+   * @param deadline The deadline (as returned by System.currentTimeMillis)
+   * @throws JMSException if the property cannot be set
+   */
+  public static void setDeadline(Message message, long deadline) throws JMSException {
+    message.setLongProperty(REMAINING_MILLIS_PROPERTY, remainingMillis(deadline));
+  }
+  
+  /**
+   * @param message A received message
+   * @return The deadline stamped on the message by the sender, or 0 if it does not have one
+   * @throws JMSException if the message properties cannot be read
+   */
+  public static long getDeadline(Message message) throws JMSException {
+    // Without a send timestamp we have nothing to measure the budget from
+    long sendTime = message.getJMSTimestamp();
+    if (sendTime == 0 || !message.propertyExists(REMAINING_MILLIS_PROPERTY)) return 0;
+    return sendTime + message.getLongProperty(REMAINING_MILLIS_PROPERTY);
+  }
+  
+  /**
+   * @param message A received message
+   * @return Whether the message has a deadline, and it has passed
+   * @throws JMSException if the message properties cannot be read
+   */
+  public static boolean isPastDeadline(Message message) throws JMSException {
+    long deadline = getDeadline(message);
+    return deadline > 0 && System.currentTimeMillis() >= deadline;
+  }
+  
+}
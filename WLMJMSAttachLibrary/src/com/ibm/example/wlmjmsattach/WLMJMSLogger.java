@@ -11,8 +11,7 @@
  *******************************************************************************/
 package com.ibm.example.wlmjmsattach;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,19 +19,50 @@ import java.util.logging.Logger;
  * Convenience wrapper for Java Logging.
  * Each class that needs logging constructs a static
  * instance of this class, with its class object.
+ * 
+ * Messages are logged at INFO, so they go to SystemOut, except for trace messages about
+ * individual routing decisions, which are logged at FINE so they can be enabled separately.
+ * The parameterized methods take a Java Logging pattern such as "Attempting connection {0}",
+ * and the message is only formatted if a handler publishes it. Callers should still check
+ * enabled() or traceEnabled() first, so nothing at all is allocated while logging is off.
+ * Exceptions on paths that can repeat for every request during an outage should be logged
+ * with the rate limited methods, so turning on logging during an incident does not flood the logs.
  */
 public class WLMJMSLogger {
 
+  /** The number of rate limited exceptions we log each second, for each logger */
+  public static final int EXCEPTIONS_PER_SECOND = 10;
+  
+  /**
+   * Builds a message only when it is going to be logged, for messages that need more work
+   * than a parameterized pattern, such as a walk of some state.
+   */
+  public interface MessageBuilder {
+    
+    /**
+     * @return The message
+     */
+    public String build();
+  }
+
   /** Keep a handle to the class name for logging */
   private final String className;
   
   /** Use Java logging for trace data */
   private final Logger log;
   
-  /** The level to log at. FINE will be enabled with trace, INFO will go to SystemOut.
-   *  In this simple example, all entries are logged at the same level. */
+  /** The level to log at. FINE will be enabled with trace, INFO will go to SystemOut. */
   private final Level LEVEL = Level.INFO;
   
+  /** The level for trace of individual routing decisions, which are too frequent to log at INFO under load */
+  private final Level TRACE_LEVEL = Level.FINE;
+  
+  /** Limits the rate of the rate limited exception methods */
+  private final WLMTokenBucket exceptionBudget = new WLMTokenBucket(EXCEPTIONS_PER_SECOND);
+  
+  /** The number of rate limited exceptions not logged since the last one that was */
+  private final AtomicLong suppressedExceptions = new AtomicLong();
+  
   /**
    * Constructor to initialize Java Logging
    * @param clazz
@@ -51,6 +81,14 @@ public class WLMJMSLogger {
     return log.isLoggable(LEVEL);
   }
   
+  /**
+   * The owning class should check this before calling any of the trace methods.
+   * @return Whether Java Logging is enabled for the trace level
+   */
+  public boolean traceEnabled() {
+    return log.isLoggable(TRACE_LEVEL);
+  }
+  
   /**
    * Log the specified string
    * Caller should first check LOG.isLoggable(LOG_LEVEL) for performance with trace turned off
@@ -62,17 +100,121 @@ public class WLMJMSLogger {
   }
   
   /**
-   * Log an exception
+   * Log a parameterized message, which is only formatted if it is published
+   * @param methodName
+   * @param pattern The message, with {0} where the parameter goes
+   * @param param0
+   */
+  public void debug(String methodName, String pattern, Object param0) {
+    if (log.isLoggable(LEVEL)) log.logp(LEVEL, className, methodName, pattern, new Object[] { param0 });
+  }
+  
+  /**
+   * Log a parameterized message, which is only formatted if it is published
+   * @param methodName
+   * @param pattern The message, with {0} and {1} where the parameters go
+   * @param param0
+   * @param param1
+   */
+  public void debug(String methodName, String pattern, Object param0, Object param1) {
+    if (log.isLoggable(LEVEL)) log.logp(LEVEL, className, methodName, pattern, new Object[] { param0, param1 });
+  }
+  
+  /**
+   * Log a message, which is only built if logging is enabled
+   * @param methodName
+   * @param builder
+   */
+  public void debug(String methodName, MessageBuilder builder) {
+    if (log.isLoggable(LEVEL)) log.logp(LEVEL, className, methodName, builder.build());
+  }
+  
+  /**
+   * Trace the specified string
+   * @param methodName
+   * @param msg
+   */
+  public void trace(String methodName, String msg) {
+    log.logp(TRACE_LEVEL, className, methodName, msg);
+  }
+  
+  /**
+   * Trace a parameterized message, which is only formatted if it is published
+   * @param methodName
+   * @param pattern The message, with {0} where the parameter goes
+   * @param param0
+   */
+  public void trace(String methodName, String pattern, Object param0) {
+    if (log.isLoggable(TRACE_LEVEL)) log.logp(TRACE_LEVEL, className, methodName, pattern, new Object[] { param0 });
+  }
+  
+  /**
+   * Trace a parameterized message, which is only formatted if it is published
+   * @param methodName
+   * @param pattern The message, with {0} and {1} where the parameters go
+   * @param param0
+   * @param param1
+   */
+  public void trace(String methodName, String pattern, Object param0, Object param1) {
+    if (log.isLoggable(TRACE_LEVEL)) log.logp(TRACE_LEVEL, className, methodName, pattern, new Object[] { param0, param1 });
+  }
+  
+  /**
+   * Trace a message, which is only built if trace is enabled
+   * @param methodName
+   * @param builder
+   */
+  public void trace(String methodName, MessageBuilder builder) {
+    if (log.isLoggable(TRACE_LEVEL)) log.logp(TRACE_LEVEL, className, methodName, builder.build());
+  }
+  
+  /**
+   * Log an exception. The stack is passed to Java Logging, and only rendered if it is published.
    * @param methodName
    * @param msg
    * @param e
    */
   public void logExStack(String methodName, String msg, Exception e) {
-    StringWriter strWriter = new StringWriter();
-    PrintWriter printWriter = new PrintWriter(strWriter);
-    e.printStackTrace(printWriter);
-    printWriter.flush();    
-    log.logp(LEVEL, className, methodName, msg + ": " + strWriter.toString());
+    log.logp(LEVEL, className, methodName, msg, e);
+  }
+  
+  /**
+   * Log an exception, unless we have already logged our limit for this second.
+   * For paths that can fail on every request during an outage.
+   * @param methodName
+   * @param msg
+   * @param e
+   */
+  public void logExStackRateLimited(String methodName, String msg, Exception e) {
+    if (!log.isLoggable(LEVEL)) return;
+    String suppressed = acquireExceptionPermit();
+    if (suppressed != null) log.logp(LEVEL, className, methodName, msg + suppressed, e);
+  }
+  
+  /**
+   * Log the root cause exception, unless we have already logged our limit for this second.
+   * For paths that can fail on every request during an outage.
+   * @param methodName
+   * @param msg
+   * @param e
+   */
+  public void logRootExMsgRateLimited(String methodName, String msg, Throwable e) {
+    if (!log.isLoggable(LEVEL)) return;
+    String suppressed = acquireExceptionPermit();
+    if (suppressed != null) logRootExMsg(methodName, msg + suppressed, e);
+  }
+  
+  /**
+   * Check our rate limit for exceptions
+   * @return Null if we should not log, otherwise a note of how many exceptions were suppressed (empty if none)
+   */
+  private String acquireExceptionPermit() {
+    if (!exceptionBudget.tryAcquire()) {
+      suppressedExceptions.incrementAndGet();
+      return null;
+    }
+    long suppressed = suppressedExceptions.getAndSet(0);
+    return suppressed > 0 ? " (" + suppressed + " similar messages suppressed)" : "";
   }
 
   /**
@@ -11,13 +11,23 @@
  *******************************************************************************/
 package com.ibm.example.wlmjmsattach;
 
+import java.util.Iterator;
+import java.util.List;
+
 import javax.jms.Connection;
+import javax.jms.Destination;
 import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+import javax.jms.TemporaryTopic;
 
 /**
- * A wrapping object containing a JMS Connection, Session and Producer
+ * A wrapping object containing a JMS Connection, Session and Producer.
+ * If the object is pooled, create any consumers and temporary destinations with the methods on
+ * this object rather than directly on the session, so they are cleaned up before the session is reused.
  */
 public class WLMJMSMessageProducer {
 
@@ -33,16 +43,38 @@ public class WLMJMSMessageProducer {
   /** The JMS MessageProducer */
   private final MessageProducer producer;
   
+  /** The shared WLM state for the gateway we are connected to */
+  private final WLMResourceReferenceState wlmState;
+  
+  /** The index of the gateway we are connected to */
+  private final int gatewayIndex;
+  
+  /** Whether we have been closed or released. Volatile, as the pool can hand us to another thread. */
+  private volatile boolean closed = false;
+  
+  /** Additional producers on our session for other destinations, created on first use */
+  private WLMProducerCache<Destination, MessageProducer> producerCache = null;
+  
+  /** Our entry in the pool of the WLMJMSAttach that created us, or null if we are not pooled */
+  private WLMProducerPool.Entry poolEntry = null;
+  
+  /** The consumers and temporary destinations created through us, cleaned up before we are pooled */
+  private final WLMSessionResources sessionResources = new WLMSessionResources();
+  
   /**
    * Constructor (package private)
    * @param connection
    * @param session
    * @param producer
+   * @param wlmState
+   * @param gatewayIndex
    */
-  WLMJMSMessageProducer(Connection connection, Session session, MessageProducer producer) {
+  WLMJMSMessageProducer(Connection connection, Session session, MessageProducer producer, WLMResourceReferenceState wlmState, int gatewayIndex) {
     this.connection = connection;
     this.session = session;
     this.producer = producer;
+    this.wlmState = wlmState;
+    this.gatewayIndex = gatewayIndex;
   }
 
   /**
@@ -67,13 +99,276 @@ public class WLMJMSMessageProducer {
   }
   
   /**
-   * Close all the resource under this object. 
+   * @return The index of the gateway we are connected to (0 for the first resource reference)
+   */
+  public int getGatewayIndex() {
+    return gatewayIndex;
+  }
+  
+  /**
+   * Send a message using the producer, measuring the time taken for the
+   * latency-aware routing strategies, and counting it for the least-in-flight strategy.
+   * @param message The message to send
+   * @throws JMSException if the send fails
+   */
+  public void send(Message message) throws JMSException {
+    long sendStartTime = wlmState.sendStarted(gatewayIndex);
+    try {
+      producer.send(message);
+      wlmState.recordSendLatency(gatewayIndex, System.nanoTime() - sendStartTime);
+    }
+    finally {
+      wlmState.sendEnded(gatewayIndex);
+    }
+  }
+  
+  /**
+   * Send a message using the producer, measuring the time taken for the
+   * latency-aware routing strategies, and counting it for the least-in-flight strategy.
+   * @param message The message to send
+   * @param deliveryMode The delivery mode to use
+   * @param priority The priority for this message
+   * @param timeToLive The message's lifetime (in milliseconds)
+   * @throws JMSException if the send fails
+   */
+  public void send(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+    long sendStartTime = wlmState.sendStarted(gatewayIndex);
+    try {
+      producer.send(message, deliveryMode, priority, timeToLive);
+      wlmState.recordSendLatency(gatewayIndex, System.nanoTime() - sendStartTime);
+    }
+    finally {
+      wlmState.sendEnded(gatewayIndex);
+    }
+  }
+  
+  /**
+   * Get an additional producer on our session, for sending to a different destination
+   * on the same gateway without creating another connection and session.
+   * The producers are cached by destination, up to a limit after which the least recently used is closed.
+   * They are all closed when this object is closed.
+   * @param destination The destination
+   * @return The producer
+   * @throws JMSException if the producer cannot be created
+   */
+  public MessageProducer getProducer(Destination destination) throws JMSException {
+    if (producerCache == null) {
+      producerCache = new WLMProducerCache<Destination, MessageProducer>() {
+        protected MessageProducer createProducer(Destination dest) throws JMSException {
+          return session.createProducer(dest);
+        }
+      };
+    }
+    return producerCache.get(destination);
+  }
+  
+  /**
+   * Send a message to a different destination using a cached producer, measuring the time taken for the
+   * latency-aware routing strategies, and counting it for the least-in-flight strategy. See {@link #getProducer(Destination)}.
+   * @param destination The destination
+   * @param message The message to send
+   * @throws JMSException if the send fails
+   */
+  public void send(Destination destination, Message message) throws JMSException {
+    MessageProducer cached = getProducer(destination);
+    long sendStartTime = wlmState.sendStarted(gatewayIndex);
+    try {
+      cached.send(message);
+      wlmState.recordSendLatency(gatewayIndex, System.nanoTime() - sendStartTime);
+    }
+    finally {
+      wlmState.sendEnded(gatewayIndex);
+    }
+  }
+  
+  /**
+   * Send a message to a different destination using a cached producer, measuring the time taken for the
+   * latency-aware routing strategies, and counting it for the least-in-flight strategy. See {@link #getProducer(Destination)}.
+   * @param destination The destination
+   * @param message The message to send
+   * @param deliveryMode The delivery mode to use
+   * @param priority The priority for this message
+   * @param timeToLive The message's lifetime (in milliseconds)
+   * @throws JMSException if the send fails
+   */
+  public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+    MessageProducer cached = getProducer(destination);
+    long sendStartTime = wlmState.sendStarted(gatewayIndex);
+    try {
+      cached.send(message, deliveryMode, priority, timeToLive);
+      wlmState.recordSendLatency(gatewayIndex, System.nanoTime() - sendStartTime);
+    }
+    finally {
+      wlmState.sendEnded(gatewayIndex);
+    }
+  }
+  
+  /**
+   * Create a consumer on our session, which is closed before the session is reused if we are pooled
+   * @param destination The destination
+   * @return The consumer
+   * @throws JMSException if the consumer cannot be created
+   */
+  public MessageConsumer createConsumer(Destination destination) throws JMSException {
+    return sessionResources.add(session.createConsumer(destination));
+  }
+  
+  /**
+   * Create a consumer on our session, which is closed before the session is reused if we are pooled
+   * @param destination The destination
+   * @param messageSelector The message selector
+   * @return The consumer
+   * @throws JMSException if the consumer cannot be created
+   */
+  public MessageConsumer createConsumer(Destination destination, String messageSelector) throws JMSException {
+    return sessionResources.add(session.createConsumer(destination, messageSelector));
+  }
+  
+  /**
+   * Create a temporary queue on our session, which is deleted before the session is reused if we are pooled
+   * @return The temporary queue
+   * @throws JMSException if the temporary queue cannot be created
+   */
+  public TemporaryQueue createTemporaryQueue() throws JMSException {
+    return sessionResources.add(session.createTemporaryQueue());
+  }
+  
+  /**
+   * Create a temporary topic on our session, which is deleted before the session is reused if we are pooled
+   * @return The temporary topic
+   * @throws JMSException if the temporary topic cannot be created
+   */
+  public TemporaryTopic createTemporaryTopic() throws JMSException {
+    return sessionResources.add(session.createTemporaryTopic());
+  }
+  
+  /**
+   * Send a stream of messages on our transacted session, committing every commitCount messages,
+   * or when commitIntervalMillis has passed since the first uncommitted message was sent.
+   * Committing in batches means MQ forces its log once per batch, rather than once per
+   * persistent message. Any messages already in the uncommitted list, for example from an earlier
+   * attempt on another gateway, are sent first.
+   * If a send or commit fails the exception is thrown, and the uncommitted list contains the messages
+   * sent since the last successful commit. The caller should roll back, and can re-send them.
+   * See {@link WLMJMSAttach#sendBatch(Destination, Iterator, int, int)} to re-drive the uncommitted
+   * messages on another gateway automatically.
+   * @param messages The messages to send. These can be created with any session of the same JMS provider.
+   * @param uncommitted The messages sent but not yet committed, normally an empty list. 
+   * @param commitCount The maximum number of messages in each transaction
+   * @param commitIntervalMillis The maximum time between the first send and the commit of each
+   *        transaction, or 0 to only commit based on the count
+   * @return The number of messages committed
+   * @throws JMSException if a send or commit fails
+   */
+  public int sendBatch(Iterator<? extends Message> messages, List<Message> uncommitted, int commitCount, int commitIntervalMillis) throws JMSException {
+    final String methodName = "sendBatch";
+    if (commitCount <= 0 || commitIntervalMillis < 0) throw new IllegalArgumentException();
+    if (!session.getTransacted()) throw new IllegalStateException("Batches must be sent on a transacted session");
+    int committed = 0;
+    long batchStartTime = System.currentTimeMillis();
+    for (Message message : uncommitted) send(message);
+    while (true) {
+      boolean more = messages.hasNext();
+      // Commit if our batch is full, our interval has passed, or we've sent everything
+      if (!uncommitted.isEmpty() && (!more || uncommitted.size() >= commitCount || 
+          (commitIntervalMillis > 0 && System.currentTimeMillis() - batchStartTime >= commitIntervalMillis))) {
+        session.commit();
+        if (log.traceEnabled()) log.trace(methodName, "Committed {0} messages", uncommitted.size());
+        committed += uncommitted.size();
+        uncommitted.clear();
+      }
+      if (!more) break;
+      Message message = messages.next();
+      if (uncommitted.isEmpty()) batchStartTime = System.currentTimeMillis();
+      uncommitted.add(message);
+      send(message);
+    }
+    return committed;
+  }
+  
+  /**
+   * Set our entry in a pool (package private)
+   * @param poolEntry The pool entry
+   */
+  void setPoolEntry(WLMProducerPool.Entry poolEntry) {
+    this.poolEntry = poolEntry;
+  }
+  
+  /**
+   * Mark this object as open again, as it is handed out from the pool (package private)
+   */
+  void reopen() {
+    closed = false;
+    wlmState.producerOpened(gatewayIndex);
+  }
+  
+  /**
+   * Close all the resource under this object, even if it came from a pool.
+   * Use {@link #release()} to give a pooled object back to its pool.
    * @param throwExceptions JMSExceptions are only thrown when this is set to true. Otherwise they are suppressed
    * @throws JMSException The last exception encountered during the close, if any and throwExceptions set
    */
   public void close(boolean throwExceptions) throws JMSException {
-    final String methodName = "close";
+    close(false, throwExceptions);
+  }
+  
+  /**
+   * Finish with this object after using it successfully. If the object came from a pool,
+   * anything left on the session is undone and the resources are given back to the pool,
+   * to be reused by the next caller. Otherwise, or if the pool does not keep them,
+   * the resources are closed as for close(true). Do not use the object after releasing it.
+   * @throws JMSException The last exception encountered closing the resources, if they were closed
+   */
+  public void release() throws JMSException {
+    close(true, true);
+  }
+  
+  /**
+   * Finish with this object after hitting a problem. The resources are closed,
+   * even if the object came from a pool, and any exceptions are suppressed.
+   */
+  public void destroy() {
+    try {
+      close(false, false);
+    }
+    catch (JMSException e) {
+      // Cannot happen when throwExceptions is false
+    }
+  }
+  
+  /**
+   * Close or release the resources under this object
+   * @param toPool Whether to give the resources back to our pool, if we have one
+   * @param throwExceptions JMSExceptions are only thrown when this is set to true. Otherwise they are suppressed
+   * @throws JMSException The last exception encountered during the close, if any and throwExceptions set
+   */
+  private void close(boolean toPool, boolean throwExceptions) throws JMSException {
+    // Only count the first close against the gateway
+    if (!closed) {
+      closed = true;
+      wlmState.producerClosed(gatewayIndex);
+      // Offer our resources back to the pool after undoing anything the caller left on the session
+      if (toPool && poolEntry != null && sessionResources.clean(session) && poolEntry.release()) return;
+    }
+    else if (poolEntry != null) {
+      // Our resources already belong to the pool, or have been closed
+      return;
+    }
+    closeResources(throwExceptions);
+  }
+  
+  /**
+   * Close the JMS resources under this object, even if we are pooled (package private)
+   * @param throwExceptions JMSExceptions are only thrown when this is set to true. Otherwise they are suppressed
+   * @throws JMSException The last exception encountered during the close, if any and throwExceptions set
+   */
+  void closeResources(boolean throwExceptions) throws JMSException {
+    final String methodName = "closeResources";
     JMSException lastException = null;
+    if (producerCache != null) {
+      lastException = producerCache.closeAll();
+      producerCache = null;
+    }
     try {
       producer.close();
     }
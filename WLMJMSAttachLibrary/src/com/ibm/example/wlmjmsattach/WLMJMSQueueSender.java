@@ -12,13 +12,19 @@
 package com.ibm.example.wlmjmsattach;
 
 import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Queue;
 import javax.jms.QueueConnection;
+import javax.jms.QueueReceiver;
 import javax.jms.QueueSender;
 import javax.jms.QueueSession;
 import javax.jms.Session;
+import javax.jms.TemporaryQueue;
 
 /**
- * A wrapping object containing a JMS QueueConnection, QueueSession and QueueSender
+ * A wrapping object containing a JMS QueueConnection, QueueSession and QueueSender.
+ * If the object is pooled, create any receivers and temporary queues with the methods on
+ * this object rather than directly on the session, so they are cleaned up before the session is reused.
  */
 public class WLMJMSQueueSender {
 
@@ -34,16 +40,38 @@ public class WLMJMSQueueSender {
   /** The JMS QueueSender */
   private final QueueSender queueSender;
   
+  /** The shared WLM state for the gateway we are connected to */
+  private final WLMResourceReferenceState wlmState;
+  
+  /** The index of the gateway we are connected to */
+  private final int gatewayIndex;
+  
+  /** Whether we have been closed or released. Volatile, as the pool can hand us to another thread. */
+  private volatile boolean closed = false;
+  
+  /** Additional senders on our session for other destinations, created on first use */
+  private WLMProducerCache<Queue, QueueSender> producerCache = null;
+  
+  /** Our entry in the pool of the WLMJMSAttach that created us, or null if we are not pooled */
+  private WLMProducerPool.Entry poolEntry = null;
+  
+  /** The consumers and temporary destinations created through us, cleaned up before we are pooled */
+  private final WLMSessionResources sessionResources = new WLMSessionResources();
+  
   /**
    * Constructor (package private)
    * @param queueConnection
    * @param queueSession
    * @param queueSender
+   * @param wlmState
+   * @param gatewayIndex
    */
-  WLMJMSQueueSender(QueueConnection queueConnection, QueueSession queueSession, QueueSender queueSender) {
+  WLMJMSQueueSender(QueueConnection queueConnection, QueueSession queueSession, QueueSender queueSender, WLMResourceReferenceState wlmState, int gatewayIndex) {
     this.queueConnection = queueConnection;
     this.queueSession = queueSession;
     this.queueSender = queueSender;
+    this.wlmState = wlmState;
+    this.gatewayIndex = gatewayIndex;
   }
 
   /**
@@ -68,13 +96,223 @@ public class WLMJMSQueueSender {
   }
 
   /**
-   * Close all the resource under this object. 
+   * @return The index of the gateway we are connected to (0 for the first resource reference)
+   */
+  public int getGatewayIndex() {
+    return gatewayIndex;
+  }
+  
+  /**
+   * Send a message using the sender, measuring the time taken for the
+   * latency-aware routing strategies, and counting it for the least-in-flight strategy.
+   * @param message The message to send
+   * @throws JMSException if the send fails
+   */
+  public void send(Message message) throws JMSException {
+    long sendStartTime = wlmState.sendStarted(gatewayIndex);
+    try {
+      queueSender.send(message);
+      wlmState.recordSendLatency(gatewayIndex, System.nanoTime() - sendStartTime);
+    }
+    finally {
+      wlmState.sendEnded(gatewayIndex);
+    }
+  }
+  
+  /**
+   * Send a message using the sender, measuring the time taken for the
+   * latency-aware routing strategies, and counting it for the least-in-flight strategy.
+   * @param message The message to send
+   * @param deliveryMode The delivery mode to use
+   * @param priority The priority for this message
+   * @param timeToLive The message's lifetime (in milliseconds)
+   * @throws JMSException if the send fails
+   */
+  public void send(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+    long sendStartTime = wlmState.sendStarted(gatewayIndex);
+    try {
+      queueSender.send(message, deliveryMode, priority, timeToLive);
+      wlmState.recordSendLatency(gatewayIndex, System.nanoTime() - sendStartTime);
+    }
+    finally {
+      wlmState.sendEnded(gatewayIndex);
+    }
+  }
+
+  /**
+   * Get an additional sender on our session, for sending to a different queue
+   * on the same gateway without creating another connection and session.
+   * The senders are cached by queue, up to a limit after which the least recently used is closed.
+   * They are all closed when this object is closed.
+   * @param queue The queue
+   * @return The sender
+   * @throws JMSException if the sender cannot be created
+   */
+  public QueueSender getQueueSender(Queue queue) throws JMSException {
+    if (producerCache == null) {
+      producerCache = new WLMProducerCache<Queue, QueueSender>() {
+        protected QueueSender createProducer(Queue dest) throws JMSException {
+          return ((QueueSession)queueSession).createSender(dest);
+        }
+      };
+    }
+    return producerCache.get(queue);
+  }
+  
+  /**
+   * Send a message to a different queue using a cached sender, measuring the time taken for the
+   * latency-aware routing strategies, and counting it for the least-in-flight strategy. See {@link #getQueueSender(Queue)}.
+   * @param queue The queue
+   * @param message The message to send
+   * @throws JMSException if the send fails
+   */
+  public void send(Queue queue, Message message) throws JMSException {
+    QueueSender cached = getQueueSender(queue);
+    long sendStartTime = wlmState.sendStarted(gatewayIndex);
+    try {
+      cached.send(message);
+      wlmState.recordSendLatency(gatewayIndex, System.nanoTime() - sendStartTime);
+    }
+    finally {
+      wlmState.sendEnded(gatewayIndex);
+    }
+  }
+  
+  /**
+   * Send a message to a different queue using a cached sender, measuring the time taken for the
+   * latency-aware routing strategies, and counting it for the least-in-flight strategy. See {@link #getQueueSender(Queue)}.
+   * @param queue The queue
+   * @param message The message to send
+   * @param deliveryMode The delivery mode to use
+   * @param priority The priority for this message
+   * @param timeToLive The message's lifetime (in milliseconds)
+   * @throws JMSException if the send fails
+   */
+  public void send(Queue queue, Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+    QueueSender cached = getQueueSender(queue);
+    long sendStartTime = wlmState.sendStarted(gatewayIndex);
+    try {
+      cached.send(message, deliveryMode, priority, timeToLive);
+      wlmState.recordSendLatency(gatewayIndex, System.nanoTime() - sendStartTime);
+    }
+    finally {
+      wlmState.sendEnded(gatewayIndex);
+    }
+  }
+  
+  /**
+   * Create a receiver on our session, which is closed before the session is reused if we are pooled
+   * @param queue The queue
+   * @return The receiver
+   * @throws JMSException if the receiver cannot be created
+   */
+  public QueueReceiver createReceiver(Queue queue) throws JMSException {
+    return sessionResources.add(((QueueSession)queueSession).createReceiver(queue));
+  }
+  
+  /**
+   * Create a receiver on our session, which is closed before the session is reused if we are pooled
+   * @param queue The queue
+   * @param messageSelector The message selector
+   * @return The receiver
+   * @throws JMSException if the receiver cannot be created
+   */
+  public QueueReceiver createReceiver(Queue queue, String messageSelector) throws JMSException {
+    return sessionResources.add(((QueueSession)queueSession).createReceiver(queue, messageSelector));
+  }
+  
+  /**
+   * Create a temporary queue on our session, which is deleted before the session is reused if we are pooled
+   * @return The temporary queue
+   * @throws JMSException if the temporary queue cannot be created
+   */
+  public TemporaryQueue createTemporaryQueue() throws JMSException {
+    return sessionResources.add(queueSession.createTemporaryQueue());
+  }
+  
+  /**
+   * Set our entry in a pool (package private)
+   * @param poolEntry The pool entry
+   */
+  void setPoolEntry(WLMProducerPool.Entry poolEntry) {
+    this.poolEntry = poolEntry;
+  }
+  
+  /**
+   * Mark this object as open again, as it is handed out from the pool (package private)
+   */
+  void reopen() {
+    closed = false;
+    wlmState.producerOpened(gatewayIndex);
+  }
+  
+  /**
+   * Close all the resource under this object, even if it came from a pool.
+   * Use {@link #release()} to give a pooled object back to its pool.
    * @param throwExceptions JMSExceptions are only thrown when this is set to true. Otherwise they are suppressed
    * @throws JMSException The last exception encountered during the close, if any and throwExceptions set
    */
   public void close(boolean throwExceptions) throws JMSException {
-    final String methodName = "close";
+    close(false, throwExceptions);
+  }
+  
+  /**
+   * Finish with this object after using it successfully. If the object came from a pool,
+   * anything left on the session is undone and the resources are given back to the pool,
+   * to be reused by the next caller. Otherwise, or if the pool does not keep them,
+   * the resources are closed as for close(true). Do not use the object after releasing it.
+   * @throws JMSException The last exception encountered closing the resources, if they were closed
+   */
+  public void release() throws JMSException {
+    close(true, true);
+  }
+  
+  /**
+   * Finish with this object after hitting a problem. The resources are closed,
+   * even if the object came from a pool, and any exceptions are suppressed.
+   */
+  public void destroy() {
+    try {
+      close(false, false);
+    }
+    catch (JMSException e) {
+      // Cannot happen when throwExceptions is false
+    }
+  }
+  
+  /**
+   * Close or release the resources under this object
+   * @param toPool Whether to give the resources back to our pool, if we have one
+   * @param throwExceptions JMSExceptions are only thrown when this is set to true. Otherwise they are suppressed
+   * @throws JMSException The last exception encountered during the close, if any and throwExceptions set
+   */
+  private void close(boolean toPool, boolean throwExceptions) throws JMSException {
+    // Only count the first close against the gateway
+    if (!closed) {
+      closed = true;
+      wlmState.producerClosed(gatewayIndex);
+      // Offer our resources back to the pool after undoing anything the caller left on the session
+      if (toPool && poolEntry != null && sessionResources.clean(queueSession) && poolEntry.release()) return;
+    }
+    else if (poolEntry != null) {
+      // Our resources already belong to the pool, or have been closed
+      return;
+    }
+    closeResources(throwExceptions);
+  }
+  
+  /**
+   * Close the JMS resources under this object, even if we are pooled (package private)
+   * @param throwExceptions JMSExceptions are only thrown when this is set to true. Otherwise they are suppressed
+   * @throws JMSException The last exception encountered during the close, if any and throwExceptions set
+   */
+  void closeResources(boolean throwExceptions) throws JMSException {
+    final String methodName = "closeResources";
     JMSException lastException = null;
+    if (producerCache != null) {
+      lastException = producerCache.closeAll();
+      producerCache = null;
+    }
     try {
       queueSender.close();
     }
@@ -12,12 +12,18 @@
 package com.ibm.example.wlmjmsattach;
 
 import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TemporaryTopic;
+import javax.jms.Topic;
 import javax.jms.TopicConnection;
 import javax.jms.TopicPublisher;
 import javax.jms.TopicSession;
+import javax.jms.TopicSubscriber;
 
 /**
- * A wrapping object containing a JMS TopicConnection, TopicSession and TopicPublisher
+ * A wrapping object containing a JMS TopicConnection, TopicSession and TopicPublisher.
+ * If the object is pooled, create any subscribers and temporary topics with the methods on
+ * this object rather than directly on the session, so they are cleaned up before the session is reused.
  */
 public class WLMJMSTopicPublisher {
 
@@ -33,17 +39,39 @@ public class WLMJMSTopicPublisher {
   /** The JMS Topic Publisher */
   private final TopicPublisher topicPublisher;
   
+  /** The shared WLM state for the gateway we are connected to */
+  private final WLMResourceReferenceState wlmState;
+  
+  /** The index of the gateway we are connected to */
+  private final int gatewayIndex;
+  
+  /** Whether we have been closed or released. Volatile, as the pool can hand us to another thread. */
+  private volatile boolean closed = false;
+  
+  /** Additional publishers on our session for other destinations, created on first use */
+  private WLMProducerCache<Topic, TopicPublisher> producerCache = null;
+  
+  /** Our entry in the pool of the WLMJMSAttach that created us, or null if we are not pooled */
+  private WLMProducerPool.Entry poolEntry = null;
+  
+  /** The consumers and temporary destinations created through us, cleaned up before we are pooled */
+  private final WLMSessionResources sessionResources = new WLMSessionResources();
+  
 
 /**
  * Constructor (package private)
  * @param topicConnection
  * @param topicSession
  * @param topicPublisher
+ * @param wlmState
+ * @param gatewayIndex
  */
-  WLMJMSTopicPublisher(TopicConnection topicConnection, TopicSession topicSession, TopicPublisher topicPublisher) {
+  WLMJMSTopicPublisher(TopicConnection topicConnection, TopicSession topicSession, TopicPublisher topicPublisher, WLMResourceReferenceState wlmState, int gatewayIndex) {
     this.topicConnection = topicConnection;
     this.topicSession = topicSession;
     this.topicPublisher = topicPublisher;
+    this.wlmState = wlmState;
+    this.gatewayIndex = gatewayIndex;
   }
   
   /**
@@ -68,13 +96,224 @@ public class WLMJMSTopicPublisher {
   }
 
   /**
-   * Close all the resource under this object. 
+   * @return The index of the gateway we are connected to (0 for the first resource reference)
+   */
+  public int getGatewayIndex() {
+    return gatewayIndex;
+  }
+  
+  /**
+   * Publish a message using the publisher, measuring the time taken for the
+   * latency-aware routing strategies, and counting it for the least-in-flight strategy.
+   * @param message The message to publish
+   * @throws JMSException if the publish fails
+   */
+  public void publish(Message message) throws JMSException {
+    long sendStartTime = wlmState.sendStarted(gatewayIndex);
+    try {
+      topicPublisher.publish(message);
+      wlmState.recordSendLatency(gatewayIndex, System.nanoTime() - sendStartTime);
+    }
+    finally {
+      wlmState.sendEnded(gatewayIndex);
+    }
+  }
+  
+  /**
+   * Publish a message using the publisher, measuring the time taken for the
+   * latency-aware routing strategies, and counting it for the least-in-flight strategy.
+   * @param message The message to publish
+   * @param deliveryMode The delivery mode to use
+   * @param priority The priority for this message
+   * @param timeToLive The message's lifetime (in milliseconds)
+   * @throws JMSException if the publish fails
+   */
+  public void publish(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+    long sendStartTime = wlmState.sendStarted(gatewayIndex);
+    try {
+      topicPublisher.publish(message, deliveryMode, priority, timeToLive);
+      wlmState.recordSendLatency(gatewayIndex, System.nanoTime() - sendStartTime);
+    }
+    finally {
+      wlmState.sendEnded(gatewayIndex);
+    }
+  }
+
+  /**
+   * Get an additional publisher on our session, for sending to a different topic
+   * on the same gateway without creating another connection and session.
+   * The publishers are cached by topic, up to a limit after which the least recently used is closed.
+   * They are all closed when this object is closed.
+   * @param topic The topic
+   * @return The publisher
+   * @throws JMSException if the publisher cannot be created
+   */
+  public TopicPublisher getTopicPublisher(Topic topic) throws JMSException {
+    if (producerCache == null) {
+      producerCache = new WLMProducerCache<Topic, TopicPublisher>() {
+        protected TopicPublisher createProducer(Topic dest) throws JMSException {
+          return topicSession.createPublisher(dest);
+        }
+      };
+    }
+    return producerCache.get(topic);
+  }
+  
+  /**
+   * Publish a message to a different topic using a cached publisher, measuring the time taken for the
+   * latency-aware routing strategies, and counting it for the least-in-flight strategy. See {@link #getTopicPublisher(Topic)}.
+   * @param topic The topic
+   * @param message The message to send
+   * @throws JMSException if the send fails
+   */
+  public void publish(Topic topic, Message message) throws JMSException {
+    TopicPublisher cached = getTopicPublisher(topic);
+    long sendStartTime = wlmState.sendStarted(gatewayIndex);
+    try {
+      cached.publish(message);
+      wlmState.recordSendLatency(gatewayIndex, System.nanoTime() - sendStartTime);
+    }
+    finally {
+      wlmState.sendEnded(gatewayIndex);
+    }
+  }
+  
+  /**
+   * Publish a message to a different topic using a cached publisher, measuring the time taken for the
+   * latency-aware routing strategies, and counting it for the least-in-flight strategy. See {@link #getTopicPublisher(Topic)}.
+   * @param topic The topic
+   * @param message The message to send
+   * @param deliveryMode The delivery mode to use
+   * @param priority The priority for this message
+   * @param timeToLive The message's lifetime (in milliseconds)
+   * @throws JMSException if the send fails
+   */
+  public void publish(Topic topic, Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+    TopicPublisher cached = getTopicPublisher(topic);
+    long sendStartTime = wlmState.sendStarted(gatewayIndex);
+    try {
+      cached.publish(message, deliveryMode, priority, timeToLive);
+      wlmState.recordSendLatency(gatewayIndex, System.nanoTime() - sendStartTime);
+    }
+    finally {
+      wlmState.sendEnded(gatewayIndex);
+    }
+  }
+  
+  /**
+   * Create a subscriber on our session, which is closed before the session is reused if we are pooled
+   * @param topic The topic
+   * @return The subscriber
+   * @throws JMSException if the subscriber cannot be created
+   */
+  public TopicSubscriber createSubscriber(Topic topic) throws JMSException {
+    return sessionResources.add(topicSession.createSubscriber(topic));
+  }
+  
+  /**
+   * Create a subscriber on our session, which is closed before the session is reused if we are pooled
+   * @param topic The topic
+   * @param messageSelector The message selector
+   * @param noLocal Whether to inhibit the delivery of messages published by our own connection
+   * @return The subscriber
+   * @throws JMSException if the subscriber cannot be created
+   */
+  public TopicSubscriber createSubscriber(Topic topic, String messageSelector, boolean noLocal) throws JMSException {
+    return sessionResources.add(topicSession.createSubscriber(topic, messageSelector, noLocal));
+  }
+  
+  /**
+   * Create a temporary topic on our session, which is deleted before the session is reused if we are pooled
+   * @return The temporary topic
+   * @throws JMSException if the temporary topic cannot be created
+   */
+  public TemporaryTopic createTemporaryTopic() throws JMSException {
+    return sessionResources.add(topicSession.createTemporaryTopic());
+  }
+  
+  /**
+   * Set our entry in a pool (package private)
+   * @param poolEntry The pool entry
+   */
+  void setPoolEntry(WLMProducerPool.Entry poolEntry) {
+    this.poolEntry = poolEntry;
+  }
+  
+  /**
+   * Mark this object as open again, as it is handed out from the pool (package private)
+   */
+  void reopen() {
+    closed = false;
+    wlmState.producerOpened(gatewayIndex);
+  }
+  
+  /**
+   * Close all the resource under this object, even if it came from a pool.
+   * Use {@link #release()} to give a pooled object back to its pool.
    * @param throwExceptions JMSExceptions are only thrown when this is set to true. Otherwise they are suppressed
    * @throws JMSException The last exception encountered during the close, if any and throwExceptions set
    */
   public void close(boolean throwExceptions) throws JMSException {
-    final String methodName = "close";
+    close(false, throwExceptions);
+  }
+  
+  /**
+   * Finish with this object after using it successfully. If the object came from a pool,
+   * anything left on the session is undone and the resources are given back to the pool,
+   * to be reused by the next caller. Otherwise, or if the pool does not keep them,
+   * the resources are closed as for close(true). Do not use the object after releasing it.
+   * @throws JMSException The last exception encountered closing the resources, if they were closed
+   */
+  public void release() throws JMSException {
+    close(true, true);
+  }
+  
+  /**
+   * Finish with this object after hitting a problem. The resources are closed,
+   * even if the object came from a pool, and any exceptions are suppressed.
+   */
+  public void destroy() {
+    try {
+      close(false, false);
+    }
+    catch (JMSException e) {
+      // Cannot happen when throwExceptions is false
+    }
+  }
+  
+  /**
+   * Close or release the resources under this object
+   * @param toPool Whether to give the resources back to our pool, if we have one
+   * @param throwExceptions JMSExceptions are only thrown when this is set to true. Otherwise they are suppressed
+   * @throws JMSException The last exception encountered during the close, if any and throwExceptions set
+   */
+  private void close(boolean toPool, boolean throwExceptions) throws JMSException {
+    // Only count the first close against the gateway
+    if (!closed) {
+      closed = true;
+      wlmState.producerClosed(gatewayIndex);
+      // Offer our resources back to the pool after undoing anything the caller left on the session
+      if (toPool && poolEntry != null && sessionResources.clean(topicSession) && poolEntry.release()) return;
+    }
+    else if (poolEntry != null) {
+      // Our resources already belong to the pool, or have been closed
+      return;
+    }
+    closeResources(throwExceptions);
+  }
+  
+  /**
+   * Close the JMS resources under this object, even if we are pooled (package private)
+   * @param throwExceptions JMSExceptions are only thrown when this is set to true. Otherwise they are suppressed
+   * @throws JMSException The last exception encountered during the close, if any and throwExceptions set
+   */
+  void closeResources(boolean throwExceptions) throws JMSException {
+    final String methodName = "closeResources";
     JMSException lastException = null;
+    if (producerCache != null) {
+      lastException = producerCache.closeAll();
+      producerCache = null;
+    }
     try {
       topicPublisher.close();
     }
@@ -14,14 +14,18 @@ package com.ibm.example.wlmjmsattach;
 import java.lang.reflect.Method;
 
 import javax.naming.InitialContext;
+import javax.naming.NamingException;
 import javax.transaction.Status;
 import javax.transaction.SystemException;
+import javax.transaction.TransactionSynchronizationRegistry;
 import javax.transaction.UserTransaction;
 
 /**
  * This class contains helper methods to print out transaction status.
  * These are not intended for functional use, but rather to aid in diagnosing
  * what the particular transaction context is in any particular environment.
+ * The exception is the package private check for a global transaction, which the
+ * WLM logic uses to avoid moving work onto other threads inside a transaction.
  * 
  * This class uses the UOWSynchronizationRegistry class that is specific
  * to WebSphere Application Server environments.
@@ -129,6 +133,42 @@ public class WLMJMSTranUtils {
     return retval.toString();
   }
  
+  /**
+   * Look up the standard JTA TransactionSynchronizationRegistry of a JavaEE environment.
+   * This must be called on a thread with a component context, such as during construction of a bean.
+   * @return The registry, or null if we are not in a JavaEE environment
+   */
+  static TransactionSynchronizationRegistry lookupTransactionSynchronizationRegistry() {
+    final String methodName = "lookupTransactionSynchronizationRegistry";
+    InitialContext ctx = null;
+    try {
+      ctx = new InitialContext();
+      return (TransactionSynchronizationRegistry)ctx.lookup("java:comp/TransactionSynchronizationRegistry");
+    }
+    catch (NamingException e) {
+      if (log.enabled()) log.debug(methodName, "TransactionSynchronizationRegistry not available (" + WLMJMSLogger.findRootExceptionMessage(e) + ")");
+      return null;
+    }
+    finally {
+      try {
+        if (ctx != null) ctx.close();
+      }
+      catch (NamingException e) {
+        if (log.enabled()) log.logExStack(methodName, "Error closing InitialContext", e);
+      }
+    }
+  }
+  
+  /**
+   * Check whether the calling thread is in a global (JTA) transaction. Inside a global transaction
+   * the container ignores the transacted flag of any session we create, and enlists it in the transaction.
+   * @param registry The registry from {@link #lookupTransactionSynchronizationRegistry()}, or null
+   * @return Whether a global transaction is active. False if the registry is null.
+   */
+  static boolean isGlobalTransactionActive(TransactionSynchronizationRegistry registry) {
+    return registry != null && registry.getTransactionStatus() != Status.STATUS_NO_TRANSACTION;
+  }
+ 
   /**
    * Simple helper to get a string representation of the status from UserTransaction
    * @param userTransaction
@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with power-of-two buckets, cheap enough to record
+ * every connection attempt and send. Bucket 0 counts times under a microsecond,
+ * and bucket i counts times from 2^(i-1) up to 2^i microseconds.
+ * The last bucket also counts anything longer.
+ */
+final class WLMLatencyHistogram {
+
+  /** The number of buckets, with the last covering up to around 35 minutes */
+  static final int BUCKET_COUNT = 32;
+  
+  /** The count in each bucket */
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  
+  /**
+   * @param elapsedNanos The time taken
+   */
+  void record(long elapsedNanos) {
+    long micros = elapsedNanos / 1000;
+    int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+    if (bucket >= BUCKET_COUNT) bucket = BUCKET_COUNT - 1;
+    buckets.incrementAndGet(bucket);
+  }
+  
+  /**
+   * Take a copy of the counts. Each bucket is read atomically, but samples recorded while
+   * we are copying may or may not be included.
+   * @return The snapshot
+   */
+  WLMLatencySnapshot snapshot() {
+    long[] counts = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) counts[i] = buckets.get(i);
+    return new WLMLatencySnapshot(counts);
+  }
+  
+  /**
+   * Clear all the counts
+   */
+  void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) buckets.set(i, 0);
+  }
+  
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+/**
+ * A point-in-time copy of a latency histogram, with power-of-two buckets.
+ * Bucket 0 counts times under a microsecond, and bucket i counts times from
+ * 2^(i-1) up to 2^i microseconds. The last bucket also counts anything longer.
+ * The counts cover the samples since the histogram was created or last reset, see {@link WLMGatewayMetrics}.
+ */
+public final class WLMLatencySnapshot {
+
+  /** The count in each bucket */
+  private final long[] counts;
+  
+  /** The total count */
+  private final long totalCount;
+  
+  /**
+   * Constructor (package private)
+   */
+  WLMLatencySnapshot(long[] counts) {
+    this.counts = counts;
+    long total = 0;
+    for (long count : counts) total += count;
+    this.totalCount = total;
+  }
+  
+  /**
+   * @return The number of samples
+   */
+  public long getCount() {
+    return totalCount;
+  }
+  
+  /**
+   * @return A copy of the count in each bucket
+   */
+  public long[] getBucketCounts() {
+    return counts.clone();
+  }
+  
+  /**
+   * @param bucket The index of a bucket
+   * @return The upper bound of the times counted in the bucket, in microseconds
+   */
+  public static long getBucketUpperBoundMicros(int bucket) {
+    return 1L << bucket;
+  }
+  
+  /**
+   * Estimate a percentile, as the upper bound of the bucket containing it.
+   * So the estimate is never low, and at most double the true value.
+   * @param percentile The percentile, for example 95.0
+   * @return The estimated time, in milliseconds, or 0 if there are no samples
+   */
+  public double getPercentileMillis(double percentile) {
+    if (percentile < 0 || percentile > 100) throw new IllegalArgumentException();
+    if (totalCount == 0) return 0;
+    long rank = (long)Math.ceil(totalCount * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank && seen > 0) return getBucketUpperBoundMicros(i) / 1000.0;
+    }
+    return getBucketUpperBoundMicros(counts.length - 1) / 1000.0;
+  }
+  
+  @Override
+  public String toString() {
+    return "count=" + totalCount + " p50=" + getPercentileMillis(50) + "ms p95=" + getPercentileMillis(95) + 
+        "ms p99=" + getPercentileMillis(99) + "ms";
+  }
+  
+}
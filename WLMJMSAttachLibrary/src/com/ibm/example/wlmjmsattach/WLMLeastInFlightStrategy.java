@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+/**
+ * A routing strategy that chooses the healthy gateway with the fewest requests in progress,
+ * counting the sends in progress on the gateway as well as connection attempts.
+ * Sends are counted from the send methods of the WLM wrapper objects and JMS contexts,
+ * and asynchronous sends of a {@link WLMBackgroundSender} count until their completion callback.
+ * A gateway that is responding slowly builds up in-flight requests,
+ * so it is given less new work than a gateway that is responding quickly.
+ * To balance the connections each gateway holds open instead, use {@link WLMLeastOutstandingProducersStrategy}.
+ * 
+ * Ties are broken from a random starting point, so an idle system still spreads
+ * connections across all the gateways.
+ */
+public class WLMLeastInFlightStrategy implements WLMRoutingStrategy {
+
+  /**
+   * Choose the healthy gateway with the fewest sends and connection attempts in progress.
+   * If no gateways are healthy we simply return the random starting point.
+   */
+  public int selectGateway(WLMGatewayStatus gateways) {
+    int gatewayCount = gateways.getGatewayCount();
+    int startIndex = WLMRandom.nextInt(gatewayCount);
+    int bestIndex = -1;
+    int bestInFlight = Integer.MAX_VALUE;
+    for (int i = 0; i < gatewayCount; i++) {
+      int cfIndex = startIndex+i;
+      if (cfIndex >= gatewayCount) cfIndex -= gatewayCount;
+      if (gateways.isHealthy(cfIndex)) {
+        int inFlight = gateways.getSendsInProgress(cfIndex) + gateways.getInFlight(cfIndex);
+        if (inFlight < bestInFlight) {
+          bestIndex = cfIndex;
+          bestInFlight = inFlight;
+        }
+      }
+    }
+    return bestIndex >= 0 ? bestIndex : startIndex;
+  }
+  
+}
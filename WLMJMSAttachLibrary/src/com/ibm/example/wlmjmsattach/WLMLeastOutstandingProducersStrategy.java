@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+/**
+ * A routing strategy that chooses the healthy gateway with the fewest outstanding
+ * connections, counting both the WLM producer objects that are currently open, and
+ * connection attempts in progress.
+ * Each WLM producer object holds a connection to one gateway until it is closed,
+ * which can be a long time for request/reply processing. So under bursty load this
+ * balances the connections held on each gateway far better than round-robin.
+ * 
+ * Ties are broken from a random starting point, so an idle system still spreads
+ * connections across all the gateways.
+ */
+public class WLMLeastOutstandingProducersStrategy implements WLMRoutingStrategy {
+
+  /**
+   * Choose the healthy gateway with the fewest outstanding connections.
+   * If no gateways are healthy we simply return the random starting point.
+   */
+  public int selectGateway(WLMGatewayStatus gateways) {
+    int gatewayCount = gateways.getGatewayCount();
+    int startIndex = WLMRandom.nextInt(gatewayCount);
+    int bestIndex = -1;
+    int bestOutstanding = Integer.MAX_VALUE;
+    for (int i = 0; i < gatewayCount; i++) {
+      int cfIndex = startIndex+i;
+      if (cfIndex >= gatewayCount) cfIndex -= gatewayCount;
+      if (gateways.isHealthy(cfIndex)) {
+        int outstanding = gateways.getOpenProducers(cfIndex) + gateways.getInFlight(cfIndex);
+        if (outstanding < bestOutstanding) {
+          bestIndex = cfIndex;
+          bestOutstanding = outstanding;
+        }
+      }
+    }
+    return bestIndex >= 0 ? bestIndex : startIndex;
+  }
+  
+}
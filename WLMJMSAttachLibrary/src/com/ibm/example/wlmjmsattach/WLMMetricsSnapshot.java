@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+/**
+ * A point-in-time copy of the metrics for a resource reference prefix, shared by all the
+ * {@link WLMJMSAttach} instances using the prefix.
+ * See {@link WLMJMSAttach#getMetrics(String)}.
+ * The metrics are updated with atomic counters on the connection path, so are always collected,
+ * and are only copied when a snapshot is taken. Each value is read atomically, but the snapshot
+ * as a whole is not, so related counters may be slightly out of step with each other.
+ * The counters can be reset over JMX, and start again from zero after {@link WLMJMSAttach#shutdown()}.
+ */
+public final class WLMMetricsSnapshot {
+
+  /** The resource reference prefix */
+  private final String resRefPrefix;
+  
+  /** The time the snapshot was taken */
+  private final long timestamp;
+  
+  /** The number of times callers entered the retry logic */
+  private final long retryLoopEntries;
+  
+  /** The total time callers have spent backing off between retries */
+  private final long backoffMillis;
+  
+  /** The metrics for each gateway */
+  private final WLMGatewayMetrics[] gateways;
+  
+  /**
+   * Constructor (package private)
+   */
+  WLMMetricsSnapshot(String resRefPrefix, long timestamp, long retryLoopEntries, long backoffMillis, WLMGatewayMetrics[] gateways) {
+    this.resRefPrefix = resRefPrefix;
+    this.timestamp = timestamp;
+    this.retryLoopEntries = retryLoopEntries;
+    this.backoffMillis = backoffMillis;
+    this.gateways = gateways;
+  }
+  
+  /**
+   * @return The resource reference prefix
+   */
+  public String getResRefPrefix() {
+    return resRefPrefix;
+  }
+  
+  /**
+   * @return The time the snapshot was taken (as returned by System.currentTimeMillis)
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+  
+  /**
+   * @return The number of times callers failed to connect on their first pass through the gateways, and entered the retry logic
+   */
+  public long getRetryLoopEntries() {
+    return retryLoopEntries;
+  }
+  
+  /**
+   * @return The total time callers have spent backing off between retries, in milliseconds
+   */
+  public long getBackoffMillis() {
+    return backoffMillis;
+  }
+  
+  /**
+   * @return The metrics for each gateway, indexed by gateway (0 for the first resource reference)
+   */
+  public WLMGatewayMetrics[] getGateways() {
+    return gateways.clone();
+  }
+  
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(resRefPrefix).append(": retryLoopEntries=").append(retryLoopEntries).append(" backoffMillis=").append(backoffMillis);
+    for (WLMGatewayMetrics gateway : gateways) sb.append("\n  ").append(gateway);
+    return sb.toString();
+  }
+  
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+/**
+ * A latency-aware routing strategy, that picks two healthy gateways at random and
+ * chooses the one that looks faster. A gateway that is slow but still up sheds load
+ * automatically, without all the traffic herding onto the single fastest gateway.
+ * 
+ * Each gateway is scored on the moving averages of its connect and send latency,
+ * multiplied up by the number of connection attempts already in flight to it, so a gateway
+ * that has hung is penalised before its first slow attempt completes.
+ * A gateway that is not chosen gets no new samples, so its latency would otherwise be
+ * remembered forever. Instead we decay the latency towards zero as the samples age,
+ * so a gateway that has recovered is tried again after roughly the decay interval.
+ */
+public class WLMPowerOfTwoChoicesStrategy implements WLMRoutingStrategy {
+
+  /** A default interval over which latency samples decay */
+  public static final int DEFAULT_DECAY_MS = 10000;
+  
+  /** The interval over which latency samples decay */
+  private final int decayMillis;
+  
+  /**
+   * Constructor, using the default decay interval
+   */
+  public WLMPowerOfTwoChoicesStrategy() {
+    this(DEFAULT_DECAY_MS);
+  }
+  
+  /**
+   * Constructor
+   * @param decayMillis The interval over which latency samples decay
+   */
+  public WLMPowerOfTwoChoicesStrategy(int decayMillis) {
+    if (decayMillis <= 0) throw new IllegalArgumentException();
+    this.decayMillis = decayMillis;
+  }
+  
+  /**
+   * Choose the faster of two random healthy gateways.
+   */
+  public int selectGateway(WLMGatewayStatus gateways) {
+    int gatewayCount = gateways.getGatewayCount();
+    if (gatewayCount == 1) return 0;
+    
+    // Pick two distinct gateways at random
+    int first = WLMRandom.nextInt(gatewayCount);
+    int second = WLMRandom.nextInt(gatewayCount - 1);
+    if (second >= first) second++;
+    
+    // Only compare them if they are both healthy, otherwise let the
+    // connection logic move on from the first one as usual.
+    boolean firstHealthy = gateways.isHealthy(first);
+    boolean secondHealthy = gateways.isHealthy(second);
+    if (firstHealthy && !secondHealthy) return first;
+    if (secondHealthy && !firstHealthy) return second;
+    if (!firstHealthy) return first;
+    
+    long now = System.currentTimeMillis();
+    return score(gateways, second, now) < score(gateways, first, now) ? second : first;
+  }
+  
+  /**
+   * Score a gateway. Lower is better.
+   */
+  private double score(WLMGatewayStatus gateways, int gatewayIndex, long now) {
+    double latency = gateways.getConnectLatency(gatewayIndex) + gateways.getSendLatency(gatewayIndex);
+    long age = now - gateways.getLastLatencySample(gatewayIndex);
+    if (age > 0) latency *= Math.exp(-(double)age / decayMillis);
+    return latency * (gateways.getInFlight(gatewayIndex) + 1);
+  }
+  
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+
+/**
+ * A small cache of additional producers on a single session, keyed by destination.
+ * Once the cache is full, the least recently used producer is closed to make room.
+ * Like the session it belongs to, the cache must only be used by one thread at a time.
+ */
+abstract class WLMProducerCache<D extends Destination, P extends MessageProducer> {
+
+  /** The maximum number of producers we cache for a session */
+  static final int MAX_CACHED_PRODUCERS = 16;
+  
+  /** A logger */
+  private static final WLMJMSLogger log = new WLMJMSLogger(WLMProducerCache.class);
+  
+  /** The producers in access order, least recently used first */
+  private final LinkedHashMap<D, P> producers = new LinkedHashMap<D, P>(MAX_CACHED_PRODUCERS * 2, 0.75f, true);
+  
+  /**
+   * Get the producer for a destination, creating it if required
+   * @param dest The destination
+   * @return The producer
+   * @throws JMSException if the producer cannot be created
+   */
+  P get(D dest) throws JMSException {
+    final String methodName = "get";
+    P producer = producers.get(dest);
+    if (producer == null) {
+      producer = createProducer(dest);
+      producers.put(dest, producer);
+      if (producers.size() > MAX_CACHED_PRODUCERS) {
+        Iterator<P> eldest = producers.values().iterator();
+        P evicted = eldest.next();
+        eldest.remove();
+        try {
+          evicted.close();
+        }
+        catch (JMSException e) {
+          // The session might be in trouble, but we have a producer for the caller, so let them find out
+          if (log.enabled()) log.logRootExMsg(methodName, "Producer close failed", e);
+        }
+      }
+    }
+    return producer;
+  }
+  
+  /**
+   * Close all the producers in the cache
+   * @return The last exception encountered during the close, if any
+   */
+  JMSException closeAll() {
+    final String methodName = "closeAll";
+    JMSException lastException = null;
+    for (Map.Entry<D, P> entry : producers.entrySet()) {
+      try {
+        entry.getValue().close();
+      }
+      catch (JMSException e) {
+        if (log.enabled()) log.logExStack(methodName, "Producer close failed", e);
+        lastException = e;
+      }
+    }
+    producers.clear();
+    return lastException;
+  }
+  
+  /**
+   * Create a new producer on our session
+   * @param dest The destination
+   * @return The producer
+   * @throws JMSException if the producer cannot be created
+   */
+  protected abstract P createProducer(D dest) throws JMSException;
+  
+}
@@ -0,0 +1,332 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+
+/**
+ * An optional pool of WLM producer objects (WLMJMSMessageProducer, WLMJMSQueueSender or WLMJMSTopicPublisher)
+ * for a single {@link WLMJMSAttach} instance. Intended for environments where there is no
+ * connection pooling underneath us, such as a plain Java SE application using the MQ client directly.
+ * 
+ * When a pooled object is finished with using release(), its Connection, Session and Producer are kept
+ * open and handed out again the next time the same gateway is chosen for the same destination,
+ * transactionality and acknowledge mode. An object finished with using destroy(), because the caller hit
+ * a problem, or closed with close(boolean), is really closed.
+ * We only limit the number of idle objects kept for each gateway. Objects in use are not counted.
+ * Before an object goes back into the pool any uncommitted work on a transacted session is rolled back,
+ * unacknowledged messages on a client acknowledge session are recovered, and the consumers and temporary
+ * destinations created through the object are closed. If any of that fails the object is really closed.
+ * Consumers created directly on the session cannot be tracked, so must be closed by the application first.
+ * Idle objects are closed after the idle timeout, or as soon as we notice their gateway has failed
+ * since they were created, or the JMS provider reports a problem on their connection.
+ */
+class WLMProducerPool {
+
+  /** A logger */
+  private static final WLMJMSLogger log = new WLMJMSLogger(WLMProducerPool.class);
+  
+  /** The shared state of the gateways */
+  private final WLMResourceReferenceState wlmState;
+  
+  /** The maximum number of idle objects we keep for each gateway */
+  private final int maxIdlePerGateway;
+  
+  /** The time an object can stay idle in the pool before we close it */
+  private final int idleTimeoutMillis;
+  
+  /** The idle objects for each key, most recently used last */
+  private final Map<Object, LinkedList<Entry>> idleEntries = new HashMap<Object, LinkedList<Entry>>();
+  
+  /** The number of idle objects for each gateway */
+  private final int[] idleCounts;
+  
+  /** Whether we have been closed */
+  private boolean closed = false;
+  
+  /** The background eviction of idle objects */
+  private final ScheduledFuture<?> evictionFuture;
+  
+  /**
+   * Constructor
+   * @param wlmState The shared state of the gateways
+   * @param maxIdlePerGateway The maximum number of idle objects we keep for each gateway
+   * @param idleTimeoutMillis The time an object can stay idle in the pool before we close it
+   */
+  WLMProducerPool(WLMResourceReferenceState wlmState, int maxIdlePerGateway, int idleTimeoutMillis) {
+    if (maxIdlePerGateway <= 0 || idleTimeoutMillis <= 0) throw new IllegalArgumentException();
+    this.wlmState = wlmState;
+    this.maxIdlePerGateway = maxIdlePerGateway;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.idleCounts = new int[wlmState.getGatewayCount()];
+    long evictionInterval = Math.max(idleTimeoutMillis / 2, 1);
+    this.evictionFuture = WLMScheduler.get().scheduleWithFixedDelay(new Evictor(this),
+        evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+  }
+  
+  /**
+   * Take a pooled object into our management, after creating it.
+   * We listen for exceptions on its connection, so we never hand out a broken connection from the pool.
+   * @param conn The WLM producer object
+   * @param key The key for objects that can be used interchangeably
+   * @param cfIndex The gateway of the object
+   */
+  void adopt(Object conn, Object key, int cfIndex) {
+    final String methodName = "adopt";
+    Entry entry = new Entry(conn, key, cfIndex, wlmState.getFailureCount(cfIndex));
+    setPoolEntry(conn, entry);
+    try {
+      getConnection(conn).setExceptionListener(entry);
+    }
+    catch (Exception e) {
+      // Some environments do not allow exception listeners. We still check the
+      // gateway has not failed before handing out the object again.
+      if (log.enabled()) log.logRootExMsg(methodName, "Unable to set exception listener", e);
+    }
+  }
+  
+  /**
+   * Get an idle object from the pool
+   * @param key The key for objects that can be used interchangeably
+   * @param cfIndex The gateway we want an object for
+   * @return An open object, or null if none are available
+   */
+  Object borrow(Object key, int cfIndex) {
+    final String methodName = "borrow";
+    Entry entry = null;
+    synchronized (this) {
+      LinkedList<Entry> entries = idleEntries.get(key);
+      while (entries != null && !entries.isEmpty()) {
+        Entry candidate = entries.removeLast();
+        idleCounts[candidate.cfIndex]--;
+        candidate.idle = false;
+        if (candidate.isUsable()) {
+          entry = candidate;
+          break;
+        }
+        destroy(candidate);
+      }
+    }
+    if (entry == null) return null;
+    if (log.traceEnabled()) log.trace(methodName, "Reusing pooled connection {0}", cfIndex);
+    reopen(entry.conn);
+    return entry.conn;
+  }
+  
+  /**
+   * Return a closed object to the pool.
+   * @param entry The pool entry of the object
+   * @return Whether we kept the object. If not the caller must close it.
+   */
+  synchronized boolean release(Entry entry) {
+    if (closed || !entry.isUsable() || idleCounts[entry.cfIndex] >= maxIdlePerGateway) return false;
+    LinkedList<Entry> entries = idleEntries.get(entry.key);
+    if (entries == null) {
+      entries = new LinkedList<Entry>();
+      idleEntries.put(entry.key, entries);
+    }
+    entry.idle = true;
+    entry.idleSince = System.currentTimeMillis();
+    entries.addLast(entry);
+    idleCounts[entry.cfIndex]++;
+    return true;
+  }
+  
+  /**
+   * Close any idle objects that have timed out, or that are no longer usable.
+   */
+  void evictIdle() {
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      for (Iterator<LinkedList<Entry>> lists = idleEntries.values().iterator(); lists.hasNext();) {
+        LinkedList<Entry> entries = lists.next();
+        for (Iterator<Entry> i = entries.iterator(); i.hasNext();) {
+          Entry entry = i.next();
+          if (now - entry.idleSince >= idleTimeoutMillis || !entry.isUsable()) {
+            i.remove();
+            idleCounts[entry.cfIndex]--;
+            entry.idle = false;
+            destroy(entry);
+          }
+        }
+        if (entries.isEmpty()) lists.remove();
+      }
+    }
+  }
+  
+  /**
+   * Close all the idle objects, and stop pooling.
+   * Objects currently in use are closed when they are returned.
+   */
+  void close() {
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      for (LinkedList<Entry> entries : idleEntries.values()) {
+        for (Entry entry : entries) {
+          entry.idle = false;
+          destroy(entry);
+        }
+      }
+      idleEntries.clear();
+    }
+    evictionFuture.cancel(false);
+  }
+  
+  /**
+   * Remove an idle object from the pool because its connection is broken
+   * @param entry The pool entry
+   */
+  private synchronized void invalidate(Entry entry) {
+    if (!entry.idle) return; // It will not be returned to the pool
+    LinkedList<Entry> entries = idleEntries.get(entry.key);
+    if (entries != null && entries.remove(entry)) {
+      idleCounts[entry.cfIndex]--;
+      entry.idle = false;
+      destroy(entry);
+    }
+  }
+  
+  /**
+   * Really close the resources of a pooled object
+   * @param entry The pool entry
+   */
+  private static void destroy(Entry entry) {
+    final String methodName = "destroy";
+    if (log.traceEnabled()) log.trace(methodName, "Closing pooled connection {0}", entry.cfIndex);
+    Object conn = entry.conn;
+    try {
+      if (conn instanceof WLMJMSMessageProducer) ((WLMJMSMessageProducer)conn).closeResources(false);
+      else if (conn instanceof WLMJMSQueueSender) ((WLMJMSQueueSender)conn).closeResources(false);
+      else if (conn instanceof WLMJMSTopicPublisher) ((WLMJMSTopicPublisher)conn).closeResources(false);
+    }
+    catch (JMSException e) {
+      // Cannot happen when throwExceptions is false
+    }
+  }
+  
+  /**
+   * Mark an object as open again, as we hand it out of the pool
+   * @param conn The WLM producer object
+   */
+  private static void reopen(Object conn) {
+    if (conn instanceof WLMJMSMessageProducer) ((WLMJMSMessageProducer)conn).reopen();
+    else if (conn instanceof WLMJMSQueueSender) ((WLMJMSQueueSender)conn).reopen();
+    else if (conn instanceof WLMJMSTopicPublisher) ((WLMJMSTopicPublisher)conn).reopen();
+  }
+  
+  /**
+   * @param conn The WLM producer object
+   * @param entry The pool entry to give the object
+   */
+  private static void setPoolEntry(Object conn, Entry entry) {
+    if (conn instanceof WLMJMSMessageProducer) ((WLMJMSMessageProducer)conn).setPoolEntry(entry);
+    else if (conn instanceof WLMJMSQueueSender) ((WLMJMSQueueSender)conn).setPoolEntry(entry);
+    else if (conn instanceof WLMJMSTopicPublisher) ((WLMJMSTopicPublisher)conn).setPoolEntry(entry);
+  }
+  
+  /**
+   * @param conn The WLM producer object
+   * @return The JMS Connection of the object
+   */
+  private static Connection getConnection(Object conn) {
+    if (conn instanceof WLMJMSQueueSender) return ((WLMJMSQueueSender)conn).getQueueConnection();
+    if (conn instanceof WLMJMSTopicPublisher) return ((WLMJMSTopicPublisher)conn).getTopicConnection();
+    return ((WLMJMSMessageProducer)conn).getConnection();
+  }
+  
+  /**
+   * The pool's record of a single WLM producer object, which also listens for
+   * exceptions on its connection.
+   */
+  final class Entry implements ExceptionListener {
+    private final Object conn;
+    private final Object key;
+    private final int cfIndex;
+    private final int failureCount;
+    private volatile boolean broken = false;
+    private boolean idle = false;
+    private long idleSince;
+    
+    Entry(Object conn, Object key, int cfIndex, int failureCount) {
+      this.conn = conn;
+      this.key = key;
+      this.cfIndex = cfIndex;
+      this.failureCount = failureCount;
+    }
+    
+    /**
+     * @return Whether the object can be reused. It cannot be if its connection has reported
+     *         an exception, or its gateway has failed since it was created.
+     */
+    boolean isUsable() {
+      return !broken && wlmState.getFailureCount(cfIndex) == failureCount && wlmState.isHealthy(cfIndex);
+    }
+    
+    /**
+     * Offer the object back to the pool
+     * @return Whether the pool kept the object
+     */
+    boolean release() {
+      return WLMProducerPool.this.release(this);
+    }
+    
+    /**
+     * Called by the JMS provider when the connection breaks
+     */
+    public void onException(JMSException e) {
+      final String methodName = "Entry.onException";
+      if (log.enabled()) log.logRootExMsg(methodName, "Pooled connection " + cfIndex + " broken", e);
+      broken = true;
+      invalidate(this);
+    }
+  }
+  
+  /**
+   * Runs the idle eviction on the shared scheduler. We only hold a weak reference to the pool,
+   * so a pool that is no longer used by the application can be garbage collected.
+   */
+  private static final class Evictor implements Runnable {
+    private final WeakReference<WLMProducerPool> poolRef;
+    
+    Evictor(WLMProducerPool pool) {
+      this.poolRef = new WeakReference<WLMProducerPool>(pool);
+    }
+    
+    /**
+     * Evict the idle objects of the pool. Once the pool has been garbage collected we throw,
+     * which cancels our schedule. Otherwise we must not throw.
+     */
+    public void run() {
+      final String methodName = "Evictor.run";
+      WLMProducerPool pool = poolRef.get();
+      if (pool == null) throw new IllegalStateException("Pool no longer in use");
+      try {
+        pool.evictIdle();
+      }
+      catch (RuntimeException e) {
+        if (log.enabled()) log.logExStack(methodName, "Unexpected exception", e);
+      }
+    }
+  }
+  
+}
@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import java.util.Random;
+
+/**
+ * Thread local random numbers, so routing decisions do not contend on a shared Random.
+ */
+final class WLMRandom {
+
+  /** A Random for each thread */
+  private static final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+    @Override
+    protected Random initialValue() {
+      return new Random();
+    }
+  };
+  
+  /**
+   * Private constructor
+   */
+  private WLMRandom() {
+  }
+  
+  /**
+   * @param bound The upper bound (exclusive)
+   * @return A random number between 0 and bound-1
+   */
+  static int nextInt(int bound) {
+    return random.get().nextInt(bound);
+  }
+  
+  /**
+   * @return A random number between 0.0 and 1.0
+   */
+  static double nextDouble() {
+    return random.get().nextDouble();
+  }
+  
+}
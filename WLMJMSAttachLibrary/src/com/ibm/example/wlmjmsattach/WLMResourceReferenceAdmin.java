@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The JMX MBean for the WLM state of a resource reference prefix.
+ * See {@link WLMResourceReferenceAdminMBean}.
+ * 
+ * The MBean is only registered if enabled with {@link WLMJMSAttachConfig#setJmxEnabled(boolean)},
+ * by the first instance created for the prefix with it enabled, or the first one after
+ * {@link WLMJMSAttach#shutdown()} which unregisters it. As each application has its own copy of the state
+ * if it packages its own copy of this library, the ObjectName includes an identifier
+ * for our classloader, so applications using the same prefix do not clash.
+ * Failures to register (for example if Java 2 security does not allow it) are logged
+ * and otherwise ignored, as the MBean is not needed for the WLM logic to work.
+ */
+public final class WLMResourceReferenceAdmin implements WLMResourceReferenceAdminMBean {
+
+  /** The JMX domain for our MBeans */
+  public static final String JMX_DOMAIN = "com.ibm.example.wlmjmsattach";
+  
+  /** Logger */
+  private static final WLMJMSLogger log = new WLMJMSLogger(WLMResourceReferenceAdmin.class);
+  
+  /** The MBeans we have registered, and the state each is for, under our own synchronization */
+  private static final Map<ObjectName, WLMResourceReferenceState> registeredNames = new HashMap<ObjectName, WLMResourceReferenceState>();
+  
+  /** The resource reference prefix */
+  private final String resRefPrefix;
+  
+  /** The state for the prefix */
+  private final WLMResourceReferenceState wlmState;
+  
+  /**
+   * Constructor (package private)
+   */
+  WLMResourceReferenceAdmin(String resRefPrefix, WLMResourceReferenceState wlmState) {
+    this.resRefPrefix = resRefPrefix;
+    this.wlmState = wlmState;
+  }
+  
+  /**
+   * Register an MBean for the state of a resource reference prefix, if we have not already.
+   * An MBean registered for an earlier state of the prefix is replaced.
+   * @param resRefPrefix The resource reference prefix
+   * @param wlmState The state
+   */
+  static void register(String resRefPrefix, WLMResourceReferenceState wlmState) {
+    final String methodName = "register";
+    try {
+      ObjectName name = new ObjectName(JMX_DOMAIN + ":type=WLMResourceReference,name=" + ObjectName.quote(resRefPrefix) +
+          ",classLoader=" + Integer.toHexString(System.identityHashCode(WLMResourceReferenceAdmin.class.getClassLoader())));
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      synchronized (registeredNames) {
+        WLMResourceReferenceState registeredState = registeredNames.get(name);
+        if (registeredState == wlmState) return;
+        if (registeredState != null) {
+          registeredNames.remove(name);
+          mbeanServer.unregisterMBean(name);
+        }
+        mbeanServer.registerMBean(new WLMResourceReferenceAdmin(resRefPrefix, wlmState), name);
+        registeredNames.put(name, wlmState);
+      }
+      if (log.enabled()) log.debug(methodName, "Registered MBean " + name);
+    }
+    catch (Exception e) {
+      if (log.enabled()) log.logRootExMsg(methodName, "Failed to register MBean for " + resRefPrefix, e);
+    }
+  }
+  
+  /**
+   * Unregister all the MBeans we have registered
+   */
+  static void unregisterAll() {
+    final String methodName = "unregisterAll";
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    synchronized (registeredNames) {
+      for (ObjectName name : registeredNames.keySet()) {
+        try {
+          mbeanServer.unregisterMBean(name);
+        }
+        catch (Exception e) {
+          if (log.enabled()) log.logRootExMsg(methodName, "Failed to unregister MBean " + name, e);
+        }
+      }
+      registeredNames.clear();
+    }
+  }
+  
+  /**
+   * Check a gateway index passed in by an operator
+   */
+  private void checkIndex(int gatewayIndex) {
+    if (gatewayIndex < 0 || gatewayIndex >= wlmState.getGatewayCount()) {
+      throw new IllegalArgumentException("Gateway index " + gatewayIndex + " out of range. There are " + wlmState.getGatewayCount() + " gateways");
+    }
+  }
+  
+  public String getResRefPrefix() {
+    return resRefPrefix;
+  }
+  
+  public int getGatewayCount() {
+    return wlmState.getGatewayCount();
+  }
+  
+  public boolean[] getHealthy() {
+    boolean[] values = new boolean[wlmState.getGatewayCount()];
+    for (int i = 0; i < values.length; i++) values[i] = wlmState.isHealthy(i);
+    return values;
+  }
+  
+  public boolean[] getDraining() {
+    boolean[] values = new boolean[wlmState.getGatewayCount()];
+    for (int i = 0; i < values.length; i++) values[i] = wlmState.isDraining(i);
+    return values;
+  }
+  
+  public boolean[] getForcedDown() {
+    boolean[] values = new boolean[wlmState.getGatewayCount()];
+    for (int i = 0; i < values.length; i++) values[i] = wlmState.isForcedDown(i);
+    return values;
+  }
+  
+  public String[] getLastFailureTimes() {
+    String[] values = new String[wlmState.getGatewayCount()];
+    for (int i = 0; i < values.length; i++) {
+      // The timestamp is zero before the first failure, and negative once the gateway has recovered
+      long timestamp = wlmState.getLastFailureTimestamp(i);
+      values[i] = timestamp > 0 ? new Date(timestamp).toString() : "";
+    }
+    return values;
+  }
+  
+  public int[] getFailureCounts() {
+    int[] values = new int[wlmState.getGatewayCount()];
+    for (int i = 0; i < values.length; i++) values[i] = wlmState.getFailureCount(i);
+    return values;
+  }
+  
+  public double[] getEffectiveWeights() {
+    double[] values = new double[wlmState.getGatewayCount()];
+    for (int i = 0; i < values.length; i++) values[i] = wlmState.getEffectiveWeight(i);
+    return values;
+  }
+  
+  public double[] getRoutingShares() {
+    WLMGatewayMetrics[] gateways = wlmState.getMetrics(resRefPrefix).getGateways();
+    long total = 0;
+    for (WLMGatewayMetrics gateway : gateways) total += gateway.getConnectSuccesses();
+    double[] values = new double[gateways.length];
+    if (total > 0) {
+      for (int i = 0; i < values.length; i++) values[i] = (double)gateways[i].getConnectSuccesses() / total;
+    }
+    return values;
+  }
+  
+  public int[] getInFlight() {
+    int[] values = new int[wlmState.getGatewayCount()];
+    for (int i = 0; i < values.length; i++) values[i] = wlmState.getInFlight(i);
+    return values;
+  }
+  
+  public int[] getOpenProducers() {
+    int[] values = new int[wlmState.getGatewayCount()];
+    for (int i = 0; i < values.length; i++) values[i] = wlmState.getOpenProducers(i);
+    return values;
+  }
+  
+  public int[] getSendsInProgress() {
+    int[] values = new int[wlmState.getGatewayCount()];
+    for (int i = 0; i < values.length; i++) values[i] = wlmState.getSendsInProgress(i);
+    return values;
+  }
+  
+  public long[] getConnectAttempts() {
+    WLMGatewayMetrics[] gateways = wlmState.getMetrics(resRefPrefix).getGateways();
+    long[] values = new long[gateways.length];
+    for (int i = 0; i < values.length; i++) values[i] = gateways[i].getConnectAttempts();
+    return values;
+  }
+  
+  public long[] getConnectFailures() {
+    WLMGatewayMetrics[] gateways = wlmState.getMetrics(resRefPrefix).getGateways();
+    long[] values = new long[gateways.length];
+    for (int i = 0; i < values.length; i++) values[i] = gateways[i].getConnectFailures();
+    return values;
+  }
+  
+  public long[] getSkips() {
+    WLMGatewayMetrics[] gateways = wlmState.getMetrics(resRefPrefix).getGateways();
+    long[] values = new long[gateways.length];
+    for (int i = 0; i < values.length; i++) values[i] = gateways[i].getSkips();
+    return values;
+  }
+  
+  public long getRetryLoopEntries() {
+    return wlmState.getMetrics(resRefPrefix).getRetryLoopEntries();
+  }
+  
+  public String getSummary() {
+    return wlmState.getMetrics(resRefPrefix).toString();
+  }
+  
+  public void forceDown(int gatewayIndex) {
+    final String methodName = "forceDown";
+    checkIndex(gatewayIndex);
+    wlmState.forceDown(gatewayIndex);
+    if (log.enabled()) log.debug(methodName, "Connection " + gatewayIndex + " for " + resRefPrefix + " forced down");
+  }
+  
+  public void forceUp(int gatewayIndex) {
+    final String methodName = "forceUp";
+    checkIndex(gatewayIndex);
+    wlmState.forceUp(gatewayIndex);
+    if (log.enabled()) log.debug(methodName, "Connection " + gatewayIndex + " for " + resRefPrefix + " forced up");
+  }
+  
+  public void drain(int gatewayIndex) {
+    WLMJMSAttach.drainGateway(resRefPrefix, gatewayIndex);
+  }
+  
+  public void undrain(int gatewayIndex) {
+    WLMJMSAttach.undrainGateway(resRefPrefix, gatewayIndex);
+  }
+  
+  public void resetCounters(int gatewayIndex) {
+    checkIndex(gatewayIndex);
+    wlmState.resetMetrics(gatewayIndex);
+  }
+  
+  public void resetAllCounters() {
+    wlmState.resetMetrics();
+  }
+  
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+/**
+ * The JMX management interface for the WLM state of a resource reference prefix.
+ * If enabled with {@link WLMJMSAttachConfig#setJmxEnabled(boolean)}, an MBean is registered on the
+ * platform MBeanServer for each prefix, with an ObjectName of
+ * <code>com.ibm.example.wlmjmsattach:type=WLMResourceReference,name="&lt;prefix&gt;",classLoader=&lt;id&gt;</code>,
+ * so operators can see and steer the routing with a JMX console such as jconsole.
+ * Attributes with an array value have one element for each gateway, indexed from 0 for the first resource reference.
+ */
+public interface WLMResourceReferenceAdminMBean {
+
+  /**
+   * @return The resource reference prefix
+   */
+  public String getResRefPrefix();
+  
+  /**
+   * @return The number of gateways
+   */
+  public int getGatewayCount();
+  
+  /**
+   * @return Whether each gateway is healthy, and so is given new connections
+   */
+  public boolean[] getHealthy();
+  
+  /**
+   * @return Whether each gateway is being drained for maintenance
+   */
+  public boolean[] getDraining();
+  
+  /**
+   * @return Whether each gateway has been forced down by an operator
+   */
+  public boolean[] getForcedDown();
+  
+  /**
+   * @return The time of the last failure of each gateway, or an empty string if it has not failed or has since recovered
+   */
+  public String[] getLastFailureTimes();
+  
+  /**
+   * @return The number of failures recorded against each gateway
+   */
+  public int[] getFailureCounts();
+  
+  /**
+   * @return The share of its normal traffic each gateway is currently given, which is below 1.0 during slow start
+   */
+  public double[] getEffectiveWeights();
+  
+  /**
+   * @return The share of the successful connections made by callers that went to each gateway, since the counters were reset
+   */
+  public double[] getRoutingShares();
+  
+  /**
+   * @return The number of connection attempts in progress to each gateway
+   */
+  public int[] getInFlight();
+  
+  /**
+   * @return The number of WLM producer objects open on each gateway
+   */
+  public int[] getOpenProducers();
+  
+  /**
+   * @return The number of sends in progress on each gateway
+   */
+  public int[] getSendsInProgress();
+  
+  /**
+   * @return The number of connection attempts made by callers to each gateway, since the counters were reset
+   */
+  public long[] getConnectAttempts();
+  
+  /**
+   * @return The number of connection attempts by callers that failed, for each gateway, since the counters were reset
+   */
+  public long[] getConnectFailures();
+  
+  /**
+   * @return The number of times callers skipped each gateway, since the counters were reset
+   */
+  public long[] getSkips();
+  
+  /**
+   * @return The number of times callers entered the retry logic, since the counters were reset
+   */
+  public long getRetryLoopEntries();
+  
+  /**
+   * @return A readable summary of all the metrics, including latency percentiles
+   */
+  public String getSummary();
+  
+  /**
+   * Force a gateway down, so no new connections are made to it until it is forced up.
+   * @param gatewayIndex The index of the gateway
+   */
+  public void forceDown(int gatewayIndex);
+  
+  /**
+   * Force a gateway up, returning it to the WLM pool straight away even if it had failed recently.
+   * @param gatewayIndex The index of the gateway
+   */
+  public void forceUp(int gatewayIndex);
+  
+  /**
+   * Drain a gateway for planned maintenance, see {@link WLMJMSAttach#drainGateway(String, int)}.
+   * @param gatewayIndex The index of the gateway
+   */
+  public void drain(int gatewayIndex);
+  
+  /**
+   * Bring a drained gateway back into the WLM pool.
+   * @param gatewayIndex The index of the gateway
+   */
+  public void undrain(int gatewayIndex);
+  
+  /**
+   * Reset the counters and latency histograms for a gateway
+   * @param gatewayIndex The index of the gateway
+   */
+  public void resetCounters(int gatewayIndex);
+  
+  /**
+   * Reset the counters and latency histograms for all the gateways
+   */
+  public void resetAllCounters();
+  
+}
@@ -11,22 +11,189 @@
  *******************************************************************************/
 package com.ibm.example.wlmjmsattach;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A class containing the WLM state for a particular connection factory.
  */
-class WLMResourceReferenceState {
+class WLMResourceReferenceState implements WLMGatewayStatus {
 
-	/** An atomic integer */
-	private final AtomicInteger wlmCounter = new AtomicInteger(0);
+	/** The weight given to each new sample in our latency moving averages */
+	static final double LATENCY_EWMA_WEIGHT = 0.2;
+
+	/** The lowest weight a gateway is given at the start of its slow start window */
+	static final double MIN_SLOW_START_WEIGHT = 0.05;
+
+	/** The routing strategy that chooses the first gateway to try */
+	private final WLMRoutingStrategy routingStrategy;
+	
+	/** The scheduler running the background prober, or null if request threads check the failed gateways */
+	private volatile ScheduledExecutorService proberScheduler;
+	
+	/** The schedule of the background prober, or null if request threads check the failed gateways */
+	private volatile ScheduledFuture<?> proberSchedule;
+	
+	/** The number of gateways for the resource reference prefix this state belongs to */
+	private final int gatewayCount;
+	
+	/** Circuit breaker state: The gateway is healthy, and connections are attempted as normal */
+	static final int BREAKER_CLOSED = 0;
+	
+	/** Circuit breaker state: The gateway has failed, and connections are not attempted until the retry interval passes */
+	static final int BREAKER_OPEN = 1;
+	
+	/** Circuit breaker state: One thread has been given a permit to probe whether a failed gateway has recovered */
+	static final int BREAKER_HALF_OPEN = 2;
+	
+	/** Permit returned by acquirePermit: Connect as normal */
+	static final int PERMIT_CONNECT = 0;
+	
+	/** Permit returned by acquirePermit: This thread is probing a failed gateway, and must report the result */
+	static final int PERMIT_PROBE = 1;
+	
+	/** Permit returned by acquirePermit: Do not connect, move on to the next gateway */
+	static final int PERMIT_DENIED = 2;
+	
+	/** The circuit breaker state of each gateway */
+	private final AtomicIntegerArray breakerStates;
 	
 	/** An array of indexes that have failed, containing the time
-	 *  that the last failed attempt occurred.
+	 *  that the last failed attempt occurred (or the time the current probe started,
+	 *  when the breaker is half-open).
 	 *  This allows all instances of the application sharing this state
 	 *  to coordinate retries in the case where just one of the connection
 	 *  factories connects to an endpoint that's down. */
-	private volatile long[] lastFailureTimestamps = new long[WLMJMSAttach.WLM_GATEWAY_COUNT];
+	private final AtomicLongArray lastFailureTimestamps;
+	
+	/** The number of failures recorded against each gateway, so anyone holding resources
+	 *  for a gateway can tell if it has failed since they were created */
+	private final AtomicIntegerArray failureCounts;
+	
+	/** Whether each gateway is being drained for maintenance (1) or not (0) */
+	private final AtomicIntegerArray draining;
+	
+	/** Whether each gateway has been forced down by an operator (1) or not (0) */
+	private final AtomicIntegerArray forcedDown;
+	
+	/** The time each gateway started its slow start window, or 0 if it is not ramping up */
+	private final AtomicLongArray slowStartTimestamps;
+	
+	/** The length of the slow start window, or 0 if disabled */
+	private final int slowStartWindowMillis;
+	
+	/** The exponent of the slow start curve */
+	private final double slowStartExponent;
+	
+	/** The connection attempt leading for each gateway, or null if none is in progress */
+	private final AtomicReferenceArray<Flight> flights;
+	
+	/** The number of connection attempts in progress to each gateway */
+	private final AtomicIntegerArray inFlight;
+	
+	/** The number of WLM producer objects currently open on each gateway */
+	private final AtomicIntegerArray openProducers;
+	
+	/** The number of sends in progress on each gateway, including asynchronous sends awaiting their completion callback */
+	private final AtomicIntegerArray sendsInProgress;
+	
+	/** The moving average of the time taken to create a connection, session and producer
+	 *  on each gateway, in milliseconds. Stored as the raw bits of a double, so we can CAS it. */
+	private final AtomicLongArray connectLatencyEwma;
+	
+	/** The moving variance of the time taken to create a connection, session and producer
+	 *  on each gateway, in milliseconds squared. Stored as the raw bits of a double, so we can CAS it. */
+	private final AtomicLongArray connectLatencyVariance;
+	
+	/** The moving average of the time taken to send a message on each gateway, in milliseconds.
+	 *  Stored as the raw bits of a double, so we can CAS it. */
+	private final AtomicLongArray sendLatencyEwma;
+	
+	/** The time we last took a connect or send latency sample for each gateway */
+	private final AtomicLongArray lastLatencySample;
+	
+	/** The consistent-hash ring used to route requests with a routing key */
+	private final WLMHashRing hashRing;
+	
+	/** The budget of retry passes shared by all users of the prefix, or null if unlimited */
+	private final WLMTokenBucket retryBudget;
+	
+	/** The number of connection attempts by callers to each gateway */
+	private final AtomicLongArray connectAttempts;
+	
+	/** The number of connection attempts by callers to each gateway that succeeded */
+	private final AtomicLongArray connectSuccesses;
+	
+	/** The number of connection attempts by callers to each gateway that failed */
+	private final AtomicLongArray connectFailures;
+	
+	/** The number of times callers skipped each gateway */
+	private final AtomicLongArray skips;
+	
+	/** The histogram of connect latency for each gateway */
+	private final WLMLatencyHistogram[] connectLatencyHistograms;
+	
+	/** The histogram of send latency for each gateway */
+	private final WLMLatencyHistogram[] sendLatencyHistograms;
+	
+	/** The number of times callers entered the retry logic */
+	private final AtomicLong retryLoopEntries = new AtomicLong();
+	
+	/** The total time callers have spent backing off between retries, in milliseconds */
+	private final AtomicLong backoffMillis = new AtomicLong();
+	
+	/**
+	 * Constructor
+	 * @param gatewayCount The number of gateways for the resource reference prefix
+	 * @param config The configuration of the first user of the resource reference prefix
+	 */
+	WLMResourceReferenceState(int gatewayCount, WLMJMSAttachConfig config) {
+	  if (gatewayCount <= 0) throw new IllegalArgumentException();
+	  this.gatewayCount = gatewayCount;
+	  WLMRoutingStrategy routingStrategy = config.getRoutingStrategy();
+	  this.routingStrategy = routingStrategy != null ? routingStrategy : new WLMRoundRobinStrategy();
+	  this.breakerStates = new AtomicIntegerArray(gatewayCount);
+	  this.lastFailureTimestamps = new AtomicLongArray(gatewayCount);
+	  this.failureCounts = new AtomicIntegerArray(gatewayCount);
+	  this.draining = new AtomicIntegerArray(gatewayCount);
+	  this.forcedDown = new AtomicIntegerArray(gatewayCount);
+	  this.slowStartTimestamps = new AtomicLongArray(gatewayCount);
+	  this.slowStartWindowMillis = config.getSlowStartWindowMillis();
+	  this.slowStartExponent = config.getSlowStartExponent();
+	  this.flights = new AtomicReferenceArray<Flight>(gatewayCount);
+	  this.inFlight = new AtomicIntegerArray(gatewayCount);
+	  this.openProducers = new AtomicIntegerArray(gatewayCount);
+	  this.sendsInProgress = new AtomicIntegerArray(gatewayCount);
+	  this.connectLatencyEwma = new AtomicLongArray(gatewayCount);
+	  this.connectLatencyVariance = new AtomicLongArray(gatewayCount);
+	  this.sendLatencyEwma = new AtomicLongArray(gatewayCount);
+	  this.lastLatencySample = new AtomicLongArray(gatewayCount);
+	  this.hashRing = new WLMHashRing(gatewayCount);
+	  this.retryBudget = config.getRetryBudgetPerSecond() > 0 ? new WLMTokenBucket(config.getRetryBudgetPerSecond()) : null;
+	  this.connectAttempts = new AtomicLongArray(gatewayCount);
+	  this.connectSuccesses = new AtomicLongArray(gatewayCount);
+	  this.connectFailures = new AtomicLongArray(gatewayCount);
+	  this.skips = new AtomicLongArray(gatewayCount);
+	  this.connectLatencyHistograms = new WLMLatencyHistogram[gatewayCount];
+	  this.sendLatencyHistograms = new WLMLatencyHistogram[gatewayCount];
+	  for (int i = 0; i < gatewayCount; i++) {
+	    connectLatencyHistograms[i] = new WLMLatencyHistogram();
+	    sendLatencyHistograms[i] = new WLMLatencyHistogram();
+	  }
+	}
+	
+	/**
+	 * @return The number of gateways sharing this state
+	 */
+	public int getGatewayCount() {
+	  return gatewayCount;
+	}
 	
 	/**
 	 * Query whether the connection factory at the specified index has failed recently,
@@ -35,55 +202,542 @@ class WLMResourceReferenceState {
 	 * @return The last time a connection failed, or -1 if the last connection was successful 
 	 */
 	public long getLastFailureTimestamp(int cfIndex) {
-		return lastFailureTimestamps[cfIndex];
+		return lastFailureTimestamps.get(cfIndex);
+	}
+	
+	/**
+	 * @param cfIndex The index of the connection factory
+	 * @return The circuit breaker state, BREAKER_CLOSED, BREAKER_OPEN or BREAKER_HALF_OPEN
+	 */
+	public int getBreakerState(int cfIndex) {
+	  return breakerStates.get(cfIndex);
 	}
 
 	/**
-	 * Mark that a connection has just succeeded using the specified index.
-	 * Doesn't matter that this isn't synchronised, as it's just a hint to avoid extra
-	 * processing. The caller only sets this if they saw a last-failure timestamp
-	 * before the connect.
-	 * @param cfIndex The index of the connection factory the caller just connected using
+	 * Ask the circuit breaker whether we should attempt a connection using the specified index.
+	 * If the gateway is healthy we always connect. If it has failed, then once the failedGatewayRetry
+	 * interval has passed exactly one thread is given a permit to probe it, and all other threads
+	 * are denied until that probe reports its result. If a probe does not report back within
+	 * the failedGatewayRetry interval (for example the thread is stuck in a TCP connect), another
+	 * permit is granted.
+	 * If a background prober is checking the gateways, callers are never given a probe permit.
+	 * If the prober stops (for example after {@link WLMJMSAttach#shutdown()}), callers go back to
+	 * probing on the failedGatewayRetry interval, so a failed gateway is not excluded forever.
+	 * A caller given PERMIT_PROBE must call setLastConnectionSuccessful or setLastConnectionFailed.
+	 * @param cfIndex The index of the connection factory the caller is about to attempt to use
+	 * @param failedGatewayRetry The time a failed gateway stays out of the WLM pool
+	 * @return PERMIT_CONNECT, PERMIT_PROBE or PERMIT_DENIED
 	 */
-	public void setLastConnectionSuccessful(int cfIndex) {
-		lastFailureTimestamps[cfIndex] = -1;
+	public int acquirePermit(int cfIndex, int failedGatewayRetry) {
+	  int breakerState = breakerStates.get(cfIndex);
+	  if (breakerState == BREAKER_CLOSED) return PERMIT_CONNECT;
+	  if (isBackgroundProbing()) return PERMIT_DENIED;
+	  
+	  // The gateway has failed, or is being probed. Check if our interval has passed. 
+	  long now = System.currentTimeMillis();
+	  long lastFailureTimestamp = lastFailureTimestamps.get(cfIndex);
+	  if (now - lastFailureTimestamp < failedGatewayRetry) return PERMIT_DENIED;
+	  
+	  // Race with other threads to claim the probe permit.
+	  // Moving the timestamp on to the start of our probe means a lost probe permit
+	  // expires after the failedGatewayRetry interval.
+	  if (breakerState == BREAKER_OPEN) {
+	    if (!breakerStates.compareAndSet(cfIndex, BREAKER_OPEN, BREAKER_HALF_OPEN)) return PERMIT_DENIED;
+	    lastFailureTimestamps.set(cfIndex, now);
+	    return PERMIT_PROBE;
+	  }
+	  return lastFailureTimestamps.compareAndSet(cfIndex, lastFailureTimestamp, now) ? PERMIT_PROBE : PERMIT_DENIED;
 	}
 
 	/**
-	 * Mark that we're beginning a new connection attempt for a connection that's previously failed.
-	 * Caller might subsequently call setLastConnectionSuccessful if the connection is good,
-	 * but we need to update the timestamp ASAP to minimise the number of threads that attempt
-	 * the connection.
-	 * Doesn't matter that this isn't synchronised, as it's just a hint to avoid extra
-	 * processing.
-	 * @param cfIndex The index of the connection factory the caller just failed to use
+	 * Called when the background prober is scheduled, so callers know it is checking the gateways
+	 * @param scheduler The scheduler running the prober
+	 * @param schedule The schedule of the prober
 	 */
-	public void setLastConnectionAttempt(int cfIndex, long connectionAttemptStartTimestamp) {
-		lastFailureTimestamps[cfIndex] = connectionAttemptStartTimestamp;
+	void proberStarted(ScheduledExecutorService scheduler, ScheduledFuture<?> schedule) {
+	  // The scheduler is written first, as readers only look at it once they see the schedule
+	  this.proberScheduler = scheduler;
+	  this.proberSchedule = schedule;
+	}
+	
+	/**
+	 * We judge this by whether the prober is still scheduled, not by how recently it ran,
+	 * as one probe can legitimately block for a whole connect timeout.
+	 * The schedule ends if the prober throws, and the scheduler stops on {@link WLMJMSAttach#shutdown()}
+	 * (shutdownNow does not cancel the schedule, so we check both).
+	 * @return Whether a background prober is checking the failed gateways. This is false if probing is disabled,
+	 *         or the prober is no longer scheduled.
+	 */
+	boolean isBackgroundProbing() {
+	  ScheduledFuture<?> schedule = proberSchedule;
+	  return schedule != null && !schedule.isDone() && !proberScheduler.isShutdown();
+	}
+
+	/**
+	 * Mark that a connection has just succeeded using the specified index, closing
+	 * the circuit breaker if it was open. This is only a volatile read if the gateway
+	 * is already healthy.
+	 * @param cfIndex The index of the connection factory the caller just connected using
+	 */
+	public void setLastConnectionSuccessful(int cfIndex) {
+	  if (breakerStates.get(cfIndex) != BREAKER_CLOSED) {
+	    // Clear the timestamp first, so anyone seeing the closed state sees a healthy timestamp
+	    lastFailureTimestamps.set(cfIndex, -1);
+	    startSlowStart(cfIndex);
+	    breakerStates.set(cfIndex, BREAKER_CLOSED);
+	  }
 	}
 
 	/**
-	 * Called when a previously working connection fails. 
+	 * Called when a connection attempt fails, opening the circuit breaker.
+	 * The gateway drops out of the WLM pool for the failedGatewayRetry interval from now.
 	 * @param cfIndex The index of the connection factory the caller just failed to use
 	 */
 	public void setLastConnectionFailed(int cfIndex) {
-		lastFailureTimestamps[cfIndex] = System.currentTimeMillis();
+	  // Set the timestamp first, so anyone seeing the open state sees the new timestamp
+	  lastFailureTimestamps.set(cfIndex, System.currentTimeMillis());
+	  failureCounts.incrementAndGet(cfIndex);
+	  breakerStates.set(cfIndex, BREAKER_OPEN);
+	}
+	
+	/**
+	 * @param cfIndex The index of the connection factory
+	 * @return The number of failures recorded against the gateway
+	 */
+	public int getFailureCount(int cfIndex) {
+	  return failureCounts.get(cfIndex);
+	}
+	
+	/**
+	 * Query whether the last connection attempt to the specified index was successful,
+	 * and the gateway is not being drained or forced down.
+	 * @param cfIndex The index of the connection factory
+	 * @return Whether the connection factory is healthy
+	 */
+	public boolean isHealthy(int cfIndex) {
+	  return breakerStates.get(cfIndex) == BREAKER_CLOSED && draining.get(cfIndex) == 0 && forcedDown.get(cfIndex) == 0;
+	}
+	
+	/**
+	 * @return Whether every gateway is currently in its failed window, being drained, or forced down
+	 */
+	public boolean allFailed() {
+	  for (int i = 0; i < gatewayCount; i++) {
+	    if (isHealthy(i)) return false;
+	  }
+	  return true;
+	}
+	
+	/**
+	 * @param cfIndex The index of the connection factory
+	 * @return Whether the gateway is being drained for maintenance
+	 */
+	public boolean isDraining(int cfIndex) {
+	  return draining.get(cfIndex) != 0;
+	}
+	
+	/**
+	 * Start or stop draining a gateway. While a gateway is draining, no new connections are made to it,
+	 * but existing producers carry on until they are closed.
+	 * @param cfIndex The index of the connection factory
+	 * @param drain Whether to drain the gateway
+	 */
+	public void setDraining(int cfIndex, boolean drain) {
+	  if (!drain && draining.get(cfIndex) != 0) startSlowStart(cfIndex);
+	  draining.set(cfIndex, drain ? 1 : 0);
+	}
+	
+	/**
+	 * @param cfIndex The index of the connection factory
+	 * @return Whether the gateway has been forced down by an operator
+	 */
+	public boolean isForcedDown(int cfIndex) {
+	  return forcedDown.get(cfIndex) != 0;
+	}
+	
+	/**
+	 * Force a gateway down, so no new connections are made to it until it is forced up.
+	 * Unlike draining, pooled producers for the gateway are closed as soon as they are next used.
+	 * @param cfIndex The index of the connection factory
+	 */
+	public void forceDown(int cfIndex) {
+	  forcedDown.set(cfIndex, 1);
+	  // Count it as a failure, so pooled producers created before now are not reused
+	  failureCounts.incrementAndGet(cfIndex);
+	}
+	
+	/**
+	 * Force a gateway back up, returning it to the WLM pool straight away even if its
+	 * circuit breaker had opened. If it is still failing, the next connection attempt opens the breaker again.
+	 * @param cfIndex The index of the connection factory
+	 */
+	public void forceUp(int cfIndex) {
+	  forcedDown.set(cfIndex, 0);
+	  setLastConnectionSuccessful(cfIndex);
+	}
+	
+	/**
+	 * Start the slow start window for a gateway that is returning to the WLM pool
+	 * @param cfIndex The index of the connection factory
+	 */
+	private void startSlowStart(int cfIndex) {
+	  // Zero means not ramping, so avoid it if the clock is somehow at zero
+	  if (slowStartWindowMillis > 0) slowStartTimestamps.set(cfIndex, Math.max(1, System.currentTimeMillis()));
+	}
+	
+	/**
+	 * Calculate the slow start weight of a gateway, ending its window once it has passed
+	 * @param cfIndex The index of the connection factory
+	 * @return The share of its normal traffic the gateway is given
+	 */
+	public double getEffectiveWeight(int cfIndex) {
+	  if (!isHealthy(cfIndex)) return 0.0;
+	  long slowStartTimestamp = slowStartTimestamps.get(cfIndex);
+	  if (slowStartTimestamp == 0) return 1.0;
+	  long elapsed = System.currentTimeMillis() - slowStartTimestamp;
+	  if (elapsed >= slowStartWindowMillis) {
+	    // Only clear it if the window has not been restarted by another recovery
+	    slowStartTimestamps.compareAndSet(cfIndex, slowStartTimestamp, 0);
+	    return 1.0;
+	  }
+	  if (elapsed <= 0) return MIN_SLOW_START_WEIGHT;
+	  return Math.max(MIN_SLOW_START_WEIGHT, Math.pow((double)elapsed / slowStartWindowMillis, slowStartExponent));
+	}
+	
+	/**
+	 * Take a token from the shared retry budget, before making a retry pass through the gateways.
+	 * @return Whether the retry pass can go ahead
+	 */
+	public boolean tryAcquireRetry() {
+	  return retryBudget == null || retryBudget.tryAcquire();
+	}
+	
+	/**
+	 * A connection attempt that later callers can wait on, rather than making their own attempt
+	 */
+	static final class Flight {
+	  
+	  /** The time the attempt started, as returned by System.nanoTime */
+	  final long startNanos = System.nanoTime();
+	  
+	  /** Released when the attempt completes */
+	  private final CountDownLatch done = new CountDownLatch(1);
+	  
+	  /** Whether the attempt succeeded, valid once done is released */
+	  private volatile boolean succeeded;
+	  
+	  /**
+	   * Wait for the attempt to complete
+	   * @param timeoutMillis The time to wait
+	   * @return Whether the attempt completed successfully within the time
+	   * @throws InterruptedException if we are interrupted while waiting
+	   */
+	  boolean awaitSuccess(long timeoutMillis) throws InterruptedException {
+	    return done.await(timeoutMillis, TimeUnit.MILLISECONDS) && succeeded;
+	  }
+	}
+	
+	/**
+	 * Lead the connection attempts to a gateway, if no other thread is already leading.
+	 * @param cfIndex The index of the connection factory
+	 * @return Our flight, which must be passed to endFlight, or null if another thread is leading
+	 */
+	public Flight beginFlight(int cfIndex) {
+	  if (flights.get(cfIndex) != null) return null;
+	  Flight flight = new Flight();
+	  return flights.compareAndSet(cfIndex, null, flight) ? flight : null;
+	}
+	
+	/**
+	 * Complete the leading connection attempt to a gateway, releasing any waiters
+	 * @param cfIndex The index of the connection factory
+	 * @param flight The flight returned by beginFlight
+	 * @param succeeded Whether the attempt succeeded
+	 */
+	public void endFlight(int cfIndex, Flight flight, boolean succeeded) {
+	  flight.succeeded = succeeded;
+	  flights.compareAndSet(cfIndex, flight, null);
+	  flight.done.countDown();
+	}
+	
+	/**
+	 * @param cfIndex The index of the connection factory
+	 * @param thresholdMillis The time an attempt must have been running to count as slow
+	 * @return The leading connection attempt to the gateway, if it has been running longer than the threshold, otherwise null
+	 */
+	public Flight getSlowFlight(int cfIndex, int thresholdMillis) {
+	  Flight flight = flights.get(cfIndex);
+	  if (flight == null || System.nanoTime() - flight.startNanos < TimeUnit.MILLISECONDS.toNanos(thresholdMillis)) return null;
+	  return flight;
 	}
 	
 	/**
-	 * Use our shared atomic integer to determine the next starting point for attempting
-	 * to connect. This is the core of our round-robin WLM strategy. 
+	 * @param cfIndex The index of the connection factory
+	 * @return The number of connection attempts currently in progress
+	 */
+	public int getInFlight(int cfIndex) {
+	  return inFlight.get(cfIndex);
+	}
+	
+	/**
+	 * Mark that a connection attempt is starting. Caller must call connectionAttemptEnded in a finally.
+	 * @param cfIndex The index of the connection factory the caller is about to use
+	 */
+	public void connectionAttemptStarted(int cfIndex) {
+	  inFlight.incrementAndGet(cfIndex);
+	  connectAttempts.incrementAndGet(cfIndex);
+	}
+	
+	/**
+	 * Mark that a connection attempt has completed, successfully or otherwise.
+	 * @param cfIndex The index of the connection factory the caller used
+	 * @param succeeded Whether the attempt succeeded
+	 */
+	public void connectionAttemptEnded(int cfIndex, boolean succeeded) {
+	  inFlight.decrementAndGet(cfIndex);
+	  if (succeeded) connectSuccesses.incrementAndGet(cfIndex);
+	  else connectFailures.incrementAndGet(cfIndex);
+	}
+	
+	/**
+	 * @param cfIndex The index of the connection factory
+	 * @return The number of WLM producer objects currently open
+	 */
+	public int getOpenProducers(int cfIndex) {
+	  return openProducers.get(cfIndex);
+	}
+	
+	/**
+	 * Mark that a WLM producer object has been created. The object must call producerClosed exactly once when it is closed.
+	 * @param cfIndex The index of the connection factory the producer was created using
+	 */
+	public void producerOpened(int cfIndex) {
+	  openProducers.incrementAndGet(cfIndex);
+	}
+	
+	/**
+	 * Mark that a WLM producer object has been closed.
+	 * @param cfIndex The index of the connection factory the producer was created using
+	 */
+	public void producerClosed(int cfIndex) {
+	  openProducers.decrementAndGet(cfIndex);
+	}
+	
+	/**
+	 * @param cfIndex The index of the connection factory
+	 * @return The number of sends currently in progress
+	 */
+	public int getSendsInProgress(int cfIndex) {
+	  return sendsInProgress.get(cfIndex);
+	}
+	
+	/**
+	 * Mark that a send is starting. Caller must call sendEnded in a finally, or when an asynchronous send completes.
+	 * @param cfIndex The index of the connection factory the send is using
+	 * @return The start time of the send, from System.nanoTime()
+	 */
+	public long sendStarted(int cfIndex) {
+	  sendsInProgress.incrementAndGet(cfIndex);
+	  return System.nanoTime();
+	}
+	
+	/**
+	 * Mark that a send has completed, successfully or otherwise.
+	 * @param cfIndex The index of the connection factory the send used
+	 */
+	public void sendEnded(int cfIndex) {
+	  sendsInProgress.decrementAndGet(cfIndex);
+	}
+	
+	/**
+	 * @param cfIndex The index of the connection factory
+	 * @return The moving average time to connect, in milliseconds, or zero if never measured
+	 */
+	public double getConnectLatency(int cfIndex) {
+	  return Double.longBitsToDouble(connectLatencyEwma.get(cfIndex));
+	}
+	
+	/**
+	 * An estimate of the 95th percentile time to connect, from the moving average and variance,
+	 * assuming a normal distribution.
+	 * @param cfIndex The index of the connection factory
+	 * @return The estimated 95th percentile time to connect, in milliseconds, or zero if never measured
+	 */
+	public double getConnectLatencyP95(int cfIndex) {
+	  return getConnectLatency(cfIndex) + 1.645 * Math.sqrt(Double.longBitsToDouble(connectLatencyVariance.get(cfIndex)));
+	}
+	
+	/**
+	 * @param cfIndex The index of the connection factory
+	 * @return The moving average time to send a message, in milliseconds, or zero if never measured
+	 */
+	public double getSendLatency(int cfIndex) {
+	  return Double.longBitsToDouble(sendLatencyEwma.get(cfIndex));
+	}
+	
+	/**
+	 * @param cfIndex The index of the connection factory
+	 * @return The time of the last connect or send latency sample, or zero if never measured
+	 */
+	public long getLastLatencySample(int cfIndex) {
+	  return lastLatencySample.get(cfIndex);
+	}
+	
+	/**
+	 * Record how long a connection attempt took, successful or otherwise.
+	 * @param cfIndex The index of the connection factory
+	 * @param elapsedNanos The time taken
+	 */
+	public void recordConnectLatency(int cfIndex, long elapsedNanos) {
+	  connectLatencyHistograms[cfIndex].record(elapsedNanos);
+	  double previousMean = getConnectLatency(cfIndex);
+	  updateEwma(connectLatencyEwma, cfIndex, elapsedNanos);
+	  // Exponentially weighted variance, measured against the mean before this sample
+	  double deviation = elapsedNanos / 1000000.0 - previousMean;
+	  long oldBits, newBits;
+	  do {
+	    oldBits = connectLatencyVariance.get(cfIndex);
+	    double oldVariance = Double.longBitsToDouble(oldBits);
+	    double newVariance = (1 - LATENCY_EWMA_WEIGHT) * (oldVariance + LATENCY_EWMA_WEIGHT * deviation * deviation);
+	    newBits = Double.doubleToRawLongBits(newVariance);
+	  } while (!connectLatencyVariance.compareAndSet(cfIndex, oldBits, newBits));
+	}
+	
+	/**
+	 * Record how long a send took.
+	 * @param cfIndex The index of the connection factory
+	 * @param elapsedNanos The time taken
+	 */
+	public void recordSendLatency(int cfIndex, long elapsedNanos) {
+	  updateEwma(sendLatencyEwma, cfIndex, elapsedNanos);
+	  sendLatencyHistograms[cfIndex].record(elapsedNanos);
+	}
+	
+	/**
+	 * Record that a caller skipped a gateway without attempting to connect
+	 * @param cfIndex The index of the connection factory
+	 */
+	public void recordSkip(int cfIndex) {
+	  skips.incrementAndGet(cfIndex);
+	}
+	
+	/**
+	 * Record that a caller entered the retry logic
+	 */
+	public void recordRetryLoopEntry() {
+	  retryLoopEntries.incrementAndGet();
+	}
+	
+	/**
+	 * Record time a caller spent backing off between retries
+	 * @param millis The time spent
+	 */
+	public void recordBackoff(long millis) {
+	  if (millis > 0) backoffMillis.addAndGet(millis);
+	}
+	
+	/**
+	 * Reset the counters and latency histograms for a gateway.
+	 * The failure count used to invalidate pooled producers is not reset.
+	 * @param cfIndex The index of the connection factory
+	 */
+	public void resetMetrics(int cfIndex) {
+	  connectAttempts.set(cfIndex, 0);
+	  connectSuccesses.set(cfIndex, 0);
+	  connectFailures.set(cfIndex, 0);
+	  skips.set(cfIndex, 0);
+	  connectLatencyHistograms[cfIndex].reset();
+	  sendLatencyHistograms[cfIndex].reset();
+	}
+	
+	/**
+	 * Reset the counters and latency histograms for every gateway, and for the prefix as a whole
+	 */
+	public void resetMetrics() {
+	  for (int i = 0; i < gatewayCount; i++) resetMetrics(i);
+	  retryLoopEntries.set(0);
+	  backoffMillis.set(0);
+	}
+	
+	/**
+	 * Take a snapshot of our metrics
+	 * @param resRefPrefix The resource reference prefix we are the state for
+	 * @return The snapshot
+	 */
+	public WLMMetricsSnapshot getMetrics(String resRefPrefix) {
+	  WLMGatewayMetrics[] gateways = new WLMGatewayMetrics[gatewayCount];
+	  for (int i = 0; i < gatewayCount; i++) {
+	    // Read the results before the attempts, so we never see more results than attempts
+	    long successes = connectSuccesses.get(i);
+	    long failures = connectFailures.get(i);
+	    gateways[i] = new WLMGatewayMetrics(i, isHealthy(i), isDraining(i), getEffectiveWeight(i), inFlight.get(i), openProducers.get(i),
+	        sendsInProgress.get(i), connectAttempts.get(i), successes, failures, skips.get(i),
+	        connectLatencyHistograms[i].snapshot(), sendLatencyHistograms[i].snapshot());
+	  }
+	  return new WLMMetricsSnapshot(resRefPrefix, System.currentTimeMillis(), retryLoopEntries.get(), backoffMillis.get(), gateways);
+	}
+	
+	/**
+	 * Fold a new sample into one of our moving averages, without locking.
+	 * The first sample is taken as the average.
+	 */
+	private void updateEwma(AtomicLongArray ewmas, int cfIndex, long elapsedNanos) {
+	  double sampleMillis = elapsedNanos / 1000000.0;
+	  long oldBits, newBits;
+	  do {
+	    oldBits = ewmas.get(cfIndex);
+	    double oldValue = Double.longBitsToDouble(oldBits);
+	    double newValue = oldBits == 0 ? sampleMillis :
+	      oldValue + LATENCY_EWMA_WEIGHT * (sampleMillis - oldValue);
+	    newBits = Double.doubleToRawLongBits(newValue);
+	  } while (!ewmas.compareAndSet(cfIndex, oldBits, newBits));
+	  lastLatencySample.set(cfIndex, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Use our consistent-hash ring to determine the order in which to attempt the gateways
+	 * for a routing key. Requests with the same key always start with the same gateway,
+	 * unless it has failed.
+	 * @param routingKey The routing key
+	 * @return Every gateway index, in the order to attempt them
+	 */
+	public int[] getGatewayOrder(String routingKey) {
+	  return hashRing.getGatewayOrder(routingKey);
+	}
+	
+	/**
+	 * Use our routing strategy to determine the next starting point for attempting
+	 * to connect. 
 	 * @return The next index to start with when connecting.
 	 */
 	public int nextIndex() {
-		// We increment our atomic counter, then take the modulus against the size of the index
-		// (ensuring we return a positive value).
-	  int nextCounterValue = wlmCounter.getAndIncrement();
-	  if (nextCounterValue < 0) {
-	    nextCounterValue = 0;
-	    wlmCounter.set(nextCounterValue);
+	  int index = routingStrategy.selectGateway(this);
+	  if (index < 0 || index >= gatewayCount) {
+	    throw new IllegalStateException("Routing strategy " + routingStrategy + " returned invalid gateway index " + index);
+	  }
+	  // Only a volatile read per request, unless the chosen gateway is ramping up
+	  if (slowStartWindowMillis > 0 && slowStartTimestamps.get(index) != 0) index = applySlowStart(index);
+	  return index;
+	}
+	
+	/**
+	 * Accept the choice of a gateway in its slow start window in proportion to its weight,
+	 * otherwise move on to the next healthy gateway that is not ramping up.
+	 * So if the strategy would give the gateway a share S of the connections, it gets roughly
+	 * S multiplied by its weight.
+	 * @param index The gateway chosen by the routing strategy
+	 * @return The gateway to start with
+	 */
+	private int applySlowStart(int index) {
+	  double weight = getEffectiveWeight(index);
+	  if (weight >= 1.0 || WLMRandom.nextDouble() < weight) return index;
+	  for (int i = 1; i < gatewayCount; i++) {
+	    int cfIndex = index+i;
+	    if (cfIndex >= gatewayCount) cfIndex -= gatewayCount;
+	    if (getEffectiveWeight(cfIndex) >= 1.0) return cfIndex;
 	  }
-		return nextCounterValue % WLMJMSAttach.WLM_GATEWAY_COUNT;
+	  // Every other gateway is down or ramping too, so stick with the original choice
+	  return index;
 	}
 	
-}
+}
\ No newline at end of file
@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+/**
+ * The default routing strategy, which starts each connection attempt at the next
+ * gateway in turn.
+ * Each thread keeps its own position in the rotation, starting from a random gateway,
+ * so threads do not contend on a shared counter (see {@link WLMThreadCounter}).
+ */
+public class WLMRoundRobinStrategy implements WLMRoutingStrategy {
+
+  /** Our position in the rotation, for each thread */
+  private final WLMThreadCounter wlmCounter = new WLMThreadCounter();
+  
+  /**
+   * Use our per-thread counter to determine the next starting point for attempting
+   * to connect. This is the core of our round-robin WLM strategy. 
+   * @return The next index to start with when connecting.
+   */
+  public int selectGateway(WLMGatewayStatus gateways) {
+    // The counter is always positive, so we can simply take the modulus
+    return wlmCounter.next() % gateways.getGatewayCount();
+  }
+  
+}
@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+/**
+ * The routing strategy chooses the first gateway to try each time a connection is requested.
+ * If the chosen gateway is unhealthy, or the connection attempt fails, {@link WLMJMSAttach}
+ * moves on through the remaining gateways in order.
+ * 
+ * A strategy is chosen for each resource reference prefix, via the {@link WLMJMSAttachConfig}
+ * of the first {@link WLMJMSAttach} created for that prefix.
+ * Implementations are called concurrently on every connection request, so must be
+ * thread safe, and should avoid locking.
+ * Strategies that keep state (such as {@link WLMWeightedRoundRobinStrategy}) should not be
+ * shared between resource reference prefixes.
+ */
+public interface WLMRoutingStrategy {
+
+  /**
+   * Choose the first gateway to try for a new connection.
+   * @param gateways The current state of the gateways for the resource reference prefix
+   * @return An index between 0 and {@link WLMGatewayStatus#getGatewayCount()}-1
+   */
+  public int selectGateway(WLMGatewayStatus gateways);
+  
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small scheduler shared by all the background work of the WLM logic in the classloader.
+ * The threads are daemon threads, created the first time they are needed.
+ * 
+ * NOTE: These are unmanaged threads. In a JavaEE environment they have no component
+ * context or transaction, so only work that does not need these is run here.
+ */
+final class WLMScheduler {
+
+  /** The number of threads in the scheduler */
+  static final int THREAD_COUNT = 4;
+  
+  /** The maximum number of threads for blocking work. Further work waits for a thread. */
+  static final int MAX_WORKER_THREADS = 32;
+  
+  /** The time an idle worker thread is kept before it ends */
+  static final int WORKER_KEEP_ALIVE_SECONDS = 60;
+  
+  /** The shared scheduler, created on first use */
+  private static volatile ScheduledExecutorService scheduler = null;
+  
+  /** The shared executor for blocking work, created on first use */
+  private static volatile ThreadPoolExecutor executor = null;
+  
+  /** The number of worker threads running a task, maintained by the tasks themselves so it can be read without locking */
+  private static final AtomicInteger busyWorkers = new AtomicInteger();
+  
+  /**
+   * Private constructor
+   */
+  private WLMScheduler() {
+  }
+  
+  /**
+   * @return The shared scheduler, creating it if required
+   */
+  static ScheduledExecutorService get() {
+    ScheduledExecutorService current = scheduler;
+    if (current != null) return current;
+    synchronized (WLMScheduler.class) {
+      if (scheduler == null) {
+        scheduler = new ScheduledThreadPoolExecutor(THREAD_COUNT, new DaemonThreadFactory("WLMJMSAttach-"));
+      }
+      return scheduler;
+    }
+  }
+  
+  /**
+   * An executor for work that blocks for an unpredictable time, such as connection attempts
+   * that hedge against a slow gateway. Threads are created as needed up to {@link #MAX_WORKER_THREADS},
+   * so a brown-out of the gateways cannot create an unbounded number of threads. 
+   * Once they are all busy, further work is queued.
+   * The threads are shared by hedged connection attempts, asynchronous connection retries and the
+   * sends of each {@link WLMBackgroundSender}, which holds a thread for each gateway with sends queued.
+   * @return The shared executor, creating it if required
+   */
+  static ExecutorService getExecutor() {
+    ThreadPoolExecutor current = executor;
+    if (current != null) return current;
+    synchronized (WLMScheduler.class) {
+      if (executor == null) {
+        ThreadPoolExecutor newExecutor = new ThreadPoolExecutor(MAX_WORKER_THREADS, MAX_WORKER_THREADS,
+            WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new DaemonThreadFactory("WLMJMSAttach-worker-")) {
+          @Override
+          protected void beforeExecute(Thread t, Runnable r) {
+            busyWorkers.incrementAndGet();
+          }
+          @Override
+          protected void afterExecute(Runnable r, Throwable t) {
+            busyWorkers.decrementAndGet();
+          }
+        };
+        newExecutor.allowCoreThreadTimeOut(true);
+        executor = newExecutor;
+      }
+      return executor;
+    }
+  }
+  
+  /**
+   * Checked when deciding whether to start optional work, such as a hedged connection attempt.
+   * This does not lock, so it is cheap enough to call on the request path.
+   * @return Whether every worker thread is busy, so new work would have to wait in the queue
+   */
+  static boolean isExecutorSaturated() {
+    return busyWorkers.get() >= MAX_WORKER_THREADS;
+  }
+  
+  /**
+   * Creates named daemon threads
+   */
+  private static final class DaemonThreadFactory implements ThreadFactory {
+    private final String namePrefix;
+    private final AtomicInteger threadNumber = new AtomicInteger(0);
+    DaemonThreadFactory(String namePrefix) {
+      this.namePrefix = namePrefix;
+    }
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, namePrefix + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+  
+  /**
+   * Stop the shared scheduler and executor, cancelling all background work. 
+   * New ones are created if any more background work is started.
+   */
+  static synchronized void shutdown() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+  
+}
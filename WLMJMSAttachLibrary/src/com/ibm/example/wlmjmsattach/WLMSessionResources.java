@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+import javax.jms.TemporaryTopic;
+
+/**
+ * The consumers and temporary destinations an application has created through one of our
+ * wrapper objects, so we can clean up the session before a pool hands it to another caller.
+ * Like the session it belongs to, this must only be used by one thread at a time.
+ */
+class WLMSessionResources {
+
+  /** A logger */
+  private static final WLMJMSLogger log = new WLMJMSLogger(WLMSessionResources.class);
+  
+  /** The consumers created on the session */
+  private final List<MessageConsumer> consumers = new ArrayList<MessageConsumer>();
+  
+  /** The temporary queues and topics created on the session */
+  private final List<Object> temporaryDestinations = new ArrayList<Object>();
+  
+  /**
+   * @param consumer A consumer created on the session
+   * @return The consumer
+   */
+  <C extends MessageConsumer> C add(C consumer) {
+    consumers.add(consumer);
+    return consumer;
+  }
+  
+  /**
+   * @param temporaryQueue A temporary queue created on the session
+   * @return The temporary queue
+   */
+  TemporaryQueue add(TemporaryQueue temporaryQueue) {
+    temporaryDestinations.add(temporaryQueue);
+    return temporaryQueue;
+  }
+  
+  /**
+   * @param temporaryTopic A temporary topic created on the session
+   * @return The temporary topic
+   */
+  TemporaryTopic add(TemporaryTopic temporaryTopic) {
+    temporaryDestinations.add(temporaryTopic);
+    return temporaryTopic;
+  }
+  
+  /**
+   * Make a session safe to hand to another caller. Any uncommitted work on a transacted session
+   * is rolled back, unacknowledged messages on a client acknowledge session are recovered,
+   * then the consumers are closed and the temporary destinations deleted.
+   * @param session The session
+   * @return Whether the session is clean. If not it must not be reused.
+   */
+  boolean clean(Session session) {
+    final String methodName = "clean";
+    try {
+      if (session.getTransacted()) session.rollback();
+      else if (session.getAcknowledgeMode() == Session.CLIENT_ACKNOWLEDGE) session.recover();
+      for (MessageConsumer consumer : consumers) consumer.close();
+      consumers.clear();
+      for (Object temporaryDestination : temporaryDestinations) {
+        if (temporaryDestination instanceof TemporaryQueue) ((TemporaryQueue)temporaryDestination).delete();
+        else ((TemporaryTopic)temporaryDestination).delete();
+      }
+      temporaryDestinations.clear();
+      return true;
+    }
+    catch (JMSException e) {
+      if (log.enabled()) log.logRootExMsg(methodName, "Session cleanup failed", e);
+      return false;
+    }
+  }
+  
+}
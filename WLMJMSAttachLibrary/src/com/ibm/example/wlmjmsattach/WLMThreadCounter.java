@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+/**
+ * A counter with a separate value for each thread, starting from a random offset.
+ * This is used for round-robin selection in place of a single shared AtomicInteger,
+ * which becomes a contended cache line when many threads on many cores send concurrently.
+ * Each thread steps evenly through the gateways, and the random starting point spreads
+ * threads evenly across the gateways, so overall the distribution remains even without
+ * any shared CAS target.
+ */
+final class WLMThreadCounter {
+
+  /** The counter for each thread */
+  private final ThreadLocal<int[]> counter = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[] { WLMRandom.nextInt(Integer.MAX_VALUE) };
+    }
+  };
+  
+  /**
+   * @return The next value of the counter for the current thread. Always positive.
+   */
+  int next() {
+    int[] threadCounter = counter.get();
+    // Mask off the sign bit, so we stay positive when the counter wraps
+    int value = threadCounter[0] & Integer.MAX_VALUE;
+    threadCounter[0] = value + 1;
+    return value;
+  }
+  
+}
@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+/**
+ * A simple token bucket, used to limit the rate of retries shared across all threads,
+ * and the rate of exceptions logged on failure paths.
+ * Tokens are added continuously at the configured rate, up to a maximum of one second's worth,
+ * so a short burst of retries is allowed after a quiet period.
+ * Only used on the retry and failure paths, so we simply synchronize.
+ */
+final class WLMTokenBucket {
+
+  /** The number of tokens added each second, which is also the capacity of the bucket */
+  private final int tokensPerSecond;
+  
+  /** The tokens currently available */
+  private double tokens;
+  
+  /** The time we last added tokens */
+  private long lastRefillNanos;
+  
+  /**
+   * Constructor. The bucket starts full.
+   * @param tokensPerSecond The number of tokens added each second
+   */
+  WLMTokenBucket(int tokensPerSecond) {
+    if (tokensPerSecond <= 0) throw new IllegalArgumentException();
+    this.tokensPerSecond = tokensPerSecond;
+    this.tokens = tokensPerSecond;
+    this.lastRefillNanos = System.nanoTime();
+  }
+  
+  /**
+   * Take a token if one is available
+   * @return Whether we got a token
+   */
+  synchronized boolean tryAcquire() {
+    long now = System.nanoTime();
+    tokens = Math.min(tokensPerSecond, tokens + (now - lastRefillNanos) * tokensPerSecond / 1e9);
+    lastRefillNanos = now;
+    if (tokens < 1) return false;
+    tokens--;
+    return true;
+  }
+  
+}
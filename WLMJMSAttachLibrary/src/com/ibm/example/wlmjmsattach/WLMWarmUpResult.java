@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+import javax.jms.JMSException;
+
+/**
+ * The result of warming up the connections to a single gateway.
+ * See {@link WLMJMSAttach#warmUp(int, int)}.
+ */
+public final class WLMWarmUpResult {
+
+  /** The index of the gateway */
+  private final int gatewayIndex;
+  
+  /** The number of connections we attempted */
+  private final int connectionsAttempted;
+  
+  /** The number of connections that succeeded */
+  private final int connectionsOpened;
+  
+  /** The average time taken by the connections that succeeded, in milliseconds */
+  private final double connectLatencyMillis;
+  
+  /** The last exception, or null if all the connections succeeded */
+  private final JMSException exception;
+  
+  /**
+   * Constructor (package private)
+   */
+  WLMWarmUpResult(int gatewayIndex, int connectionsAttempted, int connectionsOpened, double connectLatencyMillis, JMSException exception) {
+    this.gatewayIndex = gatewayIndex;
+    this.connectionsAttempted = connectionsAttempted;
+    this.connectionsOpened = connectionsOpened;
+    this.connectLatencyMillis = connectLatencyMillis;
+    this.exception = exception;
+  }
+  
+  /**
+   * @return The index of the gateway (0 for the first resource reference)
+   */
+  public int getGatewayIndex() {
+    return gatewayIndex;
+  }
+  
+  /**
+   * @return The number of connections we attempted
+   */
+  public int getConnectionsAttempted() {
+    return connectionsAttempted;
+  }
+  
+  /**
+   * @return The number of connections that succeeded
+   */
+  public int getConnectionsOpened() {
+    return connectionsOpened;
+  }
+  
+  /**
+   * @return The average time taken by the connections that succeeded, in milliseconds, or 0 if none did
+   */
+  public double getConnectLatencyMillis() {
+    return connectLatencyMillis;
+  }
+  
+  /**
+   * @return The last exception, or null if all the connections succeeded.
+   *         Connections that did not complete within the timeout have an exception saying so.
+   */
+  public JMSException getException() {
+    return exception;
+  }
+  
+  /**
+   * @return Whether at least one connection succeeded
+   */
+  public boolean isHealthy() {
+    return connectionsOpened > 0;
+  }
+  
+  @Override
+  public String toString() {
+    return "Gateway " + gatewayIndex + ": " + connectionsOpened + "/" + connectionsAttempted + " connections in " + 
+        connectLatencyMillis + "ms" + (exception != null ? " (" + exception.getMessage() + ")" : "");
+  }
+  
+}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright © 2012,2014 IBM Corporation and other Contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * IBM - Initial Contribution
+ *******************************************************************************/
+package com.ibm.example.wlmjmsattach;
+
+/**
+ * A static weighted routing strategy, for gateways running on hardware of different sizes.
+ * Uses the smooth weighted round-robin algorithm, so for weights of 5,1,1 the order is
+ * 0,0,1,0,2,0,0 rather than 0,0,0,0,0,1,2.
+ * 
+ * The smooth weighted round-robin algorithm updates all the weights on every selection,
+ * which would need a lock. Instead we calculate the sequence for a whole cycle up-front,
+ * and each thread steps through it from a random starting point (see {@link WLMThreadCounter}).
+ */
+public class WLMWeightedRoundRobinStrategy implements WLMRoutingStrategy {
+
+  /** The maximum length of a cycle, after the weights are reduced by their common divisor */
+  public static final int MAX_CYCLE_LENGTH = 10000;
+  
+  /** The gateway index to use for each step in the cycle */
+  private final int[] cycle;
+  
+  /** The number of gateways the weights were supplied for */
+  private final int gatewayCount;
+  
+  /** Our position in the cycle, for each thread */
+  private final WLMThreadCounter wlmCounter = new WLMThreadCounter();
+  
+  /**
+   * Constructor
+   * @param weights The relative weight of each gateway, indexed the same as the resource references (so weights[0] is for gateway 1).
+   *                A weight of zero means the gateway is only used for failover.
+   */
+  public WLMWeightedRoundRobinStrategy(int... weights) {
+    if (weights == null || weights.length == 0) throw new IllegalArgumentException();
+    
+    // Reduce the weights by their greatest common divisor, to keep the cycle short
+    int divisor = 0;
+    for (int weight : weights) {
+      if (weight < 0) throw new IllegalArgumentException("Negative weight: " + weight);
+      divisor = gcd(divisor, weight);
+    }
+    if (divisor == 0) throw new IllegalArgumentException("At least one weight must be positive");
+    int total = 0;
+    int[] reducedWeights = new int[weights.length];
+    for (int i = 0; i < weights.length; i++) {
+      reducedWeights[i] = weights[i] / divisor;
+      total += reducedWeights[i];
+      if (total > MAX_CYCLE_LENGTH) throw new IllegalArgumentException("Weights too large. Total must be at most " + MAX_CYCLE_LENGTH);
+    }
+    
+    // Run the smooth weighted round-robin algorithm for a full cycle.
+    // Each step every gateway gains its weight, the gateway with the highest current
+    // weight is chosen, and it then loses the total.
+    cycle = new int[total];
+    int[] currentWeights = new int[reducedWeights.length];
+    for (int step = 0; step < total; step++) {
+      int best = -1;
+      for (int i = 0; i < reducedWeights.length; i++) {
+        currentWeights[i] += reducedWeights[i];
+        if (best < 0 || currentWeights[i] > currentWeights[best]) best = i;
+      }
+      currentWeights[best] -= total;
+      cycle[step] = best;
+    }
+    gatewayCount = weights.length;
+  }
+  
+  /**
+   * Greatest common divisor
+   */
+  private static int gcd(int a, int b) {
+    while (b != 0) {
+      int t = a % b;
+      a = b;
+      b = t;
+    }
+    return a;
+  }
+  
+  /**
+   * Step to the next gateway in the weighted cycle.
+   */
+  public int selectGateway(WLMGatewayStatus gateways) {
+    if (gateways.getGatewayCount() != gatewayCount) {
+      throw new IllegalStateException("Weights supplied for " + gatewayCount + " gateways, but there are " + gateways.getGatewayCount());
+    }
+    return cycle[wlmCounter.next() % cycle.length];
+  }
+  
+}
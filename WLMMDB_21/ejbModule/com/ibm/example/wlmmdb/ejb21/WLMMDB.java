@@ -41,6 +41,10 @@ public class WLMMDB extends WLMMDBBase implements MessageListener, MessageDriven
    * Constructor
    */
   public WLMMDB() {
+    // This class is deployed as two MDBs, with the gateways bound in a different order for each,
+    // and the connection factories are cached for each component. So each MDB names itself
+    // in an env-entry in our deployment descriptor.
+    super(lookupComponentName());
     // Construct the WLM JMS Attachment object
     try {
       InitialContext ctx = new InitialContext();
@@ -52,6 +56,24 @@ public class WLMMDB extends WLMMDBBase implements MessageListener, MessageDriven
     }
   }  
   
+  /**
+   * @return The name of the MDB we are deployed as, from our java:comp/env namespace
+   */
+  private static String lookupComponentName() {
+    try {
+      InitialContext ctx = new InitialContext();
+      try {
+        return (String)ctx.lookup("java:comp/env/wlm/ComponentName");
+      }
+      finally {
+        ctx.close();
+      }
+    }
+    catch (NamingException e) {
+      throw new RuntimeException("Failed to initialize: " + e.getMessage(), e);
+    }
+  }
+  
   public void ejbCreate() throws EJBException {
   }
 
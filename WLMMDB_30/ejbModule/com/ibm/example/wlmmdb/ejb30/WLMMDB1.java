@@ -59,6 +59,13 @@ public class WLMMDB1 extends WLMMDBBase implements MessageListener {
     
     @Resource
     private MessageDrivenContext mdbCtx;
+    
+    /**
+     * Constructor. Our EJB name defaults to our class name, which is unique to this MDB.
+     */
+    public WLMMDB1() {
+      super("WLMMDB1");
+    }
 
     @Override
     protected Destination getDefaultReplyDestination() {
@@ -59,6 +59,13 @@ public class WLMMDB2 extends WLMMDBBase implements MessageListener {
     
     @Resource
     private MessageDrivenContext mdbCtx;
+    
+    /**
+     * Constructor. Our EJB name defaults to our class name, which is unique to this MDB.
+     */
+    public WLMMDB2() {
+      super("WLMMDB2");
+    }
   
     @Override
     protected Destination getDefaultReplyDestination() {
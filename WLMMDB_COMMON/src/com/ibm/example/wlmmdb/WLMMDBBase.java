@@ -23,6 +23,8 @@ import javax.jms.TemporaryQueue;
 import javax.naming.NamingException;
 
 import com.ibm.example.wlmjmsattach.WLMJMSAttach;
+import com.ibm.example.wlmjmsattach.WLMJMSAttachConfig;
+import com.ibm.example.wlmjmsattach.WLMJMSDeadlineUtils;
 import com.ibm.example.wlmjmsattach.WLMJMSLogger;
 import com.ibm.example.wlmjmsattach.WLMJMSMessageProducer;
 import com.ibm.example.wlmjmsattach.WLMJMSTranUtils;
@@ -51,22 +53,33 @@ public abstract class WLMMDBBase implements MessageListener {
   protected abstract MessageDrivenContext getMessageDrivenCtx();
   
   /**
-   * Constructor
+   * Constructor.
+   * We do not enable the health prober, JMX or the producer pool, so there is no background work
+   * to stop, and nothing to do when the container discards an instance. An application that does
+   * enable them must call {@link WLMJMSAttach#shutdown()} when the application stops, not when
+   * an instance is removed, as the container discards idle instances while the application runs.
+   * For example, call it from a ServletContextListener in a web module of the same application,
+   * as SendingServletApp does, or from the PreDestroy method of a startup singleton bean (EJB 3.1).
+   * @param componentName A name unique to the MDB component (such as its EJB name), used to cache
+   *        the connection factories it looks up, so only its first instance does the JNDI lookups.
+   *        Null to look them up for every instance.
    */
-  public WLMMDBBase() {
+  public WLMMDBBase(String componentName) {
     // Construct the WLM JMS Attachment object
     try {
       wlmJMSAttach = new WLMJMSAttach(
           WLMJMSAttach.DEFAULT_RES_REF_PREFIX,
-          WLMJMSAttach.DEFAULT_INITIAL_DELAY_MS,
-          WLMJMSAttach.DEFAULT_TIMEOUT_MS,
-          WLMJMSAttach.DEFAULT_FAILED_GATEWAY_RETRY_MS);
+          new WLMJMSAttachConfig()
+            .setInitialDelayMillis(WLMJMSAttach.DEFAULT_INITIAL_DELAY_MS)
+            .setTimeoutMillis(WLMJMSAttach.DEFAULT_TIMEOUT_MS)
+            .setFailedGatewayRetry(WLMJMSAttach.DEFAULT_FAILED_GATEWAY_RETRY_MS)
+            .setCacheComponentName(componentName));
     }
     catch (NamingException e) {
       throw new RuntimeException("Failed to initialize: " + e.getMessage(), e);
     }
   }
-
+  
   /**
    * The example onMessage in this case shows how to send a reply back.
    * In this example the body we use is a simple text message.
@@ -86,6 +99,15 @@ public abstract class WLMMDBBase implements MessageListener {
           log.debug(methodName, "WebSphere Application Server txn context: " + txnContext);
       }      
       
+      // If the requester stamped a deadline on the request, and it has already passed,
+      // the requester has given up waiting for our reply. So we skip the work, rather
+      // than adding to the load on the system with a reply nobody will read.
+      if (WLMJMSDeadlineUtils.isPastDeadline(message)) {
+        if (log.enabled()) log.debug(methodName, "Skipping request past its deadline: " + message.getJMSMessageID());
+        complete = true;
+        return;
+      }
+      
       // TODO: Put the business logic for processing the request here (before you obtain
       //       the connection+session from the pool to build & send the reply).
 
@@ -121,7 +143,7 @@ public abstract class WLMMDBBase implements MessageListener {
       replyMessage.setJMSCorrelationID(message.getJMSMessageID());
       
       // Send the request message back
-      wlmConnection.getProducer().send(replyMessage, replyPersistence, replyPriority, replyExpiration);
+      wlmConnection.send(replyMessage, replyPersistence, replyPriority, replyExpiration);
       if (log.enabled()) log.debug(methodName, "Reply JMSMessageID: " + replyMessage.getJMSMessageID());
       
       // Mark that we're complete, so that finally logic knows to throw exceptions